@@ -0,0 +1,80 @@
+package tongji.ggyl.benchmark;
+
+import tongji.ggyl.versioncontrol.SegmentedVersionControl;
+import tongji.ggyl.versioncontrol.SnapshotStoreOptions;
+import tongji.ggyl.versioncontrol.VersionControl;
+import tongji.ggyl.versioncontrol.VersionControlImpl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * BenchmarkStores 按名字打开两种存储实现，并提供基准测试共用的准备和清理操作。
+ * 存储直接建在临时目录上，不需要 Project，也不需要启动 IDE。
+ */
+final class BenchmarkStores {
+    static final String SEGMENTED = "segmented"; // SegmentedVersionControl
+    static final String LEGACY = "legacy";       // VersionControlImpl，每个快照一个文件
+
+    // 保存每个快照都会记 INFO 日志，测量时只保留警告
+    private static final Logger STORE_LOGGER = Logger.getLogger("tongji.ggyl");
+
+    private BenchmarkStores() {
+    }
+
+    // 后台整理关闭，避免干扰测量
+    static VersionControl open(String store, Path dir) {
+        STORE_LOGGER.setLevel(Level.WARNING);
+        SnapshotStoreOptions options = new SnapshotStoreOptions().setCompactionIntervalMinutes(0);
+        switch (store) {
+            case SEGMENTED:
+                return new SegmentedVersionControl(dir, options);
+            case LEGACY:
+                return new VersionControlImpl(dir, options);
+            default:
+                throw new IllegalArgumentException("未知的存储: " + store);
+        }
+    }
+
+    // 等待排队中的写入全部完成
+    static void flush(VersionControl versionControl) {
+        boolean flushed;
+        if (versionControl instanceof SegmentedVersionControl) {
+            flushed = ((SegmentedVersionControl) versionControl).getWriter().flush(10, TimeUnit.MINUTES);
+        } else {
+            flushed = ((VersionControlImpl) versionControl).getWriter().flush(10, TimeUnit.MINUTES);
+        }
+        if (!flushed) {
+            throw new IllegalStateException("写入队列没有在时限内清空");
+        }
+    }
+
+    static Path createDirectory(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void close(VersionControl versionControl, Path dir) {
+        if (versionControl != null) {
+            versionControl.shutdown();
+        }
+        if (dir == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
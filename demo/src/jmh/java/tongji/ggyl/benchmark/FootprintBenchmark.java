@@ -0,0 +1,80 @@
+package tongji.ggyl.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 打开已有 snapshots 个快照的存储所需的时间，以及打开后每个快照占用的堆内存（附加指标 heapBytesPerSnapshot）。
+ * 内存在计时之外测量：打开前后各做一次完整 GC，比较已用堆的大小。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FootprintBenchmark {
+    @Param({BenchmarkStores.SEGMENTED, BenchmarkStores.LEGACY})
+    public String store;
+
+    @Param({"1000", "10000", "100000"})
+    public int snapshots;
+
+    @Param({"200"})
+    public int files;
+
+    private Path dir;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long heapBytesPerSnapshot;
+        private long heapBefore;
+        private VersionControl opened;
+
+        @Setup(Level.Invocation)
+        public void measureBefore() {
+            heapBytesPerSnapshot = 0;
+            heapBefore = usedHeap();
+        }
+
+        @TearDown(Level.Invocation)
+        public void measureAfter(FootprintBenchmark benchmark) {
+            heapBytesPerSnapshot = Math.max(0, usedHeap() - heapBefore) / benchmark.snapshots;
+            opened.shutdown();
+            opened = null;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void populate() {
+        dir = BenchmarkStores.createDirectory("footprint-benchmark");
+        VersionControl versionControl = BenchmarkStores.open(store, dir);
+        new SyntheticHistory(files, 2048, SyntheticHistory.EditPattern.LOCAL_EDIT, 42).populate(versionControl, snapshots);
+        versionControl.shutdown();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        BenchmarkStores.close(null, dir);
+    }
+
+    @Benchmark
+    public VersionControl open(Footprint footprint) {
+        footprint.opened = BenchmarkStores.open(store, dir);
+        return footprint.opened;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,109 @@
+package tongji.ggyl.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import tongji.ggyl.eventlistening.Snapshot;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 改名和删除的开销：在已有 snapshots 个快照的存储上改名一个文件、移动一个目录、删除一个文件的全部历史，
+ * 每次都等待操作落盘。改名来回进行，存储的规模不变；删除的文件在每次调用前现建。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MutationBenchmark {
+    private static final int DELETED_HISTORY = 50; // 被删除的文件有多少个快照
+
+    @Param({BenchmarkStores.SEGMENTED, BenchmarkStores.LEGACY})
+    public String store;
+
+    @Param({"1000", "10000", "100000"})
+    public int snapshots;
+
+    @Param({"200"})
+    public int files;
+
+    private Path dir;
+    private VersionControl versionControl;
+    private SyntheticHistory history;
+    private boolean fileRenamed;
+    private boolean directoryMoved;
+
+    @Setup(Level.Trial)
+    public void populate() {
+        dir = BenchmarkStores.createDirectory("mutation-benchmark");
+        versionControl = BenchmarkStores.open(store, dir);
+        history = new SyntheticHistory(files, 2048, SyntheticHistory.EditPattern.LOCAL_EDIT, 42);
+        history.populate(versionControl, snapshots);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        BenchmarkStores.close(versionControl, dir);
+    }
+
+    // 修改最多的文件（八二分布中的第一个）在原路径和新路径之间来回改名
+    @Benchmark
+    public void renameFile() {
+        String path = history.pathOf(0);
+        String moved = path.replace(".java", "Renamed.java");
+        if (fileRenamed) {
+            versionControl.changeSnapshotsPathForFile(moved, path);
+        } else {
+            versionControl.changeSnapshotsPathForFile(path, moved);
+        }
+        fileRenamed = !fileRenamed;
+        BenchmarkStores.flush(versionControl);
+    }
+
+    // 整个包目录（约 1/16 的文件）来回移动
+    @Benchmark
+    public void moveDirectory() {
+        String from = "/bench/src/pkg1";
+        String moved = "/bench/src/moved/pkg1";
+        if (directoryMoved) {
+            versionControl.changeSnapshotsPathForDirectory(moved, from);
+        } else {
+            versionControl.changeSnapshotsPathForDirectory(from, moved);
+        }
+        directoryMoved = !directoryMoved;
+        BenchmarkStores.flush(versionControl);
+    }
+
+    // 每次删除前现建一个有 DELETED_HISTORY 个快照的文件，只测删除本身
+    @State(Scope.Thread)
+    public static class DeletedFile {
+        private SyntheticHistory deleted;
+        private int round;
+        String path;
+
+        @Setup(Level.Invocation)
+        public void create(MutationBenchmark benchmark) {
+            if (deleted == null) {
+                deleted = new SyntheticHistory(1, 2048, SyntheticHistory.EditPattern.LOCAL_EDIT, 7);
+            }
+            String name = "Deleted" + round++ + ".java";
+            path = "/bench/deleted/" + name;
+            for (int i = 0; i < DELETED_HISTORY; i++) {
+                Snapshot snapshot = deleted.next(0);
+                // 旧存储以快照名作文件名，换掉名字避免与已有的快照重名
+                snapshot.setName(name + "-" + snapshot.getRealTimestamp());
+                snapshot.setFilePath(path);
+                benchmark.versionControl.saveVersionSnapshot(snapshot);
+                BenchmarkStores.flush(benchmark.versionControl); // 同一文件的保存不被合并
+            }
+        }
+    }
+
+    @Benchmark
+    public void deleteFile(DeletedFile file) {
+        versionControl.deleteSnapshotsForFile(file.path);
+        BenchmarkStores.flush(versionControl);
+    }
+}
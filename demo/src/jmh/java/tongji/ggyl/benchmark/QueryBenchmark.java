@@ -0,0 +1,97 @@
+package tongji.ggyl.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import tongji.ggyl.eventlistening.Snapshot;
+import tongji.ggyl.versioncontrol.SnapshotMeta;
+import tongji.ggyl.versioncontrol.SnapshotQuery;
+import tongji.ggyl.versioncontrol.SnapshotSearchHit;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 查询延迟：在已有 snapshots 个快照的存储上读取全部快照、单个文件的历史、一页元数据、单个快照的内容和全文搜索。
+ * 存储在每个参数组合开始时生成一次，之后的查询都是只读的。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryBenchmark {
+    @Param({BenchmarkStores.SEGMENTED, BenchmarkStores.LEGACY})
+    public String store;
+
+    @Param({"1000", "10000", "100000"})
+    public int snapshots;
+
+    @Param({"200"})
+    public int files;
+
+    @Param({"2048"})
+    public int fileSize;
+
+    private Path dir;
+    private VersionControl versionControl;
+    private SyntheticHistory history;
+    private long[] snapshotIds;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void populate() {
+        dir = BenchmarkStores.createDirectory("query-benchmark");
+        versionControl = BenchmarkStores.open(store, dir);
+        history = new SyntheticHistory(files, fileSize, SyntheticHistory.EditPattern.LOCAL_EDIT, 42);
+        history.populate(versionControl, snapshots);
+        List<SnapshotMeta> metas = versionControl.getAllSnapshotMetas();
+        snapshotIds = new long[metas.size()];
+        for (int i = 0; i < snapshotIds.length; i++) {
+            snapshotIds[i] = metas.get(i).getId();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        BenchmarkStores.close(versionControl, dir);
+    }
+
+    // 依次轮换，每次查询不同的文件或快照
+    private int next(int bound) {
+        cursor = (cursor + 7919) % bound;
+        return cursor;
+    }
+
+    @Benchmark
+    public List<Snapshot> getAllSnapshots() {
+        return versionControl.getAllSnapshots();
+    }
+
+    @Benchmark
+    public List<Snapshot> getSnapshotsForFile() {
+        return versionControl.getSnapshotsForFile(history.pathOf(next(files)));
+    }
+
+    @Benchmark
+    public List<SnapshotMeta> getAllSnapshotMetas() {
+        return versionControl.getAllSnapshotMetas();
+    }
+
+    @Benchmark
+    public List<SnapshotMeta> getSnapshotMetasPage() {
+        return versionControl.getSnapshotMetas(null, next(Math.max(1, snapshots - 100)), 100);
+    }
+
+    @Benchmark
+    public byte[] loadContent() {
+        return versionControl.loadContent(snapshotIds[next(snapshotIds.length)]);
+    }
+
+    // 生成的行里每个数字都会出现，查一个只在少数版本中出现的标识符
+    @Benchmark
+    public List<SnapshotSearchHit> search() {
+        return versionControl.search(SnapshotQuery.all().setNewestFirst(true), "count" + next(1000) + " = compute(", true, 100);
+    }
+}
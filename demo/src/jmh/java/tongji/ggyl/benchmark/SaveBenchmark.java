@@ -0,0 +1,58 @@
+package tongji.ggyl.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 保存吞吐量：每次调用保存 BATCH 个快照并等待全部落盘，结果换算为每秒保存的快照数。
+ * 一批中的快照依次属于不同文件，不会被写入队列按文件合并掉。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SaveBenchmark {
+    private static final int BATCH = 100;
+
+    @Param({BenchmarkStores.SEGMENTED, BenchmarkStores.LEGACY})
+    public String store;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    @Param({"LOCAL_EDIT", "APPEND", "REWRITE"})
+    public SyntheticHistory.EditPattern editPattern;
+
+    private Path dir;
+    private VersionControl versionControl;
+    private SyntheticHistory history;
+    private int nextFile;
+
+    // 每轮从空存储开始，历史越来越长对结果的影响只在一轮之内
+    @Setup(Level.Iteration)
+    public void open() {
+        dir = BenchmarkStores.createDirectory("save-benchmark");
+        versionControl = BenchmarkStores.open(store, dir);
+        history = new SyntheticHistory(BATCH * 10, fileSize, editPattern, 42);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+        BenchmarkStores.close(versionControl, dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void save() {
+        for (int i = 0; i < BATCH; i++) {
+            versionControl.saveVersionSnapshot(history.next(nextFile));
+            nextFile = (nextFile + 1) % history.getFileCount();
+        }
+        BenchmarkStores.flush(versionControl);
+    }
+}
@@ -0,0 +1,137 @@
+package tongji.ggyl.benchmark;
+
+import tongji.ggyl.eventlistening.Snapshot;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * SyntheticHistory 生成基准测试用的快照历史：fileCount 个约 fileSize 字节的类 Java 源文件，
+ * 按 editPattern 逐次修改并生成快照。相同的种子生成相同的历史，不同存储、不同版本之间可以直接比较。
+ * 默认像真实编辑一样，八成的修改落在两成的文件上。
+ */
+public class SyntheticHistory {
+    public enum EditPattern {
+        APPEND,         // 在末尾追加几行
+        LOCAL_EDIT,     // 改动一处相邻的几行，类似连续输入
+        SCATTERED_EDIT, // 改动分散在全文的若干行，类似重命名一个变量
+        REWRITE         // 整个文件重新生成，类似格式化或粘贴
+    }
+
+    private static final long START_TIMESTAMP = 1_700_000_000_000L;
+    private static final String[] WORDS = {"value", "count", "index", "result", "buffer", "snapshot", "path", "offset"};
+
+    private final int fileCount;
+    private final int fileSize;
+    private final EditPattern editPattern;
+    private final Random random;
+    private final List<List<String>> files = new ArrayList<>(); // 每个文件当前的内容
+    private long timestamp = START_TIMESTAMP;
+
+    public SyntheticHistory(int fileCount, int fileSize, EditPattern editPattern, long seed) {
+        this.fileCount = fileCount;
+        this.fileSize = fileSize;
+        this.editPattern = editPattern;
+        this.random = new Random(seed);
+        for (int i = 0; i < fileCount; i++) {
+            files.add(generate(fileSize));
+        }
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public String pathOf(int file) {
+        return "/bench/src/pkg" + (file % 16) + "/File" + file + ".java";
+    }
+
+    // 按八二分布选一个文件修改并生成快照
+    public Snapshot next() {
+        return next(nextFile());
+    }
+
+    private int nextFile() {
+        int hot = Math.max(1, fileCount / 5);
+        return random.nextInt(5) < 4 ? random.nextInt(hot) : random.nextInt(fileCount);
+    }
+
+    // 修改指定的文件并生成快照
+    public Snapshot next(int file) {
+        List<String> lines = files.get(file);
+        edit(lines);
+        timestamp += 1000;
+        String path = pathOf(file);
+        String name = path.substring(path.lastIndexOf('/') + 1) + "-" + timestamp;
+        return new Snapshot(name, path, String.join("\n", lines).getBytes(StandardCharsets.UTF_8), timestamp);
+    }
+
+    // 保存 count 个快照（前 fileCount 个依次覆盖每个文件），全部写完才返回。
+    // 写入队列会合并同一文件排队中的保存，所以同一文件再次出现前先等待之前的保存写完
+    public void populate(VersionControl versionControl, int count) {
+        Set<Integer> queued = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            int file = i < fileCount ? i : nextFile();
+            if (!queued.add(file)) {
+                BenchmarkStores.flush(versionControl);
+                queued.clear();
+                queued.add(file);
+            }
+            versionControl.saveVersionSnapshot(next(file));
+        }
+        BenchmarkStores.flush(versionControl);
+    }
+
+    private void edit(List<String> lines) {
+        switch (editPattern) {
+            case APPEND:
+                for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                    lines.add(line());
+                }
+                // 文件长到两倍大小时从头部去掉一些，保持大小稳定
+                while (lines.size() > 1 && String.join("\n", lines).length() > 2 * fileSize) {
+                    lines.subList(0, lines.size() / 4 + 1).clear();
+                }
+                break;
+            case LOCAL_EDIT: {
+                int at = random.nextInt(lines.size());
+                int end = Math.min(lines.size(), at + 1 + random.nextInt(3));
+                for (int i = at; i < end; i++) {
+                    lines.set(i, line());
+                }
+                break;
+            }
+            case SCATTERED_EDIT:
+                for (int i = 0; i < 5; i++) {
+                    lines.set(random.nextInt(lines.size()), line());
+                }
+                break;
+            case REWRITE:
+                List<String> rewritten = generate(fileSize);
+                lines.clear();
+                lines.addAll(rewritten);
+                break;
+        }
+    }
+
+    private List<String> generate(int size) {
+        List<String> lines = new ArrayList<>();
+        int length = 0;
+        do {
+            String line = line();
+            lines.add(line);
+            length += line.length() + 1;
+        } while (length < size);
+        return lines;
+    }
+
+    private String line() {
+        String word = WORDS[random.nextInt(WORDS.length)];
+        return "        int " + word + random.nextInt(1000) + " = compute(" + random.nextInt(100_000) + ", \"" + word + "\");";
+    }
+}
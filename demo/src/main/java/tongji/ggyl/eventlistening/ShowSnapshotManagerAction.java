@@ -2,26 +2,36 @@ package tongji.ggyl.eventlistening;
 
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import org.jetbrains.annotations.NotNull;
 import tongji.ggyl.ui.SnapshotManagerUI;
-import tongji.ggyl.versioncontrol.VersionControlImpl;
+import tongji.ggyl.versioncontrol.VersionControl;
 
 public class ShowSnapshotManagerAction extends AnAction {
 
     @Override
     public void actionPerformed(AnActionEvent event) {
-        //System.out.println("lps4");
         var project = event.getProject();
         if (project == null) return;
-        // 确保在事件调度线程中执行
-        ApplicationManager.getApplication().invokeLater(() -> {
+        // 第一次取存储时要重放段文件、导入旧快照和读取搜索索引，放到后台；打开后再在 EDT 上显示界面
+        new Task.Backgroundable(project, "Opening snapshot store", false) {
+            private VersionControl versionControl;
 
-            // 获取 VersionControlPlugin 实例
-            VersionControlImpl versionControl = VersionControlPlugin.getVersionControl();
-            // 调用 SnapshotManagerUI 来显示快照管理界面
-            new SnapshotManagerUI(versionControl);
-            //System.out.println("lps3");
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                // 取当前项目自己的存储，而不是最后打开的项目的
+                versionControl = SnapshotService.getInstance(project).getVersionControl();
+            }
 
-    });
+            @Override
+            public void onSuccess() {
+                if (project.isDisposed()) {
+                    return;
+                }
+                // 快照的加载和比较由 SnapshotManagerUI 放到后台
+                new SnapshotManagerUI(project, versionControl);
+            }
+        }.queue();
     }
 }
@@ -11,6 +11,7 @@ import java.time.format.DateTimeFormatter;
  * Snapshot 类用于保存代码文件的快照信息，包括文件路径、内容和时间戳。
  */
 public class Snapshot implements Serializable {
+    private static final long serialVersionUID = 7964929385338645450L; // 与之前未声明时计算出的值一致，旧快照仍可读取
     private String name;
     private String filePath;    // 文件路径
     private final byte[] content;      // 文件内容
@@ -40,7 +41,6 @@ public class Snapshot implements Serializable {
     }
 
     public String getFilePath() {
-        System.out.println(filePath);
         return filePath;
     }
 
@@ -0,0 +1,116 @@
+package tongji.ggyl.eventlistening;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * SnapshotScheduler 按文件对快照请求去抖：文件停止修改 idleMillis 后才保存一次最新内容；
+ * 一直在修改的文件，距第一次未保存的修改满 maxIntervalMillis 时也会保存一次，不会丢失编辑。
+ * 每个文件的状态独立保存在以 VirtualFile 为键的并发表中，修改文件 A 不会影响文件 B 的快照。
+ */
+public class SnapshotScheduler implements Disposable {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotScheduler.class.getName());
+
+    // 一个文件等待保存的状态
+    private static final class Pending {
+        final long firstChange; // 第一次未保存修改的时间
+        ScheduledFuture<?> future;
+
+        Pending(long firstChange) {
+            this.firstChange = firstChange;
+        }
+    }
+
+    private final long idleMillis;
+    private final long maxIntervalMillis;
+    private final Consumer<VirtualFile> capture; // 到期时读取文件最新内容并保存快照
+    private final ScheduledExecutorService scheduler = AppExecutorUtil.getAppScheduledExecutorService();
+    private final Map<VirtualFile, Pending> pending = new ConcurrentHashMap<>();
+    private volatile boolean disposed = false;
+
+    public SnapshotScheduler(long idleMillis, long maxIntervalMillis, Consumer<VirtualFile> capture) {
+        this.idleMillis = idleMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.capture = capture;
+    }
+
+    // 文件发生修改：推迟该文件的快照，但不超过第一次修改后的 maxIntervalMillis
+    public void schedule(VirtualFile file) {
+        if (disposed || file == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        pending.compute(file, (f, p) -> {
+            if (p == null) {
+                p = new Pending(now);
+            } else if (p.future != null) {
+                p.future.cancel(false);
+            }
+            long delay = Math.max(0, Math.min(idleMillis, p.firstChange + maxIntervalMillis - now));
+            Pending current = p;
+            p.future = scheduler.schedule(() -> fire(f, current), delay, TimeUnit.MILLISECONDS);
+            return p;
+        });
+    }
+
+    // 文件被删除等情况下丢弃还没保存的快照
+    public void cancel(VirtualFile file) {
+        Pending p = pending.remove(file);
+        if (p != null && p.future != null) {
+            p.future.cancel(false);
+        }
+    }
+
+    // 目录被删除时丢弃其下所有文件还没保存的快照
+    public void cancelUnder(String dir) {
+        String prefix = dir + "/";
+        for (VirtualFile file : pending.keySet()) {
+            if (file.getPath().startsWith(prefix)) {
+                cancel(file);
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    // 立即保存所有等待中的快照；项目关闭时应在项目释放之前调用，保存时还要读取文档
+    public void flush() {
+        for (Map.Entry<VirtualFile, Pending> entry : pending.entrySet()) {
+            Pending p = entry.getValue();
+            if (p.future != null) {
+                p.future.cancel(false);
+            }
+            fire(entry.getKey(), p);
+        }
+    }
+
+    // 不再接受新的请求，并保存还在等待中的快照
+    @Override
+    public void dispose() {
+        disposed = true;
+        flush();
+    }
+
+    // 只有仍是该文件当前的等待状态才保存，避免与新的修改或 dispose 重复保存
+    private void fire(VirtualFile file, Pending p) {
+        if (!pending.remove(file, p)) {
+            return;
+        }
+        try {
+            capture.accept(file);
+        } catch (RuntimeException e) {
+            LOGGER.severe("保存快照失败: " + file.getPath() + " " + e);
+        }
+    }
+}
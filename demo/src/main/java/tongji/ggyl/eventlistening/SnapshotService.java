@@ -0,0 +1,48 @@
+package tongji.ggyl.eventlistening;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import tongji.ggyl.versioncontrol.SegmentedVersionControl;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+/**
+ * SnapshotService 是每个项目一个的快照存储服务，取代 VersionControlPlugin 中被各个项目互相覆盖的静态字段。
+ * 存储在第一次使用时打开，项目关闭时随服务释放；监听器等注册在服务之下，先于存储释放。
+ * 写入和后台整理在所有项目共用的 SnapshotIoScheduler 上执行。
+ */
+@Service(Service.Level.PROJECT)
+public final class SnapshotService implements Disposable {
+    private final Project project;
+    private VersionControl versionControl; // 受 this 保护
+    private boolean disposed = false;
+
+    public SnapshotService(Project project) {
+        this.project = project;
+    }
+
+    public static SnapshotService getInstance(Project project) {
+        return project.getService(SnapshotService.class);
+    }
+
+    // 打开存储需要重放段文件，第一次调用应在后台线程上（项目启动时由 VersionControlPlugin 完成）
+    public synchronized VersionControl getVersionControl() {
+        if (disposed) {
+            throw new IllegalStateException("项目已关闭: " + project.getName());
+        }
+        if (versionControl == null) {
+            versionControl = new SegmentedVersionControl(project);
+        }
+        return versionControl;
+    }
+
+    // 写完排队中的快照，再释放段文件
+    @Override
+    public synchronized void dispose() {
+        disposed = true;
+        if (versionControl != null) {
+            versionControl.shutdown();
+            versionControl = null;
+        }
+    }
+}
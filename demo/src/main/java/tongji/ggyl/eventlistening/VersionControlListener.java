@@ -1,63 +1,309 @@
 package tongji.ggyl.eventlistening;
 
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.CommandEvent;
+import com.intellij.openapi.command.CommandListener;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.project.ProjectManagerListener;
+import com.intellij.openapi.roots.GeneratedSourcesFilter;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.*;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiDocumentManager;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.util.messages.MessageBusConnection;
+import tongji.ggyl.versioncontrol.AdmissionPolicy;
+import tongji.ggyl.versioncontrol.SnapshotMetrics;
+import tongji.ggyl.versioncontrol.SnapshotStoreOptions;
 import tongji.ggyl.versioncontrol.VersionControl;
 
 import java.io.File;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class VersionControlListener extends com.intellij.psi.PsiTreeChangeAdapter implements VirtualFileListener {
+public class VersionControlListener extends com.intellij.psi.PsiTreeChangeAdapter implements VirtualFileListener, CommandListener, BulkFileListener {
 
     private final VersionControl versionControl;
     private final Project project;
     private static final Logger LOGGER = Logger.getLogger(VersionControlListener.class.getName());
-    private int lastModifiedLine = -1;  // 保存最后一次修改的行号
-    private boolean isSnapshotSaved = false;  // 防止重复生成快照
-    private long lastSnapshotTime = 0;  // 记录上一次保存快照的时间戳
-    private static final long SNAPSHOT_INTERVAL_MS = 1000; // 1秒的时间间隔，防止重复快照
-
-    public VersionControlListener(Project project, VersionControl versionControl) {
+    private static final long SNAPSHOT_IDLE_MS = 1500;          // 文件停止修改这么久后保存快照
+    private static final long SNAPSHOT_MAX_INTERVAL_MS = 10000; // 持续修改时最长这么久保存一次
+    private final SnapshotScheduler scheduler; // 按文件去抖，取代全局的 lastSnapshotTime 节流
+    private static final int MAX_CAPTURED_STAMPS = 256;         // 最多记住这么多个文件的修改戳
+    // 最近快照过的文件路径 -> 快照时文档的修改戳，按访问顺序淘汰；不持有 VirtualFile，文件删除或移动时一并清除
+    private final Map<String, Long> capturedStamps = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_CAPTURED_STAMPS;
+        }
+    });
+    // 一次命令或写操作会对同一文件触发成百上千个 PSI 事件，期间只登记文件，结束时每个文件提交一次
+    private final Set<VirtualFile> dirtyFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushQueued = new AtomicBoolean(); // 命令之外的修改是否已安排提交
+    private int commandDepth = 0; // 正在执行的本项目命令层数，只在 EDT 上读写
+    // 每个未结束的 undo-transparent 操作是否计入了 commandDepth，结束时按相同的判断减回去；只在 EDT 上使用
+    private final ArrayDeque<Boolean> transparentActions = new ArrayDeque<>();
+    private final AdmissionPolicy admission;  // 哪些文件的修改生成快照，读自 store.properties
+    private final String snapshotDirPrefix;   // 插件自己的快照目录，其中的文件从不生成快照
+    private final String projectDirPrefix;    // 项目根目录加 '/'；命令和 VFS 事件是整个 IDE 的，只处理本项目的
+    private final AtomicInteger bulkUpdates = new AtomicInteger(); // 正在进行的批量更新数，期间的修改不生成快照
+
+    // 项目关闭时保存等待中的快照；parent 释放时注销监听，应先于存储释放
+    public VersionControlListener(Project project, VersionControl versionControl, Disposable parent) {
         this.project = project;
         this.versionControl = versionControl;
-        // 注册 VFS 监听器，监听文件系统的变化
-        VirtualFileManager.getInstance().addVirtualFileListener(this);
+        VirtualFile baseDir = ProjectUtil.guessProjectDir(project);
+        if (baseDir != null) {
+            this.admission = SnapshotStoreOptions.load(Paths.get(baseDir.getPath(), "snapshots")).getAdmissionPolicy();
+            this.snapshotDirPrefix = baseDir.getPath() + "/snapshots/";
+            this.projectDirPrefix = baseDir.getPath() + "/";
+        } else {
+            this.admission = AdmissionPolicy.defaults();
+            this.snapshotDirPrefix = null;
+            this.projectDirPrefix = null;
+        }
+        this.scheduler = new SnapshotScheduler(SNAPSHOT_IDLE_MS, SNAPSHOT_MAX_INTERVAL_MS, this::saveSnapshot);
+        Disposer.register(parent, scheduler);
+        // 命令和 VFS 批量事件在整个应用范围内广播，连接随 parent 断开
+        MessageBusConnection connection = ApplicationManager.getApplication().getMessageBus().connect(parent);
+        connection.subscribe(CommandListener.TOPIC, this);
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, this);
+        // 释放服务时项目已经 isDisposed，读不到文档了；等待中的快照要在项目关闭前保存
+        connection.subscribe(ProjectManager.TOPIC, new ProjectManagerListener() {
+            @Override
+            public void projectClosing(Project closing) {
+                if (closing == project) {
+                    flushDirtyFiles();
+                    scheduler.flush();
+                }
+            }
+        });
+        // 注册 VFS 监听器，监听文件系统的变化；VFS 是全局的，随 parent 注销
+        VirtualFileManager.getInstance().addVirtualFileListener(this, parent);
     }
 
-    // 用于保存传入的 PsiFile 的快照
-    private void saveSnapshot(PsiFile psiFile) {
+    // PSI 变化时只登记该文件，所在的命令或写操作结束后再交给 scheduler
+    private void scheduleSnapshot(PsiFile psiFile) {
+        // 不属于某个文件或只在内存中的 PSI 很常见，只计数
         if (psiFile == null) {
-            LOGGER.warning("PsiFile 为 null，跳过快照。");
+            SnapshotMetrics.get().recordFilteredPsiEvent();
             return;
         }
+        VirtualFile file = psiFile.getVirtualFile();
+        if (file == null) {
+            SnapshotMetrics.get().recordFilteredPsiEvent();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("PsiFile 的 VirtualFile 为 null: " + psiFile.getName());
+            }
+            return;
+        }
+        if (bulkUpdates.get() > 0) {
+            SnapshotMetrics.get().recordFilteredPsiEvent();
+            return;
+        }
+        if (!dirtyFiles.add(file)) {
+            return; // 本批已登记
+        }
+        // 不在命令中的修改（例如后台的写操作）在当前写操作结束后的下一个 EDT 事件中提交；PSI 事件在写操作中发出，写操作在 EDT 上
+        if (commandDepth == 0 && flushQueued.compareAndSet(false, true)) {
+            ApplicationManager.getApplication().invokeLater(() -> {
+                flushQueued.set(false);
+                if (!project.isDisposed()) {
+                    flushDirtyFiles();
+                }
+            });
+        }
+    }
+
+    // 把登记的文件交给 scheduler，每个文件一次；不符合 AdmissionPolicy 的文件在这里丢弃
+    private void flushDirtyFiles() {
+        for (Iterator<VirtualFile> it = dirtyFiles.iterator(); it.hasNext(); ) {
+            VirtualFile file = it.next();
+            it.remove();
+            if (file.isValid() && !ReadAction.compute(() -> admits(file))) {
+                SnapshotMetrics.get().recordRejectedCapture();
+                continue;
+            }
+            SnapshotMetrics.get().recordCaptureRequest();
+            scheduler.schedule(file);
+        }
+    }
+
+    // 只用 VFS 和项目结构中已有的信息判断，不读取文件内容；需要在读操作中调用
+    private boolean admits(VirtualFile file) {
+        String path = file.getPath();
+        if (snapshotDirPrefix != null && path.startsWith(snapshotDirPrefix)) {
+            return false;
+        }
+        if (!admission.admitsPath(path) || !admission.admitsLength(file.getLength())) {
+            return false;
+        }
+        if (admission.isSkipBinary() && file.getFileType().isBinary()) {
+            return false;
+        }
+        // 输出目录等被项目排除或忽略的文件
+        if (admission.isSkipProjectExcluded() && ProjectFileIndex.getInstance(project).isExcluded(file)) {
+            return false;
+        }
+        return !admission.isSkipGenerated() || !GeneratedSourcesFilter.isGeneratedSourceByAnyFilter(file, project);
+    }
+
+    // === VFS 批量事件：git checkout、重新生成代码等外部修改会一次刷新大量文件 ===
 
-        long currentTime = System.currentTimeMillis();
-        // 检查是否距离上次保存时间过短（防止短时间内生成多个快照）
-        if (currentTime - lastSnapshotTime < SNAPSHOT_INTERVAL_MS) {
-            LOGGER.info("短时间内不重复生成快照");
+    @Override
+    public void before(List<? extends VFileEvent> events) {
+        if (isBulkRefresh(events)) {
+            bulkUpdates.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void after(List<? extends VFileEvent> events) {
+        if (isBulkRefresh(events)) {
+            // 由这次刷新引起的文档重新加载和 PSI 事件在本次通知中发出，到下一个 EDT 事件再恢复
+            ApplicationManager.getApplication().invokeLater(bulkUpdates::decrementAndGet);
+        }
+    }
+
+    // 只数落在本项目中的刷新事件，其他项目的 git checkout 不影响本项目
+    private boolean isBulkRefresh(List<? extends VFileEvent> events) {
+        if (!admission.isBulk(events.size())) {
+            return false;
+        }
+        int refreshed = 0;
+        for (VFileEvent event : events) {
+            if (event.isFromRefresh() && isUnderProjectDir(event.getPath())) {
+                refreshed++;
+            }
+        }
+        return admission.isBulk(refreshed);
+    }
+
+    private boolean isUnderProjectDir(String path) {
+        return projectDirPrefix != null && (path.startsWith(projectDirPrefix) || projectDirPrefix.equals(path + "/"));
+    }
+
+    // 文件在项目根目录下，或在项目根目录之外的内容根中；VFS 事件在写操作中发出，可以直接查询
+    private boolean belongsToProject(VirtualFile file) {
+        if (isUnderProjectDir(file.getPath())) {
+            return true;
+        }
+        return !project.isDisposed() && ReadAction.compute(() -> ProjectFileIndex.getInstance(project).isInContent(file));
+    }
+
+    // 其他项目的命令不影响本项目的批次；没有项目的命令也可能修改本项目的文件，照常计入
+    private boolean isOtherProject(CommandEvent event) {
+        return event.getProject() != null && event.getProject() != project;
+    }
+
+    // === 命令的开始和结束，命令可以嵌套 ===
+
+    @Override
+    public void commandStarted(CommandEvent event) {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        if (isOtherProject(event)) {
             return;
         }
+        commandDepth++;
+    }
 
-        VirtualFile file = psiFile.getVirtualFile();
-        if (file == null) {
-            LOGGER.warning("PsiFile 的 VirtualFile 为 null: " + psiFile.getName());
+    @Override
+    public void commandFinished(CommandEvent event) {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        if (isOtherProject(event)) {
             return;
         }
+        finishCommand();
+    }
 
-        Document document = PsiDocumentManager.getInstance(project).getDocument(psiFile);
-        if (document == null) {
+    // undo-transparent 操作不带事件，按当前命令所属的项目判断；不在命令中时照常计入
+    @Override
+    public void undoTransparentActionStarted() {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        Project current = CommandProcessor.getInstance().getCurrentCommandProject();
+        boolean counted = current == null || current == project;
+        transparentActions.push(counted);
+        if (counted) {
+            commandDepth++;
+        }
+    }
+
+    @Override
+    public void undoTransparentActionFinished() {
+        ApplicationManager.getApplication().assertIsDispatchThread();
+        Boolean counted = transparentActions.poll();
+        if (counted == null || counted) {
+            finishCommand();
+        }
+    }
+
+    private void finishCommand() {
+        commandDepth = Math.max(0, commandDepth - 1);
+        if (commandDepth == 0) {
+            flushDirtyFiles();
+        }
+    }
+
+    // 读操作中取到的文档状态：不可变的文本和对应的修改戳
+    private static final class Capture {
+        final CharSequence text;
+        final long stamp;
+
+        Capture(CharSequence text, long stamp) {
+            this.text = text;
+            this.stamp = stamp;
+        }
+    }
+
+    // 保存文件当前内容的快照，由 scheduler 在后台线程上调用
+    private void saveSnapshot(VirtualFile file) {
+        if (project.isDisposed() || !file.isValid()) {
+            return;
+        }
+        // 读操作中只取不可变文本和修改戳，不复制内容
+        Capture capture = ReadAction.compute(() -> {
+            Document document = FileDocumentManager.getInstance().getDocument(file);
+            return document == null ? null : new Capture(document.getImmutableCharSequence(), document.getModificationStamp());
+        });
+        if (capture == null) {
             LOGGER.warning("文件的 Document 为 null：" + file.getName());
             return;
         }
-
-        // 从文档中获取文本内容，准备保存快照
-        byte[] content = document.getText().getBytes();
+        // 上次快照之后文档没有变化（例如只有 PSI 重新解析），不再保存；被淘汰的文件最多多保存一次
+        Long previousStamp = capturedStamps.put(file.getPath(), capture.stamp);
+        if (previousStamp != null && previousStamp == capture.stamp) {
+            SnapshotMetrics.get().recordUnchangedCapture();
+            return;
+        }
+        // 编辑中的文档可能比磁盘上的文件大（按字符数估计），内容也可能是二进制，在复制内容之前再检查一次
+        if (!admission.admitsLength(capture.text.length()) || !admission.admitsContent(capture.text)) {
+            SnapshotMetrics.get().recordRejectedCapture();
+            return;
+        }
+        // 在读操作之外按 UTF-8 编码，哈希和写入由存储的写线程完成
+        byte[] content = encodeUtf8(capture.text);
 
         // 获取项目的根目录
         VirtualFile baseDir = ProjectUtil.guessProjectDir(project);
@@ -73,92 +319,57 @@ public class VersionControlListener extends com.intellij.psi.PsiTreeChangeAdapte
             return;
         }
 
-        // 生成快照文件路径
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss"));
         long thistimestamp = System.currentTimeMillis();
-
         String name = file.getName() + "-" + thistimestamp;
         Snapshot snapshot = new Snapshot(name, file.getPath(), content, thistimestamp);
 
+        SnapshotMetrics.get().recordCapture();
         versionControl.saveVersionSnapshot(snapshot);
-        isSnapshotSaved = true;  // 标记快照已保存
-        lastSnapshotTime = currentTime;  // 更新最后一次保存时间
-    }
-
-    // 检查行号变化，并在变化时生成快照
-    private void checkLineChangeAndSave(PsiFile psiFile) {
-        if (psiFile == null) {
-            return;
-        }
-
-        Document document = PsiDocumentManager.getInstance(project).getDocument(psiFile);
-        if (document != null) {
-            // 获取当前修改的行号
-            int currentLine = document.getLineNumber(document.getTextLength());
-            if (currentLine != lastModifiedLine && !isSnapshotSaved) {
-                saveSnapshot(psiFile);  // 行号发生变化，保存快照
-                lastModifiedLine = currentLine;  // 更新最后修改的行号
-            }
-        }
     }
 
-    // 重置快照标志，用于新的一轮监听
-    private void resetSnapshotFlag() {
-        isSnapshotSaved = false;
+    // 直接把 CharSequence 编码为 UTF-8，不经过 String 中转
+    private static byte[] encodeUtf8(CharSequence text) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
     }
 
-    // 重写子节点替换事件（用于检测文件重命名）
+    // 重写子节点替换事件（修改停下来后保存快照）；文件改名和移动由下面的 VFS 事件只修改存储中的路径
     @Override
     public void childReplaced(com.intellij.psi.PsiTreeChangeEvent event) {
-        PsiFile oldFile = event.getOldChild() instanceof PsiFile ? (PsiFile) event.getOldChild() : null;
-        PsiFile newFile = event.getNewChild() instanceof PsiFile ? (PsiFile) event.getNewChild() : null;
-
-        if (oldFile != null && newFile != null) {
-            String oldPath = oldFile.getVirtualFile().getPath();
-            String newPath = newFile.getVirtualFile().getPath();
-            // 检测文件名是否不同
-            if (!oldPath.equals(newPath)) {
-                handleFileRename(oldPath, newPath);  // 调用自定义方法处理重命名
-            }
-        }
-
-        resetSnapshotFlag();  // 重置快照标志
-    }
-
-    // 处理文件重命名的方法
-    private void handleFileRename(String oldPath, String newPath) {
-        // 自定义重命名处理逻辑
-        LOGGER.info("文件重命名：" + oldPath + " -> " + newPath);
-        // 生成包含旧路径和新路径的快照
-        saveSnapshotForRenamedFile(oldPath, newPath);
+        SnapshotMetrics.get().recordPsiEvent();
+        scheduleSnapshot(event.getFile());
     }
 
     // 重写子节点添加事件（添加文件时保存快照）
     @Override
     public void childAdded(com.intellij.psi.PsiTreeChangeEvent event) {
-        if (!isSnapshotSaved) {
-            LOGGER.info("子节点添加事件触发: " + (event.getFile() != null ? event.getFile().getName() : "unknown"));
-            saveSnapshot(event.getFile());
+        SnapshotMetrics.get().recordPsiEvent();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("子节点添加事件触发: " + (event.getFile() != null ? event.getFile().getName() : "unknown"));
         }
-        resetSnapshotFlag();  // 重置快照标志
+        scheduleSnapshot(event.getFile());
     }
 
     // 重写子节点移除事件（删除文件时保存快照）
     @Override
     public void childRemoved(com.intellij.psi.PsiTreeChangeEvent event) {
-        if (!isSnapshotSaved) {
-            LOGGER.info("子节点移除事件触发: " + (event.getFile() != null ? event.getFile().getName() : "unknown"));
-            saveSnapshot(event.getFile());
+        SnapshotMetrics.get().recordPsiEvent();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("子节点移除事件触发: " + (event.getFile() != null ? event.getFile().getName() : "unknown"));
         }
-        resetSnapshotFlag();  // 重置快照标志
+        scheduleSnapshot(event.getFile());
     }
 
-    // 重写子节点更改事件（行号变化时保存快照）
-
+    // 重写子节点更改事件（修改停下来后保存快照）
+    @Override
     public void childChanged(com.intellij.psi.PsiTreeChangeEvent event) {
-        LOGGER.info("子节点更改事件触发: " + (event.getFile() != null ? event.getFile().getName() : "unknown"));
-        checkLineChangeAndSave(event.getFile());  // 检查行号变化
-        resetSnapshotFlag();  // 重置快照标志
+        SnapshotMetrics.get().recordPsiEvent();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("子节点更改事件触发: " + (event.getFile() != null ? event.getFile().getName() : "unknown"));
+        }
+        scheduleSnapshot(event.getFile());
     }
 
     // === 处理虚拟文件系统的监听事件 ===
@@ -166,121 +377,76 @@ public class VersionControlListener extends com.intellij.psi.PsiTreeChangeAdapte
     // 文件重命名事件
     @Override
     public void beforePropertyChange(VirtualFilePropertyEvent event) {
-        if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
+        if (VirtualFile.PROP_NAME.equals(event.getPropertyName()) && belongsToProject(event.getFile())) {
             LOGGER.info("文件重命名事件触发：" + event.getOldValue() + " -> " + event.getNewValue());
             String oldPath = event.getFile().getPath();
             String newPath = event.getFile().getParent().getPath() + "/" + event.getNewValue();
-            versionControl.changeSnapshotsPathForFile(oldPath, newPath);
-            // 更新重命名文件的快照
-            //saveSnapshotForRenamedFile(oldPath, newPath);  // 处理文件重命名
+            changeSnapshotsPath(event.getFile(), oldPath, newPath);
         }
     }
 
-    // 文件删除事件
+    // 文件或目录移动事件
     @Override
-    public void beforeFileDeletion(VirtualFileEvent event) {
-        System.out.println("lwmlwmlwmlwm");
-        LOGGER.info("文件删除事件触发：" + event.getFile().getPath());
-        //saveSnapshotForVirtualFile(event.getFile(), "删除");
-        versionControl.deleteSnapshotsForFile(event.getFile().getPath());
-    }
-
-    // 保存包含旧路径和新路径的重命名快照
-    private void saveSnapshotForRenamedFile(String oldPath, String newPath) {
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastSnapshotTime < SNAPSHOT_INTERVAL_MS) {
-            LOGGER.info("短时间内不重复生成快照");
+    public void beforeFileMovement(VirtualFileMoveEvent event) {
+        if (!belongsToProject(event.getFile())) {
             return;
         }
-
-        // 生成快照内容，包含重命名前后的路径
-        String snapshotContent = "文件重命名:\n旧路径: " + oldPath + "\n新路径: " + newPath;
-
-        // 获取项目的根目录
-        VirtualFile baseDir = ProjectUtil.guessProjectDir(project);
-        if (baseDir == null) {
-            LOGGER.severe("项目根目录为空，无法保存快照。");
-            return;
-        }
-
-        // 创建 snapshots 目录
-        File snapshotDir = new File(baseDir.getPath(), "snapshots");
-        if (!snapshotDir.exists() && !snapshotDir.mkdirs()) {
-            LOGGER.severe("创建快照目录失败。");
-            return;
-        }
-
-        // 生成快照文件路径
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss"));
-        String name = "RenamedFile-" + timestamp;
-        Snapshot snapshot = new Snapshot(name, oldPath, snapshotContent.getBytes(), currentTime);
-
-        versionControl.saveVersionSnapshot(snapshot);
-        lastSnapshotTime = currentTime;  // 更新最后一次保存时间
+        String oldPath = event.getFile().getPath();
+        String newPath = event.getNewParent().getPath() + "/" + event.getFile().getName();
+        LOGGER.info("文件移动事件触发：" + oldPath + " -> " + newPath);
+        changeSnapshotsPath(event.getFile(), oldPath, newPath);
     }
 
-    // 保存快照的虚拟文件方法
-    private void saveSnapshotForVirtualFile(VirtualFile file, String operation) {
-        if (file == null) {
-            LOGGER.warning("VirtualFile 为 null，跳过快照。");
-            return;
+    // 改名和移动只修改存储中的路径，由写线程执行，不阻塞 VFS 线程；目录只提交一次操作
+    private void changeSnapshotsPath(VirtualFile file, String oldPath, String newPath) {
+        forgetCapturedStamps(oldPath, file.isDirectory());
+        if (file.isDirectory()) {
+            versionControl.changeSnapshotsPathForDirectory(oldPath, newPath);
+        } else {
+            versionControl.changeSnapshotsPathForFile(oldPath, newPath);
         }
+    }
 
-        long currentTime = System.currentTimeMillis();
-        // 检查是否距离上次保存时间过短（防止短时间内生成多个快照）
-        if (currentTime - lastSnapshotTime < SNAPSHOT_INTERVAL_MS) {
-            LOGGER.info("短时间内不重复生成快照");
+    // 文件删除事件
+    @Override
+    public void beforeFileDeletion(VirtualFileEvent event) {
+        if (!belongsToProject(event.getFile())) {
             return;
         }
-
-        // 对于删除操作，不读取文件内容，只保存文件路径
-        String snapshotContent;
-        if ("删除".equals(operation)) {
-            System.out.println("gyygyygyygyy");
-            System.out.println(file.getPath());
-            System.out.println("gyygyygyygyy");
-            versionControl.deleteSnapshotsForFile(file.getPath());
-            System.out.println("ywqywqywqywq");
-            snapshotContent = "文件已被删除：" + file.getPath();
+        LOGGER.info("文件删除事件触发：" + event.getFile().getPath());
+        VirtualFile file = event.getFile();
+        String path = file.getPath();
+        // 删除只在存储中记一条墓碑，宽限期内文件重新出现还能恢复历史
+        if (file.isDirectory()) {
+            // 目录删除时 VFS 只通知目录本身，其下的文件在这里一起处理
+            scheduler.cancelUnder(path);
+            forgetCapturedStamps(path, true);
+            versionControl.deleteSnapshotsForDirectory(path);
         } else {
-            // 对于其他操作，仍然读取文件内容
-            byte[] content;
-            try {
-                content = file.contentsToByteArray();
-            } catch (java.io.IOException e) {
-                LOGGER.severe("无法读取文件内容：" + file.getPath());
-                return;
-            }
-            snapshotContent = "文件操作: " + operation + "\n文件路径: " + file.getPath() + "\n文件内容:\n" + new String(content);
+            scheduler.cancel(file); // 文件已删除，不再保存等待中的快照
+            forgetCapturedStamps(path, false);
+            versionControl.deleteSnapshotsForFile(path);
         }
+    }
 
-        // 获取项目的根目录
-        VirtualFile baseDir = ProjectUtil.guessProjectDir(project);
-        if (baseDir == null) {
-            LOGGER.severe("项目根目录为空，无法保存快照。");
-            return;
+    // 清除文件（或目录下所有文件）记住的修改戳
+    private void forgetCapturedStamps(String path, boolean directory) {
+        if (directory) {
+            String prefix = path + "/";
+            synchronized (capturedStamps) {
+                capturedStamps.keySet().removeIf(p -> p.startsWith(prefix));
+            }
+        } else {
+            capturedStamps.remove(path);
         }
+    }
 
-        // 创建 snapshots 目录
-        File snapshotDir = new File(baseDir.getPath(), "snapshots");
-        if (!snapshotDir.exists() && !snapshotDir.mkdirs()) {
-            LOGGER.severe("创建快照目录失败。");
+    // 文件或目录创建事件（包括撤销删除）：恢复宽限期内被删除的历史
+    @Override
+    public void fileCreated(VirtualFileEvent event) {
+        if (!belongsToProject(event.getFile())) {
             return;
         }
-
-        // 生成快照文件路径
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss"));
-        long thistimestamp = System.currentTimeMillis();
-        String name = file.getName() + "-" + thistimestamp;
-
-        Snapshot snapshot = new Snapshot(name, file.getPath(), snapshotContent.getBytes(), thistimestamp);
-
-        versionControl.saveVersionSnapshot(snapshot);
-        lastSnapshotTime = currentTime;  // 更新最后一次保存时间
-    }
-
-    // 移除 VFS 监听器
-    public void removeListener() {
-        VirtualFileManager.getInstance().removeVirtualFileListener(this);
+        versionControl.restoreDeletedSnapshots(event.getFile().getPath(), event.getFile().isDirectory());
     }
 }
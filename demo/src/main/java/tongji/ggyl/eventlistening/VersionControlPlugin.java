@@ -8,14 +8,13 @@ import com.intellij.openapi.project.ProjectUtil;
 import org.jetbrains.annotations.NotNull;
 import kotlin.coroutines.Continuation;
 import kotlin.Unit;
-import tongji.ggyl.versioncontrol.VersionControlImpl;
+import tongji.ggyl.versioncontrol.VersionControl;
 
 import java.io.File;
 import java.util.logging.Logger;
 
 //实现 ProjectActivity 接口，表示这是一个在项目活动生命周期中执行的插件
 public class VersionControlPlugin implements ProjectActivity {
-    private static VersionControlImpl versionControl;
     private static final Logger logger = Logger.getLogger(VersionControlPlugin.class.getName()); //用于记录日志信息
 
     //实现 execute 方法。在项目活动时被调用，接收当前项目和 Kotlin 的 Continuation 对象。
@@ -35,18 +34,17 @@ public class VersionControlPlugin implements ProjectActivity {
         }
         else {
             logger.severe("项目根目录为空，无法创建快照目录");
+            return Unit.INSTANCE;
         }
-        versionControl = new VersionControlImpl(project);
+        // 每个项目的存储由项目级服务持有；在后台的启动活动中打开，不阻塞 EDT
+        SnapshotService service = SnapshotService.getInstance(project);
+        VersionControl versionControl = service.getVersionControl();
 
-        // 注册PSI监听器，监听代码结构变化，并传入一个Disposable，确保资源释放
-        PsiManager.getInstance(project).addPsiTreeChangeListener(new VersionControlListener(project,versionControl), project);
+        // 注册PSI监听器，监听代码结构变化；监听器注册在服务之下，项目关闭时先于存储释放
+        VersionControlListener listener = new VersionControlListener(project, versionControl, service);
+        PsiManager.getInstance(project).addPsiTreeChangeListener(listener, service);
         logger.info("为项目注册了 PSI 树变化监听器：" + project.getName());
 
-
         return Unit.INSTANCE;
     }
-    public static VersionControlImpl getVersionControl() {
-        return versionControl;
-    }
-
 }
@@ -0,0 +1,98 @@
+package tongji.ggyl.ui;
+
+import com.github.difflib.patch.DeltaType;
+
+import javax.swing.text.*;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * DiffDocuments 在后台线程上一次性构建比较视图左右两侧的文档：全部文本拼好后只插入一次，
+ * 每个差异块只设置一次样式，行首位置在拼接时顺带记下，不再逐行插入、逐行查找行首。
+ * 文档交给 JTextPane 之前不属于任何组件，可以不在 EDT 上构建。
+ */
+final class DiffDocuments {
+    private static final AttributeSet TEXT = style(Color.WHITE, null);
+    private static final AttributeSet INSERTED = style(Color.BLACK, Color.GREEN);
+    private static final AttributeSet CHANGED = style(Color.BLACK, Color.YELLOW);
+    private static final AttributeSet DELETED = style(Color.BLACK, Color.RED);
+
+    final StyledDocument left;  // 没有上一版本时为 null
+    final StyledDocument right;
+
+    private DiffDocuments(StyledDocument left, StyledDocument right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    static DiffDocuments build(SnapshotDiff diff) {
+        List<String> oldLines = diff.getOldLines();
+        List<String> newLines = diff.getNewLines();
+        if (oldLines == null) {
+            return new DiffDocuments(null, document(newLines, newLines.size(), new int[newLines.size() + 1]));
+        }
+        // 两边补齐到相同行数，左右逐行对照
+        int rows = Math.max(oldLines.size(), newLines.size());
+        int[] leftStarts = new int[rows + 1];
+        int[] rightStarts = new int[rows + 1];
+        StyledDocument left = document(oldLines, rows, leftStarts);
+        StyledDocument right = document(newLines, rows, rightStarts);
+        for (SnapshotDiff.Block block : diff.getBlocks()) {
+            if (block.getType() == DeltaType.INSERT) {
+                // 使用绿色标记新文件增加的部分
+                highlight(right, rightStarts, block.getNewStart(), block.getNewCount(), INSERTED);
+            } else if (block.getType() == DeltaType.CHANGE) {
+                // 使用黄色标记改动的部分
+                highlight(left, leftStarts, block.getOldStart(), block.getOldCount(), CHANGED);
+                highlight(right, rightStarts, block.getNewStart(), block.getNewCount(), CHANGED);
+            } else if (block.getType() == DeltaType.DELETE) {
+                // 使用红色标记旧文件删除的部分
+                highlight(left, leftStarts, block.getOldStart(), block.getOldCount(), DELETED);
+            }
+        }
+        return new DiffDocuments(left, right);
+    }
+
+    // 拼接 rows 行文本（不足的补空行）一次插入，lineStarts 记录每行的起始偏移，最后一项为总长度
+    private static StyledDocument document(List<String> lines, int rows, int[] lineStarts) {
+        int length = 0;
+        for (String line : lines) {
+            length += line.length() + 1;
+        }
+        StringBuilder text = new StringBuilder(length + Math.max(0, rows - lines.size()));
+        for (int i = 0; i < rows; i++) {
+            lineStarts[i] = text.length();
+            if (i < lines.size()) {
+                text.append(lines.get(i));
+            }
+            text.append('\n');
+        }
+        lineStarts[rows] = text.length();
+        StyledDocument document = new DefaultStyledDocument();
+        try {
+            document.insertString(0, text.toString(), TEXT);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e); // 向空文档的 0 位置插入不会失败
+        }
+        return document;
+    }
+
+    // 整个差异块一次设置样式，不包括块最后一行的换行符
+    private static void highlight(StyledDocument document, int[] lineStarts, int start, int count, AttributeSet style) {
+        if (count <= 0) {
+            return;
+        }
+        int from = lineStarts[start];
+        int to = lineStarts[start + count] - 1;
+        document.setCharacterAttributes(from, to - from, style, true);
+    }
+
+    private static AttributeSet style(Color foreground, Color background) {
+        SimpleAttributeSet attributes = new SimpleAttributeSet();
+        StyleConstants.setForeground(attributes, foreground);
+        if (background != null) {
+            StyleConstants.setBackground(attributes, background); // 设置背景颜色
+        }
+        return attributes;
+    }
+}
@@ -0,0 +1,42 @@
+package tongji.ggyl.ui;
+
+import tongji.ggyl.versioncontrol.SnapshotMeta;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * SnapshotCellRenderer 用两个标签分两行显示快照的时间和文件名，直接读取 SnapshotMeta 的字段，
+ * 不再拼接和拆分字符串，也不生成 HTML。值为 null 表示该页还在加载。
+ */
+public class SnapshotCellRenderer extends JPanel implements ListCellRenderer<SnapshotMeta> {
+    private static final Color TIMESTAMP_COLOR = new Color(0x888888);
+    private final JLabel timestampLabel = new JLabel();
+    private final JLabel nameLabel = new JLabel();
+
+    public SnapshotCellRenderer() {
+        super(new GridLayout(2, 1));
+        setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        timestampLabel.setForeground(TIMESTAMP_COLOR);
+        timestampLabel.setFont(timestampLabel.getFont().deriveFont(11f));
+        nameLabel.setFont(nameLabel.getFont().deriveFont(11f));
+        add(timestampLabel);
+        add(nameLabel);
+        setOpaque(true);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends SnapshotMeta> list, SnapshotMeta value, int index,
+                                                  boolean isSelected, boolean cellHasFocus) {
+        if (value == null) {
+            timestampLabel.setText("Loading...");
+            nameLabel.setText(" ");
+        } else {
+            timestampLabel.setText(value.getTimestamp());
+            nameLabel.setText(value.getFileNameWithoutTimestamp());
+        }
+        setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+        nameLabel.setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+        return this;
+    }
+}
@@ -0,0 +1,52 @@
+package tongji.ggyl.ui;
+
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SnapshotContentCache 缓存最近读取过的快照内容，按最近使用淘汰，总字节数不超过上限。
+ * 列表只加载元数据，比较视图需要内容时才通过 VersionControl.loadContent 读取。
+ */
+public class SnapshotContentCache {
+    private final VersionControl versionControl;
+    private final long maxBytes;
+    private final LinkedHashMap<Long, byte[]> contents = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public SnapshotContentCache(VersionControl versionControl, long maxBytes) {
+        this.versionControl = versionControl;
+        this.maxBytes = maxBytes;
+    }
+
+    // 读取快照内容，缓存未命中时从存储加载；快照不存在时返回 null
+    public synchronized byte[] get(long snapshotId) {
+        byte[] content = contents.get(snapshotId);
+        if (content != null) {
+            return content;
+        }
+        content = versionControl.loadContent(snapshotId);
+        if (content != null) {
+            contents.put(snapshotId, content);
+            totalBytes += content.length;
+            evict();
+        }
+        return content;
+    }
+
+    public synchronized void clear() {
+        contents.clear();
+        totalBytes = 0;
+    }
+
+    // 淘汰最久未使用的内容，至少保留最新放入的一项
+    private void evict() {
+        Iterator<Map.Entry<Long, byte[]>> it = contents.entrySet().iterator();
+        while (totalBytes > maxBytes && contents.size() > 1 && it.hasNext()) {
+            totalBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+}
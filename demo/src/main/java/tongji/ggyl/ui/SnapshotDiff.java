@@ -0,0 +1,74 @@
+package tongji.ggyl.ui;
+
+import com.github.difflib.patch.DeltaType;
+
+import java.util.List;
+
+/**
+ * SnapshotDiff 是两个快照的比较结果：两边按行切分的内容和按位置升序排列的差异块。
+ * 由 SnapshotDiffService 在后台算好并缓存，比较视图只负责显示。
+ */
+public final class SnapshotDiff {
+    private final List<String> oldLines; // 为 null 表示没有上一版本
+    private final List<String> newLines;
+    private final List<Block> blocks;
+
+    // 一处差异：旧版本从 oldStart 开始的 oldCount 行对应新版本从 newStart 开始的 newCount 行
+    public static final class Block {
+        private final int oldStart;
+        private final int oldCount;
+        private final int newStart;
+        private final int newCount;
+
+        Block(int oldStart, int oldCount, int newStart, int newCount) {
+            this.oldStart = oldStart;
+            this.oldCount = oldCount;
+            this.newStart = newStart;
+            this.newCount = newCount;
+        }
+
+        // 只有新增的行为 INSERT，只有删除的行为 DELETE，两边都有为 CHANGE
+        public DeltaType getType() {
+            return oldCount == 0 ? DeltaType.INSERT : newCount == 0 ? DeltaType.DELETE : DeltaType.CHANGE;
+        }
+
+        public int getOldStart() {
+            return oldStart;
+        }
+
+        public int getOldCount() {
+            return oldCount;
+        }
+
+        public int getNewStart() {
+            return newStart;
+        }
+
+        public int getNewCount() {
+            return newCount;
+        }
+    }
+
+    SnapshotDiff(List<String> oldLines, List<String> newLines, List<Block> blocks) {
+        this.oldLines = oldLines;
+        this.newLines = newLines;
+        this.blocks = blocks;
+    }
+
+    public List<String> getOldLines() {
+        return oldLines;
+    }
+
+    public List<String> getNewLines() {
+        return newLines;
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    // 缓存淘汰时按行数估算大小
+    int weight() {
+        return (oldLines == null ? 0 : oldLines.size()) + newLines.size();
+    }
+}
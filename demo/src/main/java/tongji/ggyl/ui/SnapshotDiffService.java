@@ -0,0 +1,234 @@
+package tongji.ggyl.ui;
+
+import com.github.difflib.DiffUtils;
+import com.github.difflib.patch.AbstractDelta;
+import tongji.ggyl.versioncontrol.LineChange;
+import tongji.ggyl.versioncontrol.SnapshotMeta;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SnapshotDiffService 计算并缓存两个快照之间的差异，在历史中来回切换时不再重复计算。
+ * 结果按 (旧快照 id, 新快照 id) 缓存，按最近使用淘汰，总行数不超过上限。
+ * 计算顺序：存储中已有以旧版本为基准的补丁时直接使用；否则先去掉相同的首尾行，把剩下的行映射为整数编号再比较；
+ * 中间部分超过 maxDiffLines 行时不再逐行比较，整段标为修改。
+ */
+public class SnapshotDiffService {
+    private static final int DEFAULT_MAX_DIFF_LINES = 20000;
+
+    private final VersionControl versionControl;
+    private final long maxCachedLines;
+    private final int maxDiffLines;
+    private final LinkedHashMap<Key, SnapshotDiff> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedLines = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong storedDeltas = new AtomicLong();
+    private final AtomicLong computed = new AtomicLong();
+    private final AtomicLong coarse = new AtomicLong();
+
+    private static final class Key {
+        final long oldId;
+        final long newId;
+
+        Key(long oldId, long newId) {
+            this.oldId = oldId;
+            this.newId = newId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).oldId == oldId && ((Key) o).newId == newId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(oldId) * 31 + Long.hashCode(newId);
+        }
+    }
+
+    public SnapshotDiffService(VersionControl versionControl, long maxCachedLines) {
+        this(versionControl, maxCachedLines, DEFAULT_MAX_DIFF_LINES);
+    }
+
+    public SnapshotDiffService(VersionControl versionControl, long maxCachedLines, int maxDiffLines) {
+        this.versionControl = versionControl;
+        this.maxCachedLines = maxCachedLines;
+        this.maxDiffLines = maxDiffLines;
+    }
+
+    /**
+     * 比较 older 和 newer 两个快照，older 为 null 表示没有上一版本。
+     * 内容由调用者读取（通常来自 SnapshotContentCache），缓存命中时不会用到。
+     */
+    public SnapshotDiff diff(SnapshotMeta older, byte[] oldContent, SnapshotMeta newer, byte[] newContent) {
+        Key key = new Key(older == null ? -1 : older.getId(), newer.getId());
+        synchronized (this) {
+            SnapshotDiff cached = cache.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        SnapshotDiff diff = compute(older, oldContent, newer, newContent);
+        synchronized (this) {
+            if (cache.put(key, diff) == null) {
+                cachedLines += diff.weight();
+            }
+            evict();
+        }
+        return diff;
+    }
+
+    private SnapshotDiff compute(SnapshotMeta older, byte[] oldContent, SnapshotMeta newer, byte[] newContent) {
+        List<String> newLines = splitLines(newContent);
+        if (older == null || oldContent == null) {
+            return new SnapshotDiff(null, trimLastLine(newLines), Collections.emptyList());
+        }
+        List<String> oldLines = splitLines(oldContent);
+        List<SnapshotDiff.Block> blocks = null;
+        List<LineChange> stored = versionControl.getStoredChanges(older.getId(), newer.getId());
+        if (stored != null) {
+            blocks = fromChanges(stored);
+            storedDeltas.incrementAndGet();
+        }
+        if (blocks == null) {
+            blocks = diffLines(oldLines, newLines);
+        }
+        // 末尾换行切出的空行不显示，落在它上面的差异一起截掉
+        List<String> shownOld = trimLastLine(oldLines);
+        List<String> shownNew = trimLastLine(newLines);
+        return new SnapshotDiff(shownOld, shownNew, clip(blocks, shownOld.size(), shownNew.size()));
+    }
+
+    // 补丁只记录旧版本中的位置，新版本中的位置按前面各块的行数差推算
+    private static List<SnapshotDiff.Block> fromChanges(List<LineChange> changes) {
+        List<SnapshotDiff.Block> blocks = new ArrayList<>(changes.size());
+        int shift = 0;
+        for (LineChange change : changes) {
+            blocks.add(new SnapshotDiff.Block(change.getPosition(), change.getOldCount(),
+                    change.getPosition() + shift, change.getNewCount()));
+            shift += change.getNewCount() - change.getOldCount();
+        }
+        return blocks;
+    }
+
+    private List<SnapshotDiff.Block> diffLines(List<String> oldLines, List<String> newLines) {
+        // 行映射为整数编号，之后的比较都是整数比较
+        Map<String, Integer> ids = new HashMap<>();
+        int[] oldIds = intern(oldLines, ids);
+        int[] newIds = intern(newLines, ids);
+        int prefix = 0;
+        while (prefix < oldIds.length && prefix < newIds.length && oldIds[prefix] == newIds[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldIds.length - prefix && suffix < newIds.length - prefix
+                && oldIds[oldIds.length - 1 - suffix] == newIds[newIds.length - 1 - suffix]) {
+            suffix++;
+        }
+        int oldCount = oldIds.length - prefix - suffix;
+        int newCount = newIds.length - prefix - suffix;
+        List<SnapshotDiff.Block> blocks = new ArrayList<>();
+        if (oldCount == 0 && newCount == 0) {
+            return blocks;
+        }
+        if (oldCount == 0 || newCount == 0 || oldCount + newCount > maxDiffLines) {
+            // 只有增删，或者太大不值得逐行比较：整段作为一块
+            if (oldCount != 0 && newCount != 0) {
+                coarse.incrementAndGet();
+            }
+            blocks.add(new SnapshotDiff.Block(prefix, oldCount, prefix, newCount));
+            return blocks;
+        }
+        computed.incrementAndGet();
+        List<Integer> oldMiddle = boxed(oldIds, prefix, oldCount);
+        List<Integer> newMiddle = boxed(newIds, prefix, newCount);
+        for (AbstractDelta<Integer> delta : DiffUtils.diff(oldMiddle, newMiddle).getDeltas()) {
+            blocks.add(new SnapshotDiff.Block(prefix + delta.getSource().getPosition(), delta.getSource().size(),
+                    prefix + delta.getTarget().getPosition(), delta.getTarget().size()));
+        }
+        return blocks;
+    }
+
+    private static int[] intern(List<String> lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            Integer id = ids.get(lines.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    private static List<Integer> boxed(int[] ids, int from, int count) {
+        List<Integer> list = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            list.add(ids[i]);
+        }
+        return list;
+    }
+
+    // 与存储中的补丁使用相同的行号：按 "\n" 切分并保留末尾空行
+    private static List<String> splitLines(byte[] content) {
+        return Arrays.asList(new String(content, StandardCharsets.UTF_8).split("\n", -1));
+    }
+
+    private static List<String> trimLastLine(List<String> lines) {
+        int size = lines.size();
+        return size > 0 && lines.get(size - 1).isEmpty() ? lines.subList(0, size - 1) : lines;
+    }
+
+    private static List<SnapshotDiff.Block> clip(List<SnapshotDiff.Block> blocks, int oldSize, int newSize) {
+        List<SnapshotDiff.Block> clipped = new ArrayList<>(blocks.size());
+        for (SnapshotDiff.Block block : blocks) {
+            int oldCount = Math.max(0, Math.min(block.getOldCount(), oldSize - block.getOldStart()));
+            int newCount = Math.max(0, Math.min(block.getNewCount(), newSize - block.getNewStart()));
+            if (oldCount == block.getOldCount() && newCount == block.getNewCount()) {
+                clipped.add(block);
+            } else if (oldCount > 0 || newCount > 0) {
+                clipped.add(new SnapshotDiff.Block(block.getOldStart(), oldCount, block.getNewStart(), newCount));
+            }
+        }
+        return clipped;
+    }
+
+    // 淘汰最久未使用的结果，至少保留最新放入的一项
+    private void evict() {
+        Iterator<SnapshotDiff> it = cache.values().iterator();
+        while (cachedLines > maxCachedLines && cache.size() > 1 && it.hasNext()) {
+            cachedLines -= it.next().weight();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        cachedLines = 0;
+    }
+
+    // 缓存命中次数
+    public long getHits() {
+        return hits.get();
+    }
+
+    // 直接使用存储中补丁的次数
+    public long getStoredDeltaCount() {
+        return storedDeltas.get();
+    }
+
+    // 逐行比较的次数
+    public long getComputedCount() {
+        return computed.get();
+    }
+
+    // 因为太大而整段标为修改的次数
+    public long getCoarseCount() {
+        return coarse.get();
+    }
+}
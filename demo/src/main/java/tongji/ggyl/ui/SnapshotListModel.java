@@ -0,0 +1,126 @@
+package tongji.ggyl.ui;
+
+import com.intellij.openapi.application.ApplicationManager;
+import tongji.ggyl.versioncontrol.SnapshotMeta;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import javax.swing.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * SnapshotListModel 是按需分页的快照列表模型：只记录总数，列表滚动到哪一页才在后台读取那一页的元数据。
+ * 页面未加载完时 getElementAt 返回 null，由渲染器显示占位文字；加载完成后通知列表重绘该页。
+ * 读取失败的页在本次过滤条件下不再重试，直到下次 reload。
+ * 除后台读取外，所有方法都在 EDT 上调用。
+ */
+public class SnapshotListModel extends AbstractListModel<SnapshotMeta> {
+    private static final Logger logger = Logger.getLogger(SnapshotListModel.class.getName());
+    static final int PAGE_SIZE = 200;
+    private static final int MAX_CACHED_PAGES = 32;
+
+    private final VersionControl versionControl;
+    private final Executor executor;
+    private String path;      // 当前过滤的文件路径，null 表示全部文件
+    private int size = 0;
+    private long generation = 0; // 过滤条件变化后丢弃旧的分页结果
+    private final Set<Integer> loading = new HashSet<>();
+    private final Set<Integer> failed = new HashSet<>(); // 当前 generation 中读取失败的页
+    private final LinkedHashMap<Integer, SnapshotMeta[]> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, SnapshotMeta[]> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+
+    public SnapshotListModel(VersionControl versionControl, Executor executor) {
+        this.versionControl = versionControl;
+        this.executor = executor;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public SnapshotMeta getElementAt(int index) {
+        int page = index / PAGE_SIZE;
+        SnapshotMeta[] metas = pages.get(page);
+        if (metas == null) {
+            requestPage(page);
+            return null;
+        }
+        int offset = index % PAGE_SIZE;
+        return offset < metas.length ? metas[offset] : null;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    // 切换到另一个文件（null 为全部文件），在后台查询总数后刷新列表
+    public void reload(String newPath) {
+        long current = ++generation;
+        executor.execute(() -> {
+            int count = versionControl.countSnapshots(newPath);
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (current == generation) {
+                    reset(newPath, count);
+                }
+            });
+        });
+    }
+
+    private void reset(String newPath, int newSize) {
+        int oldSize = size;
+        path = newPath;
+        size = 0;
+        pages.clear();
+        loading.clear();
+        failed.clear();
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        size = newSize;
+        if (newSize > 0) {
+            fireIntervalAdded(this, 0, newSize - 1);
+        }
+    }
+
+    private void requestPage(int page) {
+        if (failed.contains(page) || !loading.add(page)) {
+            return;
+        }
+        long current = generation;
+        String pagePath = path;
+        executor.execute(() -> {
+            SnapshotMeta[] metas = null;
+            try {
+                metas = versionControl.getSnapshotMetas(pagePath, page * PAGE_SIZE, PAGE_SIZE)
+                        .toArray(new SnapshotMeta[0]);
+            } catch (RuntimeException e) {
+                logger.warning("读取快照列表第 " + page + " 页失败: " + e);
+            }
+            SnapshotMeta[] loaded = metas;
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (current != generation) {
+                    return;
+                }
+                loading.remove(page);
+                if (loaded == null) {
+                    // 记下失败的页，否则每次重绘都会再读一次
+                    failed.add(page);
+                    return;
+                }
+                pages.put(page, loaded);
+                int from = page * PAGE_SIZE;
+                int to = Math.min(size, from + PAGE_SIZE) - 1;
+                if (to >= from) {
+                    fireContentsChanged(this, from, to);
+                }
+            });
+        });
+    }
+}
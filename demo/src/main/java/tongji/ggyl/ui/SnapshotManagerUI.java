@@ -1,38 +1,75 @@
 package tongji.ggyl.ui;
 
-import com.github.difflib.DiffUtils;
-import com.github.difflib.patch.AbstractDelta;
-import com.github.difflib.patch.Patch;
-import com.github.difflib.patch.Chunk;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
 import com.intellij.ui.components.JBList;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
-import javax.swing.text.*;
+import javax.swing.text.Element;
 import java.awt.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.github.difflib.patch.DeltaType;
+import tongji.ggyl.versioncontrol.SnapshotMeta;
 import tongji.ggyl.versioncontrol.VersionControl;
-import tongji.ggyl.eventlistening.Snapshot;
-import tongji.ggyl.versioncontrol.VersionControlImpl;
 
 public class SnapshotManagerUI {
-    private final VersionControlImpl versionControl;
+    private final Project project;
+    private final VersionControl versionControl;
     private final JFrame frame = new JFrame("Version Control Manager");
-    private JList<String> snapshotList; // 显示快照信息的列表控件
-    private Snapshot[] snapshots; // 存放快照信息
+    private JBList<SnapshotMeta> snapshotList; // 显示快照信息的列表控件
+    // 列表按页从存储读取元数据，不再一次性加载全部快照
+    private final ExecutorService listExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Snapshot List", 1);
+    private final SnapshotListModel listModel;
+    private final JComboBox<String> fileDropdown = new JComboBox<>();
+    private final SnapshotContentCache contentCache; // 最近查看过的快照内容
+    private final SnapshotDiffService diffService;   // 最近比较过的结果，来回切换时不重新计算
+    private final SnapshotSearchPanel searchPanel;   // 在全部历史中搜索文本
     private final JTextPane leftPane = new JTextPane(); // 左侧用于显示对比文件
     private final JTextPane rightPane = new JTextPane(); // 右侧用于显示选择的快照文件
-
-    public SnapshotManagerUI(VersionControlImpl versionControl) {
+    // 读取内容和计算差异都在后台执行，同一时间只保留最新一次选择的结果
+    private final ExecutorService comparisonExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Snapshot Comparison", 1);
+    private final AtomicLong comparisonGeneration = new AtomicLong();
+    private Future<?> pendingComparison;
+    private volatile ProgressIndicator loadIndicator;
+
+    public SnapshotManagerUI(Project project, VersionControl versionControl) {
+        this.project = project;
         this.versionControl = versionControl;
+        this.contentCache = new SnapshotContentCache(versionControl, 64L * 1024 * 1024);
+        this.diffService = new SnapshotDiffService(versionControl, 2_000_000);
+        this.listModel = new SnapshotListModel(versionControl, listExecutor);
+        this.searchPanel = new SnapshotSearchPanel(versionControl,
+                hit -> refreshComparison(hit.getMeta(), hit.getLines().get(0).getNumber()));
         frame.setSize(1000, 600); // 调整窗口大小
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         frame.setLayout(new BorderLayout());
-        frame.setVisible(true);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                // 窗口关闭后取消仍在进行的加载和比较。不能中断线程：中断读取段文件的线程会关闭存储的 FileChannel，
+                // 进行中的任务由 generation 丢弃结果
+                ProgressIndicator indicator = loadIndicator;
+                if (indicator != null) {
+                    indicator.cancel();
+                }
+                comparisonGeneration.incrementAndGet();
+                comparisonExecutor.shutdown();
+                listExecutor.shutdown();
+                searchPanel.dispose();
+                contentCache.clear();
+                diffService.clear();
+            }
+        });
 
         // 创建快照列表
         initFileListView();
@@ -61,243 +98,151 @@ public class SnapshotManagerUI {
         contentPanel.add(leftPanel); // 左侧面板
         contentPanel.add(rightPanel); // 右侧面板
         frame.add(contentPanel, BorderLayout.CENTER); // 把双栏布局添加到主界面
+        frame.setVisible(true);
 
 
         snapshotList.addListSelectionListener(e -> {
-            int selectedIndex = snapshotList.getSelectedIndex();
-            String selectedValue = (String) snapshotList.getSelectedValue();
-
-
-            if (selectedIndex != -1 && selectedValue!=null) {
-                SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-                try {
-                    Date date = dateFormat.parse(selectedValue.split(", ")[0]);
-                    long timestampMillis = date.getTime();
-                    for (Snapshot snapshot : snapshots) {
-                        if (Math.abs(snapshot.getRealTimestamp() - timestampMillis) < 1000) {
-                            refreshComparison(snapshot);
-                            break; // 找到对应的 Snapshot 后停止遍历
-                        }
-                    }
-                } catch (ParseException ex) {
-                    ex.printStackTrace();
-                }
+            if (e.getValueIsAdjusting()) {
+                return;
+            }
+            // 列表元素就是快照元数据；所在页还没加载完时为 null
+            SnapshotMeta selected = snapshotList.getSelectedValue();
+            if (selected != null) {
+                refreshComparison(selected, -1);
             }
         });
+
+        // initCombo 选中 "All" 时已经加载了列表
+        loadSnapshots();
     }
-    // 初始化快照列表
+    // 初始化快照列表，数据由 SnapshotListModel 按页在后台加载
     private void initFileListView(){
         JPanel listPanel = new JPanel(new BorderLayout());
         listPanel.setPreferredSize(new Dimension(250, listPanel.getPreferredSize().height));
-        snapshots = versionControl.getAllSnapshots().toArray(new Snapshot[0]);
-        // 按照时间戳进行排序
-        Arrays.sort(snapshots, (a, b) -> {
-            String timestampA = a.getTimestamp();
-            String timestampB = b.getTimestamp();
+        snapshotList = new JBList<>(listModel);
+        snapshotList.getEmptyText().setText("Loading snapshots...");
+        snapshotList.setCellRenderer(new SnapshotCellRenderer());
+        // 固定行高和宽度，避免 JList 为计算尺寸遍历（并加载）所有行
+        snapshotList.setPrototypeCellValue(new SnapshotMeta(0, "PrototypeSnapshotFileName.java", "", 0, 0));
+        // 初始化下拉框
+        initCombo(listPanel);
+        // 快照列表放在左侧，内容显示在右侧的双栏；搜索放在快照列表旁边的标签页
+        listPanel.add(new JScrollPane(snapshotList), BorderLayout.CENTER);
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("History", listPanel);
+        tabs.addTab("Search", searchPanel);
+        frame.add(tabs, BorderLayout.WEST);
 
-            try {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-                Date dateA = sdf.parse(timestampA);
-                Date dateB = sdf.parse(timestampB);
-                return dateB.compareTo(dateA); // 从早到晚排序
-            } catch (ParseException e) {
-                e.printStackTrace();
-                return 0; // 出现异常时不改变顺序
-            }
-        });
-        snapshotList = new JBList<>(getSnapshotString(snapshots));
-        // 设置自定义渲染器
-        snapshotList.setCellRenderer(new DefaultListCellRenderer() {
-            @Override
-            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
-                // 使用默认的渲染组件
-                JLabel label = (JLabel) super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+    }
 
-                // 解析数据并设置两行文字
-                String[] parts = value.toString().split(", ");
-                String timestamp = parts[0];
-                String fileName = parts[1];
+    // 在后台读取有快照的文件列表填入下拉框，可在状态栏取消；列表内容由 listModel 按页加载
+    private void loadSnapshots() {
+        new Task.Backgroundable(project, "Loading snapshots", true) {
+            private final List<String> fileNames = new ArrayList<>();
 
-                label.setText("<html><span style='font-size: 11px; color: #888888;'>" + timestamp + "</span><br><span style='font-size: 11px;'>" + fileName + "</span></html>");
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                loadIndicator = indicator;
+                indicator.setText("Loading snapshot history");
+                String basePath = versionControl.getProjectBasePath().replace("/snapshots","");
+                for (String path : versionControl.getTrackedFilePaths()) {
+                    indicator.checkCanceled();
+                    fileNames.add(path.replace(basePath,"."));
+                }
+            }
 
-                return label;
+            @Override
+            public void onSuccess() {
+                // 添加所有不重复的文件名到下拉框
+                for (String fileName : fileNames) {
+                    fileDropdown.addItem(fileName);
+                }
             }
-        });
-        // 初始化下拉框
-        initCombo(listPanel);
-        // 快照列表放在左侧，内容显示在右侧的双栏
-        listPanel.add(new JScrollPane(snapshotList), BorderLayout.CENTER);
-        frame.add(listPanel, BorderLayout.WEST);
 
+            @Override
+            public void onFinished() {
+                loadIndicator = null;
+                snapshotList.getEmptyText().setText("No snapshots");
+            }
+        }.queue();
     }
-    // 初始化文件下拉选择框
+
+    // 初始化文件下拉选择框，文件名在快照加载完成后填入
     private void initCombo(JPanel listPanel){
         // 添加下拉框显示文件名
-        JComboBox<String> fileDropdown = new JComboBox<>();
         fileDropdown.addItem("All");
         fileDropdown.setPreferredSize(new Dimension(fileDropdown.getPreferredSize().width, 40));
-        Set<String> uniqueFileNames = new HashSet<>();
-        for (Snapshot snapshot : snapshots) {
-            // 显示snapshots路径名
-            String basePath = versionControl.getProjectBasePath().replace("/snapshots","");
-            String fileName = snapshot.getFilePath().replace(basePath,".");
-            uniqueFileNames.add(fileName);
-        }
-        // 添加所有不重复的文件名到下拉框
-        for (String fileName : uniqueFileNames) {
-            fileDropdown.addItem(fileName);
-        }
 
         // 添加ActionListener响应选择的文件名
         fileDropdown.addActionListener(e -> {
             String selectedFileName = (String) fileDropdown.getSelectedItem();
-            if(Objects.equals(selectedFileName, "All")){
-                snapshotList.setListData(getSnapshotString(snapshots));
-            }else{
-                List<Snapshot> filteredSnapshots = new ArrayList<>();
-
-                // 过滤出所有与选中文件名匹配的快照
-                for (Snapshot snapshot : snapshots) {
-                    String selectedFilePath = versionControl.getProjectBasePath().replace("snapshots","") + selectedFileName.replace("./","");
-                    System.out.println(selectedFilePath);
-                    if (snapshot.getFilePath().equals(selectedFilePath)) {
-                        filteredSnapshots.add(snapshot);
-                    }
-                }
-                // 更新JList中的数据
-                snapshotList.setListData(getSnapshotString(filteredSnapshots.toArray(new Snapshot[0])));
+            if (selectedFileName == null) {
+                return;
             }
+            String selectedFilePath = null;
+            if (!Objects.equals(selectedFileName, "All")) {
+                selectedFilePath = versionControl.getProjectBasePath().replace("snapshots","") + selectedFileName.replace("./","");
+            }
+            // 只切换过滤条件，总数和分页都由模型在后台读取
+            listModel.reload(selectedFilePath);
         });
 
-        // 默认显示所有文件名的快照
-        snapshotList.setListData(getSnapshotString(snapshots));
-
         // 设置默认选项为 "All"
         fileDropdown.setSelectedItem("All");
         listPanel.add(fileDropdown, BorderLayout.NORTH);
     }
-    // 刷新比较显示内容
-    private void refreshComparison(Snapshot selectedSnapshot) {
-        String currentFileName = selectedSnapshot.getFilePath();
-        long currentTimestamp = selectedSnapshot.getRealTimestamp();
-
-        // 查找文件名相同且时间戳更小的快照作为上一版本
-        Snapshot previousSnapshot = null;
-        for (Snapshot snapshot : snapshots) {
-            if (snapshot.getFilePath().equals(currentFileName)
-                    && snapshot.getRealTimestamp() < currentTimestamp) {
-                if (previousSnapshot == null || snapshot.getRealTimestamp() > previousSnapshot.getRealTimestamp()) {
-                    previousSnapshot = snapshot;
-                }
-            }
-        }
-
-        if (previousSnapshot != null) {
-            // 调用显示差异内容的函数
-            displayDiff(previousSnapshot, selectedSnapshot);
-        } else {
-            leftPane.setText("This is already the earliest version. HAHA!");
-            displaySnapshotContent(selectedSnapshot);
-        }
-    }
-
-    // 显示选择的快照内容
-    private void displaySnapshotContent(Snapshot snapshot) {
-        StyledDocument rightDoc = rightPane.getStyledDocument();
-        rightPane.setText(""); // 清空右侧文本框
-
-        String[] lines = new String(snapshot.getContent()).split("\n");
-        for (String line : lines) {
-            appendTextWithStyle(line, Color.WHITE, rightDoc);
-        }
-    }
-
-    // 显示差异内容：左侧显示对比文件，右侧显示快照文件
-    private void displayDiff(Snapshot oldSnapshot, Snapshot newSnapshot) {
-        List<String> oldContent = List.of(new String(oldSnapshot.getContent()).split("\n"));
-        List<String> newContent = List.of(new String(newSnapshot.getContent()).split("\n"));
-
-        Patch<String> diff = DiffUtils.diff(oldContent, newContent);
-
-        // 清空左右两侧内容
-        StyledDocument leftDoc = leftPane.getStyledDocument();
-        StyledDocument rightDoc = rightPane.getStyledDocument();
-        leftPane.setText("");
-        rightPane.setText("");
-
-        // 遍历所有行，默认两边都是白色
-        int maxLines = Math.max(oldContent.size(), newContent.size());
-        for (int i = 0; i < maxLines; i++) {
-            String leftLine = i < oldContent.size() ? oldContent.get(i) : "";
-            String rightLine = i < newContent.size() ? newContent.get(i) : "";
-
-            // 默认将未变动部分显示为白色
-            appendTextWithStyle(leftLine, Color.WHITE, leftDoc);
-            appendTextWithStyle(rightLine, Color.WHITE, rightDoc);
+    // 刷新比较显示内容：读取内容和计算差异放到后台，过期的结果直接丢弃；focusLine 不小于 0 时滚动到快照的这一行
+    private void refreshComparison(SnapshotMeta selectedSnapshot, int focusLine) {
+        long generation = comparisonGeneration.incrementAndGet();
+        if (pendingComparison != null) {
+            pendingComparison.cancel(false); // 只取消还没开始的；不中断，理由同 windowClosed
         }
-
-        // 遍历差异的 delta 来标记变化的部分
-        for (AbstractDelta<String> delta : diff.getDeltas()) {
-            Chunk<String> originalChunk = delta.getSource();
-            Chunk<String> revisedChunk = delta.getTarget();
-            if(delta.getType() == DeltaType.INSERT){
-                // 使用绿色标记新文件增加的部分
-                highlightLine(rightDoc, revisedChunk.getPosition(), revisedChunk.getLines(), Color.GREEN);
-            } else if (delta.getType() == DeltaType.CHANGE) {
-                // 使用黄色标记改动的部分
-                highlightLine(leftDoc, originalChunk.getPosition(), originalChunk.getLines(), Color.YELLOW);
-                highlightLine(rightDoc, revisedChunk.getPosition(), revisedChunk.getLines(), Color.YELLOW);
-            } else if (delta.getType() == DeltaType.DELETE) {
-                // 使用红色标记旧文件删除的部分
-                highlightLine(leftDoc, originalChunk.getPosition(), originalChunk.getLines(), Color.RED);
+        leftPane.setText("Loading...");
+        rightPane.setText("Loading...");
+        pendingComparison = comparisonExecutor.submit(() -> {
+            if (generation != comparisonGeneration.get()) {
+                return; // 排队期间用户又选了别的快照
             }
-        }
-    }
-
-    // 高亮显示某行的颜色（在原始位置上改变颜色）
-    private void highlightLine(StyledDocument doc, int startPos, List<String> lines, Color color) {
-        SimpleAttributeSet attributeSet = new SimpleAttributeSet();
-        StyleConstants.setForeground(attributeSet, Color.BLACK);
-        StyleConstants.setBackground(attributeSet, color); // 设置背景颜色
-
-        for (int i = 0; i < lines.size(); i++) {
-            // 找到每一行的起始位置
-            int lineStart = getLineStartOffset(doc, startPos + i);
-            if (lineStart != -1) {
-                doc.setCharacterAttributes(lineStart, lines.get(i).length(), attributeSet, true);
+            // 同一文件中紧挨在所选快照之前的一版，由存储按 (时间戳, id) 二分查找
+            SnapshotMeta previousSnapshot = versionControl.getPreviousSnapshotMeta(selectedSnapshot);
+
+            // 只在这里按需读取内容
+            byte[] selectedContent = contentCache.get(selectedSnapshot.getId());
+            byte[] previousContent = previousSnapshot == null ? null : contentCache.get(previousSnapshot.getId());
+            SnapshotDiff comparison = null;
+            if (selectedContent != null && generation == comparisonGeneration.get()) {
+                comparison = diffService.diff(previousSnapshot, previousContent, selectedSnapshot, selectedContent);
             }
-        }
-    }
-
-    // 获取某一行的起始偏移位置
-    private int getLineStartOffset(StyledDocument doc, int lineNumber) {
-        Element root = doc.getDefaultRootElement();
-        if (lineNumber >= 0 && lineNumber < root.getElementCount()) {
-            return root.getElement(lineNumber).getStartOffset();
-        } else {
-            return -1; // 行号超出范围
-        }
+            // 文档也在后台一次构建好，EDT 上只替换文档
+            DiffDocuments documents = comparison == null || generation != comparisonGeneration.get()
+                    ? null : DiffDocuments.build(comparison);
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (generation != comparisonGeneration.get()) {
+                    return; // 用户已经选了别的快照
+                }
+                if (documents == null) {
+                    leftPane.setText("");
+                    rightPane.setText("Failed to load this snapshot.");
+                } else if (documents.left != null) {
+                    // 左侧显示对比文件，右侧显示快照文件
+                    leftPane.setStyledDocument(documents.left);
+                    rightPane.setStyledDocument(documents.right);
+                } else {
+                    leftPane.setText("This is already the earliest version. HAHA!");
+                    rightPane.setStyledDocument(documents.right);
+                }
+                if (documents != null && focusLine >= 0) {
+                    scrollToLine(rightPane, focusLine);
+                }
+            });
+        });
     }
 
-    // 将带有样式的文本插入到 JTextPane 中
-    private void appendTextWithStyle(String line, Color color, StyledDocument doc) {
-        SimpleAttributeSet attributeSet = new SimpleAttributeSet();
-        StyleConstants.setForeground(attributeSet, color);
-
-        try {
-            // 插入带有样式的行文本
-            doc.insertString(doc.getLength(), line + "\n", attributeSet);
-        } catch (BadLocationException e) {
-            e.printStackTrace();
-        }
-    }
-    private String[] getSnapshotString(Snapshot[] s){
-        String[] snapshotStrings = new String[s.length];
-        for (int i = 0; i < s.length; i++) {
-            String formattedTimestamp = s[i].getTimestamp();
-            String fileName = s[i].getFileNameWithoutTimestamp();
-            snapshotStrings[i] = formattedTimestamp + ", " + fileName;
+    // 把光标移到第 line 行的行首，文本框随之滚动
+    private static void scrollToLine(JTextPane pane, int line) {
+        Element root = pane.getDocument().getDefaultRootElement();
+        if (line < root.getElementCount()) {
+            pane.setCaretPosition(root.getElement(line).getStartOffset());
         }
-        return snapshotStrings;
     }
 }
@@ -0,0 +1,61 @@
+package tongji.ggyl.ui;
+
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import com.intellij.ui.table.JBTable;
+import tongji.ggyl.versioncontrol.SnapshotMetrics;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.util.Map;
+
+/**
+ * SnapshotMetricsToolWindowFactory 创建 "Snapshot Metrics" 工具窗口，每秒刷新一次 SnapshotMetrics 的各项指标。
+ * 窗口内容关闭时停止刷新。
+ */
+public class SnapshotMetricsToolWindowFactory implements ToolWindowFactory, DumbAware {
+    private static final int REFRESH_MS = 1000;
+
+    @Override
+    public void createToolWindowContent(Project project, ToolWindow toolWindow) {
+        DefaultTableModel model = new DefaultTableModel(new Object[]{"Metric", "Value"}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JBTable table = new JBTable(model);
+        refresh(model);
+
+        Content content = ContentFactory.getInstance().createContent(new JScrollPane(table), "", false);
+        toolWindow.getContentManager().addContent(content);
+
+        Timer timer = new Timer(REFRESH_MS, e -> refresh(model));
+        timer.start();
+        Disposer.register(content, timer::stop);
+    }
+
+    // 行数不变时只更新值，保留表格的选中状态
+    private static void refresh(DefaultTableModel model) {
+        Map<String, String> rows = SnapshotMetrics.get().describe();
+        if (model.getRowCount() != rows.size()) {
+            model.setRowCount(0);
+            for (Map.Entry<String, String> row : rows.entrySet()) {
+                model.addRow(new Object[]{row.getKey(), row.getValue()});
+            }
+            return;
+        }
+        int i = 0;
+        for (String value : rows.values()) {
+            if (!value.equals(model.getValueAt(i, 1))) {
+                model.setValueAt(value, i, 1);
+            }
+            i++;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package tongji.ggyl.ui;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.ui.components.JBList;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import tongji.ggyl.versioncontrol.SegmentedVersionControl;
+import tongji.ggyl.versioncontrol.SnapshotQuery;
+import tongji.ggyl.versioncontrol.SnapshotSearchHit;
+import tongji.ggyl.versioncontrol.VersionControl;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * SnapshotSearchPanel 在全部快照历史中搜索文本，按时间从新到旧列出包含它的快照和匹配的行。
+ * 搜索在后台执行，同一时间只保留最新一次搜索的结果；选中一项时交给 onSelect 显示该快照。
+ */
+public class SnapshotSearchPanel extends JPanel {
+    private static final int MAX_RESULTS = 500;
+    private static final Logger logger = Logger.getLogger(SnapshotSearchPanel.class.getName());
+
+    private final VersionControl versionControl;
+    private final JTextField queryField = new JTextField();
+    private final JCheckBox matchCaseBox = new JCheckBox("Match case");
+    private final JLabel statusLabel = new JLabel(" ");
+    private final DefaultListModel<SnapshotSearchHit> resultModel = new DefaultListModel<>();
+    private final JBList<SnapshotSearchHit> resultList = new JBList<>(resultModel);
+    private final ExecutorService searchExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Snapshot Search", 1);
+    private final AtomicLong searchGeneration = new AtomicLong();
+
+    public SnapshotSearchPanel(VersionControl versionControl, Consumer<SnapshotSearchHit> onSelect) {
+        super(new BorderLayout());
+        this.versionControl = versionControl;
+        JPanel queryPanel = new JPanel(new BorderLayout());
+        JButton searchButton = new JButton("Search");
+        queryPanel.add(queryField, BorderLayout.CENTER);
+        queryPanel.add(searchButton, BorderLayout.EAST);
+        queryPanel.add(matchCaseBox, BorderLayout.SOUTH);
+        add(queryPanel, BorderLayout.NORTH);
+
+        resultList.getEmptyText().setText("Enter text to search the snapshot history");
+        resultList.setCellRenderer(new HitRenderer());
+        add(new JScrollPane(resultList), BorderLayout.CENTER);
+        statusLabel.setFont(statusLabel.getFont().deriveFont(11f));
+        add(statusLabel, BorderLayout.SOUTH);
+
+        queryField.addActionListener(e -> search());
+        searchButton.addActionListener(e -> search());
+        resultList.addListSelectionListener(e -> {
+            SnapshotSearchHit selected = resultList.getSelectedValue();
+            if (!e.getValueIsAdjusting() && selected != null) {
+                onSelect.accept(selected);
+            }
+        });
+    }
+
+    private void search() {
+        String text = queryField.getText();
+        long generation = searchGeneration.incrementAndGet();
+        resultModel.clear();
+        if (text.isEmpty()) {
+            statusLabel.setText(" ");
+            return;
+        }
+        boolean matchCase = matchCaseBox.isSelected();
+        statusLabel.setText("Searching...");
+        searchExecutor.submit(() -> {
+            if (generation != searchGeneration.get()) {
+                return; // 排队期间又开始了新的搜索
+            }
+            long start = System.nanoTime();
+            List<SnapshotSearchHit> hits;
+            try {
+                // 只有一个搜索线程，新的搜索开始后旧的立即停止，不必等它扫描完
+                hits = versionControl.search(SnapshotQuery.all().setNewestFirst(true), text, matchCase, MAX_RESULTS,
+                        () -> generation != searchGeneration.get());
+            } catch (RuntimeException e) {
+                logger.warning("搜索快照失败: " + e.getMessage());
+                hits = null;
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            List<SnapshotSearchHit> result = hits;
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (generation != searchGeneration.get()) {
+                    return; // 已经开始了新的搜索
+                }
+                if (result == null) {
+                    statusLabel.setText("Search failed.");
+                    return;
+                }
+                for (SnapshotSearchHit hit : result) {
+                    resultModel.addElement(hit);
+                }
+                resultList.getEmptyText().setText("No matches");
+                statusLabel.setText(status(result.size(), millis));
+            });
+        });
+    }
+
+    private String status(int count, long millis) {
+        String status = (count >= MAX_RESULTS ? "First " + count : String.valueOf(count)) + " snapshots, " + millis + " ms";
+        if (versionControl instanceof SegmentedVersionControl) {
+            int backlog = ((SegmentedVersionControl) versionControl).getSearchBacklog();
+            if (backlog > 0) {
+                status += " (indexing " + backlog + " versions)";
+            }
+        }
+        return status;
+    }
+
+    // 窗口关闭时调用，让还在进行的搜索停止并丢弃结果；不中断线程，中断读取段文件的线程会关闭存储的 FileChannel
+    public void dispose() {
+        searchGeneration.incrementAndGet();
+        searchExecutor.shutdown();
+    }
+
+    // 第一行为时间和文件名，第二行为第一处匹配的行号和内容
+    private static class HitRenderer extends JPanel implements ListCellRenderer<SnapshotSearchHit> {
+        private static final Color TIMESTAMP_COLOR = new Color(0x888888);
+        private final JLabel titleLabel = new JLabel();
+        private final JLabel lineLabel = new JLabel();
+
+        HitRenderer() {
+            super(new GridLayout(2, 1));
+            setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+            titleLabel.setForeground(TIMESTAMP_COLOR);
+            titleLabel.setFont(titleLabel.getFont().deriveFont(11f));
+            lineLabel.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+            add(titleLabel);
+            add(lineLabel);
+            setOpaque(true);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends SnapshotSearchHit> list, SnapshotSearchHit value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            titleLabel.setText(value.getMeta().getTimestamp() + "  " + value.getMeta().getFileNameWithoutTimestamp());
+            SnapshotSearchHit.Line first = value.getLines().get(0);
+            String more = value.getLineCount() > 1 ? "  (+" + (value.getLineCount() - 1) + ")" : "";
+            lineLabel.setText((first.getNumber() + 1) + ": " + first.getText().trim() + more);
+            setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            lineLabel.setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+            return this;
+        }
+    }
+}
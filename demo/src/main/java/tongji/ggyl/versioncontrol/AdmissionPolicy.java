@@ -0,0 +1,178 @@
+package tongji.ggyl.versioncontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * AdmissionPolicy 决定哪些文件的修改需要生成快照，在读取文件内容之前判断。
+ * 可以按路径的 glob 模式排除文件，限制文件大小，跳过二进制文件、项目中被排除的目录和生成的源文件；
+ * 一次外部刷新（例如 git checkout 或重新生成代码）改动的文件数达到 bulkThreshold 时，这期间的修改不生成快照。
+ * 项目和生成源文件的判断需要 IDE，由监听器根据这里的开关执行。
+ */
+public class AdmissionPolicy {
+    private static final int BINARY_SCAN_CHARS = 8000; // 与 git 相同，只检查开头这么多字符
+
+    private final List<String> excludeGlobs = new ArrayList<>();
+    private final List<Pattern> excludePatterns = new ArrayList<>();
+    private long maxFileBytes = 1024 * 1024; // 0 表示不限
+    private boolean skipBinary = true;
+    private boolean skipProjectExcluded = true;
+    private boolean skipGenerated = true;
+    private int bulkThreshold = 20;          // 0 表示从不暂停
+
+    // 排除依赖目录和压缩过的脚本
+    public static AdmissionPolicy defaults() {
+        return new AdmissionPolicy()
+                .addExcludeGlob("**/node_modules/**")
+                .addExcludeGlob("**/*.min.js");
+    }
+
+    // 所有文件都生成快照
+    public static AdmissionPolicy admitAll() {
+        return new AdmissionPolicy()
+                .setMaxFileBytes(0)
+                .setSkipBinary(false)
+                .setSkipProjectExcluded(false)
+                .setSkipGenerated(false)
+                .setBulkThreshold(0);
+    }
+
+    // 路径模式，按 '/' 分隔的完整路径匹配：* 和 ? 不跨目录，** 可以跨目录，
+    // 例如 "**/build/**" 排除所有 build 目录，"**/*.log" 排除日志文件
+    public AdmissionPolicy addExcludeGlob(String glob) {
+        glob = glob.trim();
+        if (glob.isEmpty()) {
+            throw new IllegalArgumentException("路径模式不能为空");
+        }
+        excludeGlobs.add(glob);
+        excludePatterns.add(compileGlob(glob));
+        return this;
+    }
+
+    public List<String> getExcludeGlobs() {
+        return Collections.unmodifiableList(excludeGlobs);
+    }
+
+    // 解析逗号分隔的路径模式，替换已有的模式
+    public AdmissionPolicy setExcludeGlobs(String spec) {
+        excludeGlobs.clear();
+        excludePatterns.clear();
+        for (String glob : spec.split(",")) {
+            if (!glob.trim().isEmpty()) {
+                addExcludeGlob(glob);
+            }
+        }
+        return this;
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public AdmissionPolicy setMaxFileBytes(long maxFileBytes) {
+        if (maxFileBytes < 0) {
+            throw new IllegalArgumentException("文件大小上限不能为负数: " + maxFileBytes);
+        }
+        this.maxFileBytes = maxFileBytes;
+        return this;
+    }
+
+    public boolean isSkipBinary() {
+        return skipBinary;
+    }
+
+    public AdmissionPolicy setSkipBinary(boolean skipBinary) {
+        this.skipBinary = skipBinary;
+        return this;
+    }
+
+    public boolean isSkipProjectExcluded() {
+        return skipProjectExcluded;
+    }
+
+    public AdmissionPolicy setSkipProjectExcluded(boolean skipProjectExcluded) {
+        this.skipProjectExcluded = skipProjectExcluded;
+        return this;
+    }
+
+    public boolean isSkipGenerated() {
+        return skipGenerated;
+    }
+
+    public AdmissionPolicy setSkipGenerated(boolean skipGenerated) {
+        this.skipGenerated = skipGenerated;
+        return this;
+    }
+
+    public int getBulkThreshold() {
+        return bulkThreshold;
+    }
+
+    public AdmissionPolicy setBulkThreshold(int bulkThreshold) {
+        if (bulkThreshold < 0) {
+            throw new IllegalArgumentException("批量更新阈值不能为负数: " + bulkThreshold);
+        }
+        this.bulkThreshold = bulkThreshold;
+        return this;
+    }
+
+    // 路径没有被任何模式排除
+    public boolean admitsPath(String path) {
+        for (Pattern pattern : excludePatterns) {
+            if (pattern.matcher(path).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean admitsLength(long length) {
+        return maxFileBytes == 0 || length <= maxFileBytes;
+    }
+
+    // 一次刷新改动了这么多文件时视为批量更新
+    public boolean isBulk(int changedFiles) {
+        return bulkThreshold > 0 && changedFiles >= bulkThreshold;
+    }
+
+    // 开头出现 NUL 字符的内容按二进制处理
+    public boolean admitsContent(CharSequence text) {
+        if (!skipBinary) {
+            return true;
+        }
+        int end = Math.min(text.length(), BINARY_SCAN_CHARS);
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '\0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        i++;
+                        regex.append("(?:.*/)?"); // **/ 可以匹配零层或多层目录
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
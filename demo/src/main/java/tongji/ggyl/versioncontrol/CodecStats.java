@@ -0,0 +1,80 @@
+package tongji.ggyl.versioncontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CodecStats 是一种压缩编码的累计统计：压缩前后的字节数和编解码耗时，用于比较不同编码的压缩率和吞吐量。
+ */
+public class CodecStats {
+    private final String codec;
+    private final AtomicLong encodeCount = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();     // 编码前的字节数
+    private final AtomicLong encodedBytes = new AtomicLong(); // 实际保存的字节数，压缩不划算而原样保存时等于原文
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong decodeCount = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+
+    CodecStats(String codec) {
+        this.codec = codec;
+    }
+
+    void recordEncode(int raw, int stored, long nanos) {
+        encodeCount.incrementAndGet();
+        rawBytes.addAndGet(raw);
+        encodedBytes.addAndGet(stored);
+        encodeNanos.addAndGet(nanos);
+    }
+
+    void recordDecode(int raw, long nanos) {
+        decodeCount.incrementAndGet();
+        decodedBytes.addAndGet(raw);
+        decodeNanos.addAndGet(nanos);
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public long getEncodeCount() {
+        return encodeCount.get();
+    }
+
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    public long getDecodeCount() {
+        return decodeCount.get();
+    }
+
+    // 压缩率 = 编码前字节数 / 保存的字节数，越大越省空间
+    public double getRatio() {
+        long stored = encodedBytes.get();
+        return stored == 0 ? 1.0 : (double) rawBytes.get() / stored;
+    }
+
+    // 编码吞吐量，单位 MB/s（按编码前的字节数计算）
+    public double getEncodeMBps() {
+        return throughput(rawBytes.get(), encodeNanos.get());
+    }
+
+    // 解码吞吐量，单位 MB/s（按还原后的字节数计算）
+    public double getDecodeMBps() {
+        return throughput(decodedBytes.get(), decodeNanos.get());
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: ratio=%.2f encode=%.1fMB/s decode=%.1fMB/s (%d/%d)",
+                codec, getRatio(), getEncodeMBps(), getDecodeMBps(), getEncodeCount(), getDecodeCount());
+    }
+}
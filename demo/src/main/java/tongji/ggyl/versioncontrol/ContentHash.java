@@ -0,0 +1,48 @@
+package tongji.ggyl.versioncontrol;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * ContentHash 计算快照内容的 64 位哈希，用作内容寻址存储的查找键。
+ * 每次读取 8 个字节做乘法-循环移位混合，末尾用 murmur3 的 fmix64 收尾；速度优先，不用于安全场景，
+ * 命中后仍需逐字节比较确认。
+ */
+final class ContentHash {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long M1 = 0x87C37B91114253D5L;
+    private static final long M2 = 0x4CF5AD432745937FL;
+
+    private ContentHash() {
+    }
+
+    static long hash64(byte[] data) {
+        long h = SEED ^ (data.length * M1);
+        int i = 0;
+        for (; i + 8 <= data.length; i += 8) {
+            long k = (long) LONGS.get(data, i);
+            k *= M1;
+            k = Long.rotateLeft(k, 31);
+            k *= M2;
+            h ^= k;
+            h = Long.rotateLeft(h, 27) * 5 + 0x52DCE729;
+        }
+        long tail = 0;
+        for (int shift = 0; i < data.length; i++, shift += 8) {
+            tail |= (data[i] & 0xFFL) << shift;
+        }
+        h ^= Long.rotateLeft(tail * M1, 31) * M2;
+        return fmix64(h ^ data.length);
+    }
+
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,80 @@
+package tongji.ggyl.versioncontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DeflateCodec 用 JDK 的 Deflater 压缩快照内容，源代码一般能压到原来的 1/5 到 1/10。
+ * 不写 zlib 头和校验和（段记录自带 CRC）；Deflater 和 Inflater 按线程复用，避免每次分配本地内存。
+ */
+final class DeflateCodec implements SnapshotCodec {
+    static final String NAME = "deflate";
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    DeflateCodec(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("压缩级别必须在 1 到 9 之间: " + level);
+        }
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    @Override
+    public byte getId() {
+        return DEFLATE_ID;
+    }
+
+    @Override
+    public String getName() {
+        return level == Deflater.DEFAULT_COMPRESSION ? NAME : NAME + ":" + level;
+    }
+
+    @Override
+    public byte[] encode(byte[] raw) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        // 不可压缩的内容最多比原文多几个字节，一般一次就够
+        byte[] out = new byte[raw.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    @Override
+    public byte[] decode(ByteBuffer encoded, int rawLength) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(encoded);
+        byte[] raw = new byte[rawLength];
+        try {
+            int length = 0;
+            while (length < rawLength) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != rawLength) {
+                throw new IOException("解压后的长度不符: " + length + " != " + rawLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("压缩内容损坏: " + e.getMessage(), e);
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,40 @@
+package tongji.ggyl.versioncontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * IdentityCodec 不做压缩，内容原样保存；也是压缩不划算时的回退。
+ */
+final class IdentityCodec implements SnapshotCodec {
+    static final String NAME = "identity";
+    static final IdentityCodec INSTANCE = new IdentityCodec();
+
+    private IdentityCodec() {
+    }
+
+    @Override
+    public byte getId() {
+        return IDENTITY_ID;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(byte[] raw) {
+        return raw;
+    }
+
+    @Override
+    public byte[] decode(ByteBuffer encoded, int rawLength) throws IOException {
+        if (encoded.remaining() != rawLength) {
+            throw new IOException("内容长度不符: " + encoded.remaining() + " != " + rawLength);
+        }
+        byte[] raw = new byte[rawLength];
+        encoded.get(raw);
+        return raw;
+    }
+}
@@ -0,0 +1,30 @@
+package tongji.ggyl.versioncontrol;
+
+/**
+ * LineChange 是两个版本之间的一处行级差异：旧版本从 position 开始的 oldCount 行被换成新版本的 newCount 行。
+ * 按 "\n" 切分且保留末尾空行计算行号，与存储中的补丁一致。
+ */
+public final class LineChange {
+    private final int position;
+    private final int oldCount;
+    private final int newCount;
+
+    public LineChange(int position, int oldCount, int newCount) {
+        this.position = position;
+        this.oldCount = oldCount;
+        this.newCount = newCount;
+    }
+
+    // 在旧版本中的起始行
+    public int getPosition() {
+        return position;
+    }
+
+    public int getOldCount() {
+        return oldCount;
+    }
+
+    public int getNewCount() {
+        return newCount;
+    }
+}
@@ -0,0 +1,192 @@
+package tongji.ggyl.versioncontrol;
+
+import java.util.*;
+
+/**
+ * RetentionPolicy 决定哪些历史快照可以清理。
+ * 按快照的年龄分层：每一层覆盖到 maxAge 为止，层内每个 interval 时间段只保留最新的一个（interval 为 0 表示全部保留），
+ * 比最后一层更老的快照全部清理。另外可以限制每个文件和整个项目的快照总字节数（按内容大小计算），超出时从最老的开始清理。
+ * 每个文件最新的一个快照始终保留。
+ */
+public class RetentionPolicy {
+    // 一个保留层级
+    public static final class Tier {
+        final long maxAgeMillis;
+        final long intervalMillis;
+
+        Tier(long maxAgeMillis, long intervalMillis) {
+            this.maxAgeMillis = maxAgeMillis;
+            this.intervalMillis = intervalMillis;
+        }
+
+        public long getMaxAgeMillis() {
+            return maxAgeMillis;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+    }
+
+    private static final long HOUR = 60L * 60 * 1000;
+    private static final long DAY = 24 * HOUR;
+
+    private final List<Tier> tiers = new ArrayList<>(); // 按 maxAge 升序
+    private long maxBytesPerFile = 0;    // 0 表示不限
+    private long maxBytesPerProject = 0; // 0 表示不限
+
+    // 一小时内全部保留，一天内每小时一个，三十天内每天一个
+    public static RetentionPolicy defaults() {
+        return new RetentionPolicy()
+                .addTier(HOUR, 0)
+                .addTier(DAY, HOUR)
+                .addTier(30 * DAY, DAY);
+    }
+
+    // 不清理任何快照
+    public static RetentionPolicy keepAll() {
+        return new RetentionPolicy();
+    }
+
+    /**
+     * 解析形如 "1h:0,1d:1h,30d:1d" 的层级配置，每项为 最大年龄:间隔。
+     * 时长支持 ms、s、m、h、d 后缀，没有后缀按毫秒计算。
+     */
+    public static RetentionPolicy parseTiers(String spec) {
+        RetentionPolicy policy = new RetentionPolicy();
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int colon = item.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("保留层级格式应为 最大年龄:间隔: " + item);
+            }
+            policy.addTier(parseDuration(item.substring(0, colon)), parseDuration(item.substring(colon + 1)));
+        }
+        return policy;
+    }
+
+    static long parseDuration(String text) {
+        text = text.trim().toLowerCase();
+        long unit = 1;
+        if (text.endsWith("ms")) {
+            text = text.substring(0, text.length() - 2);
+        } else if (text.endsWith("s")) {
+            unit = 1000;
+        } else if (text.endsWith("m")) {
+            unit = 60 * 1000;
+        } else if (text.endsWith("h")) {
+            unit = HOUR;
+        } else if (text.endsWith("d")) {
+            unit = DAY;
+        }
+        if (unit != 1) {
+            text = text.substring(0, text.length() - 1);
+        }
+        long value = Long.parseLong(text.trim());
+        if (value < 0) {
+            throw new IllegalArgumentException("时长不能为负数: " + text);
+        }
+        return value * unit;
+    }
+
+    public RetentionPolicy addTier(long maxAgeMillis, long intervalMillis) {
+        if (maxAgeMillis <= 0 || intervalMillis < 0) {
+            throw new IllegalArgumentException("保留层级不合法: " + maxAgeMillis + ":" + intervalMillis);
+        }
+        tiers.add(new Tier(maxAgeMillis, intervalMillis));
+        tiers.sort(Comparator.comparingLong(t -> t.maxAgeMillis));
+        return this;
+    }
+
+    public List<Tier> getTiers() {
+        return Collections.unmodifiableList(tiers);
+    }
+
+    public long getMaxBytesPerFile() {
+        return maxBytesPerFile;
+    }
+
+    public RetentionPolicy setMaxBytesPerFile(long maxBytesPerFile) {
+        this.maxBytesPerFile = Math.max(0, maxBytesPerFile);
+        return this;
+    }
+
+    public long getMaxBytesPerProject() {
+        return maxBytesPerProject;
+    }
+
+    public RetentionPolicy setMaxBytesPerProject(long maxBytesPerProject) {
+        this.maxBytesPerProject = Math.max(0, maxBytesPerProject);
+        return this;
+    }
+
+    // 没有层级也没有大小限制时什么都不清理
+    public boolean isKeepAll() {
+        return tiers.isEmpty() && maxBytesPerFile == 0 && maxBytesPerProject == 0;
+    }
+
+    // 返回应当清理的快照 id
+    public Set<Long> select(Collection<SnapshotMeta> snapshots, long now) {
+        Set<Long> expired = new HashSet<>();
+        if (isKeepAll()) {
+            return expired;
+        }
+        Map<String, List<SnapshotMeta>> byPath = new HashMap<>();
+        for (SnapshotMeta meta : snapshots) {
+            byPath.computeIfAbsent(meta.getFilePath(), k -> new ArrayList<>()).add(meta);
+        }
+        List<SnapshotMeta> candidates = new ArrayList<>(); // 保留下来、但在项目超限时可以清理的快照
+        long projectBytes = 0;
+        for (List<SnapshotMeta> history : byPath.values()) {
+            history.sort(VersionControl::compareTime);
+            SnapshotMeta newest = history.get(history.size() - 1);
+            long fileBytes = newest.getSize();
+            Set<Long> buckets = new HashSet<>();
+            // 从新到旧遍历，每个时间段内先遇到的就是最新的
+            for (int i = history.size() - 2; i >= 0; i--) {
+                SnapshotMeta meta = history.get(i);
+                if (!keepByAge(meta, now, buckets) || (maxBytesPerFile > 0 && fileBytes + meta.getSize() > maxBytesPerFile)) {
+                    expired.add(meta.getId());
+                    continue;
+                }
+                fileBytes += meta.getSize();
+                candidates.add(meta);
+            }
+            projectBytes += fileBytes;
+        }
+        if (maxBytesPerProject > 0 && projectBytes > maxBytesPerProject) {
+            candidates.sort(VersionControl::compareTime);
+            for (SnapshotMeta meta : candidates) {
+                if (projectBytes <= maxBytesPerProject) {
+                    break;
+                }
+                expired.add(meta.getId());
+                projectBytes -= meta.getSize();
+            }
+        }
+        return expired;
+    }
+
+    // 按年龄分层判断是否保留；buckets 记录已经保留过快照的 (层级, 时间段)
+    private boolean keepByAge(SnapshotMeta meta, long now, Set<Long> buckets) {
+        if (tiers.isEmpty()) {
+            return true;
+        }
+        long age = now - meta.getRealTimestamp();
+        for (int t = 0; t < tiers.size(); t++) {
+            Tier tier = tiers.get(t);
+            if (age > tier.maxAgeMillis) {
+                continue;
+            }
+            if (tier.intervalMillis == 0) {
+                return true;
+            }
+            long bucket = Math.floorDiv(meta.getRealTimestamp(), tier.intervalMillis);
+            return buckets.add(bucket * 31 + t);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,1884 @@
+package tongji.ggyl.versioncontrol;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectUtil;
+import tongji.ggyl.eventlistening.Snapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * SegmentedVersionControl 把快照以紧凑的二进制记录追加到滚动的段文件中（snapshots/segments/），
+ * 读取时通过内存映射直接访问段文件，取代每个快照一个 ObjectOutputStream 文件的存储方式。
+ * 快照内容按内容哈希存放在 blob 记录中，快照记录只引用 blob；内容相同的多次保存只追加一条元数据记录。
+ * 每个文件每隔 keyframeInterval 个 blob 保存一次完整内容（关键帧），中间的 blob 只保存相对上一版本的行级补丁，
+ * 读取时从关键帧开始依次应用补丁还原。blob 的内容（完整内容或补丁）写入前按存储配置的 SnapshotCodec 压缩，
+ * 压缩不划算时原样保存；每个 blob 记录自己的编码，更换编码后旧内容仍可读取。
+ * 所有写操作（保存、删除、改名）都交给 SnapshotWriter 按提交顺序串行执行，同一文件排队中的保存只写最新一次。
+ * 每个源文件在内存中有稳定的 id，改名和移动（包括整个目录）只追加一条记录并修改文件的当前路径。
+ * 删除文件或目录只追加一条墓碑记录，历史先被隐藏；宽限期内文件重新出现时可以恢复，过期后由后台清除。
+ * 后台的 SnapshotCompactor 按保留策略清理过期快照，并把垃圾较多的已封存段压缩成只含存活数据的新段。
+ * 写任务在写入新 blob 时同时更新全文搜索的三元组索引（TrigramIndex），搜索先用索引筛选再核对内容。
+ */
+public class SegmentedVersionControl implements VersionControl {
+    static final String SEGMENT_DIR = "segments";
+    private static final int CONTENT_CACHE_SIZE = 64; // 写任务缓存的最近 blob 内容个数，用于计算补丁和确认去重
+    private static final int CURSOR_PAGE_SIZE = 256;  // 流式查询每次在锁内取出的条数
+    private static final int CURSOR_SCAN_LIMIT = 4096; // 流式查询每次在锁内最多检查的条数
+    private static final int STREAM_DECODE_CACHE = 8; // 流式读取内容时保留的已还原版本数，用作下一版本的补丁基准
+    private static final int DROP_BATCH = 4096;       // 一条清理记录最多包含的快照 id 数
+    private static final int INDEX_BATCH = 64;        // 补建搜索索引时每个写任务处理的 blob 数
+    private static final double COMPACTION_GARBAGE_RATIO = 0.3; // 已封存的段中不再引用的字节至少占这个比例才压缩
+    private static final int COMPACTION_FLUSH_BYTES = 1024 * 1024; // 压缩复制时每写这么多字节提交一次，避免整段暂存在内存中
+    private static final int BLOB_RECORD_OVERHEAD = SnapshotSegment.RECORD_HEADER_SIZE + 1 + 8 + 8 + 4 + 8 + 4;
+    private static final int CODED_BLOB_EXTRA = 1 + 4;  // 压缩的 blob 记录多出的编码 id 和编码前长度
+    private static final int MIN_CODEC_BYTES = 64;      // 更短的内容压缩收益抵不上开销，原样保存
+    private static final int REF_RECORD_OVERHEAD = SnapshotSegment.RECORD_HEADER_SIZE + 1 + 8 + 8 + 4 + 4 + 8;
+    private static final int TOMBSTONE_RECORD_OVERHEAD = SnapshotSegment.RECORD_HEADER_SIZE + 1 + 4 + 8 + 1;
+    static final String OBSOLETE_FILE = "obsolete.list"; // 压缩后待删除的旧段，删除失败时下次打开再删
+    private static final Logger logger = Logger.getLogger(SegmentedVersionControl.class.getName());
+
+    // 一份快照内容（完整内容或补丁）在段文件中的位置
+    static final class Blob {
+        final long id;
+        final long hash;
+        final boolean hashed;  // 旧格式的快照记录没有哈希，不参与去重
+        final int size;        // 还原后的内容字节数
+        final long segment;
+        final long payloadOffset;
+        final int payloadLength;
+        final Blob base;       // 补丁的基准，关键帧为 null
+        final int depth;       // 距最近关键帧的补丁层数，关键帧为 0
+        final byte codec;      // payload 的压缩编码
+        final int rawLength;   // 解压后的 payload 字节数
+
+        Blob(long id, long hash, boolean hashed, int size, long segment, long payloadOffset, int payloadLength, Blob base) {
+            this(id, hash, hashed, size, segment, payloadOffset, payloadLength, base, SnapshotCodec.IDENTITY_ID, payloadLength);
+        }
+
+        Blob(long id, long hash, boolean hashed, int size, long segment, long payloadOffset, int payloadLength, Blob base,
+             byte codec, int rawLength) {
+            this.id = id;
+            this.hash = hash;
+            this.hashed = hashed;
+            this.size = size;
+            this.segment = segment;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+            this.base = base;
+            this.depth = base == null ? 0 : base.depth + 1;
+            this.codec = codec;
+            this.rawLength = rawLength;
+        }
+
+        // 同一份内容换到新位置
+        Blob moveTo(long segment, long payloadOffset, long hash, Blob base) {
+            return new Blob(id, hash, true, size, segment, payloadOffset, payloadLength, base, codec, rawLength);
+        }
+
+        boolean isKeyframe() {
+            return base == null;
+        }
+    }
+
+    // 一个被跟踪的源文件：id 不随改名变化，改名和移动只修改 path，快照条目不用重建
+    static final class TrackedFile {
+        final long id;
+        volatile String path;                          // 只在持有 this 时修改
+        final List<Entry> history = new ArrayList<>(); // 按 (时间戳, id) 升序，受 this 保护
+
+        TrackedFile(long id, String path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    // 内存索引中的一条快照：元数据加上它引用的文件和 blob
+    static final class Entry {
+        final long id;
+        final String name;
+        final TrackedFile file;
+        final long timestamp;
+        final Blob blob;
+
+        Entry(long id, String name, TrackedFile file, long timestamp, Blob blob) {
+            this.id = id;
+            this.name = name;
+            this.file = file;
+            this.timestamp = timestamp;
+            this.blob = blob;
+        }
+
+        String path() {
+            return file.path;
+        }
+
+        SnapshotMeta toMeta() {
+            return new SnapshotMeta(id, name, file.path, timestamp, blob.size);
+        }
+    }
+
+    // 被删除但还在宽限期内的文件：历史不再出现在查询中，但仍保留在段文件里
+    static final class Tombstone {
+        final TrackedFile file;
+        final long deletedAt;
+
+        Tombstone(TrackedFile file, long deletedAt) {
+            this.file = file;
+            this.deletedAt = deletedAt;
+        }
+    }
+
+    private final Path baseDir;
+    private final Path segmentDir;
+    private final long maxSegmentBytes;
+    private final int keyframeInterval;
+    private final SnapshotCodec codec; // 新写入 blob 的压缩编码
+    private final SnapshotCodec deflateDecoder = SnapshotCodec.deflate(java.util.zip.Deflater.DEFAULT_COMPRESSION); // 解压与级别无关
+    private final Map<Byte, CodecStats> codecStats = new ConcurrentHashMap<>(); // 编码 id -> 统计
+    private final SnapshotIoScheduler.Lane writeLane; // 写队列在所有项目共用的 I/O 线程上执行
+    private final SnapshotIoScheduler ownedIo;        // 没有指定共用的调度器时自己建的，关闭时停止
+    private final SnapshotWriter writer;
+    private final NavigableMap<Long, SnapshotSegment> segments = new TreeMap<>(); // 段号 -> 段，受 this 保护
+    private final NavigableMap<String, TrackedFile> files = new TreeMap<>();      // 当前路径 -> 文件，受 this 保护
+    private final NavigableMap<String, Tombstone> tombstones = new TreeMap<>();   // 已删除的路径 -> 墓碑，与 files 不重叠，受 this 保护
+    private final Map<Long, Entry> byId = new HashMap<>();                        // 受 this 保护
+    private final List<Entry> timeline = new ArrayList<>();                       // 按 (时间戳, id) 升序的全部快照，受 this 保护，用于分页
+    // 删除、墓碑和清理只从 byId 和各文件的历史中移除，timeline 中留下的条目在下次读取时一次清除；受 this 保护
+    private boolean timelineStale = false;
+    private final Map<Long, Blob> blobsById = new HashMap<>();                    // 受 this 保护
+    private final Map<Long, Blob> blobsByHash = new HashMap<>();                  // 内容哈希 -> blob，受 this 保护
+    private SnapshotSegment active; // 当前追加的段，只在写任务中切换
+    // 最近写入或确认过的 blob 内容，只在写任务中访问，省去计算补丁和比较内容前的还原
+    private final Map<Long, byte[]> latestContent = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > CONTENT_CACHE_SIZE;
+        }
+    };
+    private long nextId = 1; // 快照和 blob 共用的 id 序列
+    private long nextFileId = 1; // 文件 id 只在内存中分配，重放时按记录顺序重建
+    // 去重统计：逻辑字节为所有快照内容之和，存储字节为实际写入的 blob 数据之和
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong snapshotCount = new AtomicLong();
+    private final AtomicLong dedupHits = new AtomicLong();
+    private final long deleteGraceMillis; // 墓碑保留多久才清除，0 表示删除时立即清除
+    private Set<Long> replayedIds = new HashSet<>(); // 打开时重放过的快照 id，压缩后的段与旧段重复时跳过；打开后置为 null
+    private final SnapshotCompactor compactor; // 按保留策略清理历史并压缩段文件，未启用时为 null
+    private final TrigramIndex searchIndex;    // 全文搜索索引，只在写任务中更新，未启用时为 null
+    private final AtomicInteger searchBacklog = new AtomicInteger(); // 还在等待补建索引的 blob 数
+    private volatile boolean closing = false;
+
+    // 一次段压缩的计划：在写任务中确定，之后在压缩线程上复制
+    private static final class CompactionPlan {
+        final List<SnapshotSegment> sealed; // 要被替换的旧段
+        final long firstNumber;             // 新段的起始段号
+        final int reservedNumbers;          // 为新段预留的段号个数
+        final List<Blob> blobs;             // 仍被引用的 blob，按 id 升序，补丁基准总在前面
+        final List<Entry> entries;          // 仍存在的快照，按 id 升序
+        final List<String> paths;           // 与 entries 一一对应，确定计划时各快照所属文件的路径
+        final Map<String, Long> tombstones; // 计划时的墓碑（路径 -> 删除时间），其下的快照也在 entries 中
+
+        CompactionPlan(List<SnapshotSegment> sealed, long firstNumber, int reservedNumbers, List<Blob> blobs,
+                       List<Entry> entries, List<String> paths, Map<String, Long> tombstones) {
+            this.sealed = sealed;
+            this.firstNumber = firstNumber;
+            this.reservedNumbers = reservedNumbers;
+            this.blobs = blobs;
+            this.entries = entries;
+            this.paths = paths;
+            this.tombstones = tombstones;
+        }
+    }
+
+    // 在 IDE 中使用应用级服务的共用调度器
+    public SegmentedVersionControl(Project project) {
+        this(snapshotDir(project), SnapshotStoreOptions.load(snapshotDir(project))
+                .setIoScheduler(SnapshotIoService.getInstance().getScheduler()));
+    }
+
+    private static Path snapshotDir(Project project) {
+        return Paths.get(ProjectUtil.guessProjectDir(project).getPath(), "snapshots");
+    }
+
+    public SegmentedVersionControl(Path baseDir) {
+        this(baseDir, SnapshotStoreOptions.load(baseDir));
+    }
+
+    public SegmentedVersionControl(Path baseDir, SnapshotStoreOptions options) {
+        long maxSegmentBytes = options.getMaxSegmentBytes();
+        if (maxSegmentBytes <= SnapshotSegment.HEADER_SIZE || maxSegmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("段文件大小不合法: " + maxSegmentBytes);
+        }
+        this.baseDir = baseDir;
+        this.segmentDir = baseDir.resolve(SEGMENT_DIR);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.keyframeInterval = options.getKeyframeInterval();
+        this.codec = options.getCodec();
+        this.deleteGraceMillis = TimeUnit.MINUTES.toMillis(options.getDeleteGraceMinutes());
+        SnapshotIoScheduler io = options.getIoScheduler();
+        this.ownedIo = io == null ? new SnapshotIoScheduler("snapshot-io " + baseDir, 2) : null;
+        if (io == null) {
+            io = ownedIo;
+        }
+        this.writeLane = io.newLane("snapshot-segment-writer " + baseDir, SnapshotIoScheduler.Priority.WRITE);
+        this.writer = new SnapshotWriter("snapshot-segment-writer", writeLane, options, this::commitActiveSegment);
+        this.searchIndex = options.isSearchIndexEnabled() ? TrigramIndex.open(baseDir) : null;
+        try {
+            Files.createDirectories(segmentDir);
+            openSegments();
+            importLegacySnapshots();
+        } catch (IOException e) {
+            writeLane.close(0, TimeUnit.SECONDS);
+            if (ownedIo != null) {
+                ownedIo.shutdown();
+            }
+            throw new UncheckedIOException("打开快照存储失败: " + segmentDir, e);
+        }
+        replayedIds = null;
+        SnapshotMetrics.get().register(this, writer::getQueueDepth, this::getSegmentBytes);
+        if (searchIndex != null) {
+            indexPendingBlobs();
+        }
+        long interval = options.getCompactionIntervalMinutes();
+        if (interval > 0) {
+            compactor = new SnapshotCompactor("snapshot-compactor " + baseDir, io, this, options.getRetentionPolicy(), this::compactQuietly);
+            compactor.start(Math.min(interval, 5), interval, TimeUnit.MINUTES);
+        } else {
+            compactor = null;
+            sweepDeletedSnapshots(); // 没有后台整理时，只在打开时清除过期的墓碑
+        }
+    }
+
+    @Override
+    public String getProjectBasePath() {
+        return baseDir.toString().replace('\\', '/');
+    }
+
+    @Override
+    public void saveVersionSnapshot(Snapshot snapshot) {
+        writer.save(snapshot.getFilePath(), () -> {
+            try {
+                appendSnapshot(snapshot);
+            } catch (IOException e) {
+                logger.severe("保存快照失败: " + snapshot.getFilePath() + " " + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public List<Snapshot> getSnapshotsForFile(String path) {
+        return streamSnapshots(SnapshotQuery.forFile(path)).collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Snapshot> getAllSnapshots() {
+        return streamSnapshots(SnapshotQuery.all()).collect(Collectors.toList());
+    }
+
+    @Override
+    public Stream<SnapshotMeta> streamSnapshotMetas(SnapshotQuery query) {
+        return StreamSupport.stream(new MetaCursor(query), false);
+    }
+
+    @Override
+    public Stream<Snapshot> streamSnapshots(SnapshotQuery query) {
+        // 按时间顺序读取同一文件的历史时，上一版本的内容正好是下一版本的补丁基准
+        Map<Long, byte[]> decoded = newDecodeCache();
+        return streamSnapshotMetas(query).map(meta -> {
+            Entry entry;
+            synchronized (this) {
+                entry = byId.get(meta.getId());
+            }
+            if (entry == null) {
+                return null; // 遍历期间被删除
+            }
+            long start = System.nanoTime();
+            try {
+                return new Snapshot(entry.name, entry.path(), readContent(entry.blob, decoded), entry.timestamp);
+            } catch (IOException e) {
+                logger.warning("读取快照内容失败: " + entry.id + " " + e.getMessage());
+                return null;
+            } finally {
+                SnapshotMetrics.get().getReadLatency().record(System.nanoTime() - start);
+            }
+        }).filter(Objects::nonNull);
+    }
+
+    // 只保留最近几个已还原的版本
+    private static Map<Long, byte[]> newDecodeCache() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > STREAM_DECODE_CACHE;
+            }
+        };
+    }
+
+    @Override
+    public List<SnapshotMeta> getAllSnapshotMetas() {
+        List<SnapshotMeta> metas = new ArrayList<>();
+        for (Entry entry : allEntries()) {
+            metas.add(entry.toMeta());
+        }
+        return metas;
+    }
+
+    @Override
+    public synchronized List<SnapshotMeta> getSnapshotMetasForFile(String path) {
+        List<SnapshotMeta> metas = new ArrayList<>();
+        for (Entry entry : historyOf(path)) {
+            metas.add(entry.toMeta());
+        }
+        return metas;
+    }
+
+    @Override
+    public synchronized int countSnapshots(String path) {
+        if (path == null) {
+            return liveTimeline().size();
+        }
+        return historyOf(path).size();
+    }
+
+    @Override
+    public synchronized List<SnapshotMeta> getSnapshotMetas(String path, int offset, int limit) {
+        // timeline 和各文件的列表都按时间升序，倒着取即为从新到旧
+        List<Entry> entries = path == null ? liveTimeline() : historyOf(path);
+        List<SnapshotMeta> metas = new ArrayList<>(Math.max(0, Math.min(limit, entries.size() - offset)));
+        for (int i = Math.max(offset, 0); i < entries.size() && metas.size() < limit; i++) {
+            metas.add(entries.get(entries.size() - 1 - i).toMeta());
+        }
+        return metas;
+    }
+
+    @Override
+    public synchronized SnapshotMeta getPreviousSnapshotMeta(SnapshotMeta meta) {
+        List<Entry> entries = historyOf(meta.getFilePath());
+        // 各文件的列表按 (时间戳, id) 升序，二分查找第一个不早于 meta 的位置，前一项即为上一版本
+        int i = search(entries, meta.getRealTimestamp(), meta.getId());
+        return i == 0 ? null : entries.get(i - 1).toMeta();
+    }
+
+    @Override
+    public synchronized List<String> getTrackedFilePaths() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    @Override
+    public byte[] loadContent(long snapshotId) {
+        Entry entry;
+        synchronized (this) {
+            entry = byId.get(snapshotId);
+        }
+        if (entry == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            return readContent(entry.blob, null);
+        } catch (IOException e) {
+            logger.warning("读取快照内容失败: " + snapshotId + " " + e.getMessage());
+            return null;
+        } finally {
+            SnapshotMetrics.get().getReadLatency().record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<LineChange> getStoredChanges(long baseSnapshotId, long snapshotId) {
+        Entry base;
+        Entry entry;
+        synchronized (this) {
+            base = byId.get(baseSnapshotId);
+            entry = byId.get(snapshotId);
+        }
+        if (base == null || entry == null) {
+            return null;
+        }
+        if (entry.blob.id == base.blob.id) {
+            return new ArrayList<>(); // 内容去重后引用同一个 blob
+        }
+        if (entry.blob.base == null || entry.blob.base.id != base.blob.id) {
+            return null; // 不是以 base 为基准保存的补丁
+        }
+        try {
+            return SnapshotDelta.changes(decodedPayload(entry.blob));
+        } catch (IOException e) {
+            logger.warning("读取快照补丁失败: " + snapshotId + " " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void deleteSnapshotsForFile(String path) {
+        appendTombstone(path, false);
+    }
+
+    @Override
+    public void deleteSnapshotsForDirectory(String dir) {
+        // 整个目录只追加一条记录
+        appendTombstone(dir, true);
+    }
+
+    // 删除只追加一条墓碑记录并隐藏历史；没有宽限期时紧接着清除，空间都由之后的压缩回收。
+    // 监听器转来的是整个 IDE 的删除，路径下没有历史时不写记录；在写任务中判断，排在之前的保存已经生效
+    private void appendTombstone(String path, boolean recursive) {
+        long deletedAt = System.currentTimeMillis();
+        writer.execute(() -> {
+            synchronized (this) {
+                if (pathsUnder(files, path, recursive).isEmpty()) {
+                    return;
+                }
+            }
+            try {
+                byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer body = ByteBuffer.allocate(1 + SnapshotSegment.stringSize(pathBytes) + 8 + 1);
+                body.put(SnapshotSegment.TYPE_TOMBSTONE);
+                SnapshotSegment.putString(body, pathBytes);
+                body.putLong(deletedAt).put((byte) (recursive ? 1 : 0));
+                append(body);
+                List<String> buried = applyTombstone(path, deletedAt, recursive);
+                if (deleteGraceMillis == 0) {
+                    for (String buriedPath : buried) {
+                        appendDelete(buriedPath);
+                    }
+                }
+            } catch (IOException e) {
+                logger.severe("删除快照失败: " + path + " " + e.getMessage());
+            }
+        });
+    }
+
+    // 追加一条按路径清除的记录；须在写任务中调用
+    private void appendDelete(String path) throws IOException {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + SnapshotSegment.stringSize(pathBytes));
+        body.put(SnapshotSegment.TYPE_DELETE);
+        SnapshotSegment.putString(body, pathBytes);
+        append(body);
+        applyDelete(path);
+    }
+
+    @Override
+    public void restoreDeletedSnapshots(String path, boolean directory) {
+        synchronized (this) {
+            if (pathsUnder(tombstones, path, directory).isEmpty()) {
+                return; // 大多数新建的文件没有被删除过的历史，不写记录
+            }
+        }
+        writer.execute(() -> {
+            try {
+                synchronized (this) {
+                    if (pathsUnder(tombstones, path, directory).isEmpty()) {
+                        return;
+                    }
+                }
+                byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer body = ByteBuffer.allocate(1 + SnapshotSegment.stringSize(pathBytes) + 1);
+                body.put(SnapshotSegment.TYPE_RESTORE);
+                SnapshotSegment.putString(body, pathBytes);
+                body.put((byte) (directory ? 1 : 0));
+                append(body);
+                applyRestore(path, directory);
+            } catch (IOException e) {
+                logger.severe("恢复快照失败: " + path + " " + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public int sweepDeletedSnapshots() {
+        long deadline = System.currentTimeMillis() - deleteGraceMillis;
+        Map<String, Tombstone> expired = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+                if (entry.getValue().deletedAt <= deadline) {
+                    expired.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        writer.execute(() -> {
+            try {
+                for (Map.Entry<String, Tombstone> entry : expired.entrySet()) {
+                    boolean unchanged;
+                    synchronized (this) {
+                        unchanged = tombstones.get(entry.getKey()) == entry.getValue();
+                    }
+                    // 排队期间被恢复或又删除过一次的不清除
+                    if (unchanged) {
+                        appendDelete(entry.getKey());
+                    }
+                }
+            } catch (IOException e) {
+                logger.severe("清除已删除的快照失败: " + e.getMessage());
+            }
+        });
+        return expired.size();
+    }
+
+    // 已删除但还能恢复的文件路径，按字典序排列
+    public synchronized List<String> getDeletedFilePaths() {
+        return new ArrayList<>(tombstones.keySet());
+    }
+
+    @Override
+    public void deleteSnapshots(Collection<Long> snapshotIds) {
+        List<Long> ids = new ArrayList<>(snapshotIds);
+        if (ids.isEmpty()) {
+            return;
+        }
+        // 只追加清理记录，空间由之后的段压缩回收
+        writer.execute(() -> {
+            try {
+                for (int from = 0; from < ids.size(); from += DROP_BATCH) {
+                    List<Long> part = ids.subList(from, Math.min(ids.size(), from + DROP_BATCH));
+                    ByteBuffer body = ByteBuffer.allocate(1 + 4 + 8 * part.size());
+                    body.put(SnapshotSegment.TYPE_DROP).putInt(part.size());
+                    for (long id : part) {
+                        body.putLong(id);
+                    }
+                    append(body);
+                    applyDrop(part);
+                }
+            } catch (IOException e) {
+                logger.severe("清理快照失败: " + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void changeSnapshotsPathForFile(String oldPath, String newPath) {
+        // 改名只追加一条记录并修改文件的当前路径，不重写快照
+        appendRename(SnapshotSegment.TYPE_RENAME, oldPath, newPath);
+    }
+
+    @Override
+    public void changeSnapshotsPathForDirectory(String oldDir, String newDir) {
+        // 整个目录只追加一条记录
+        appendRename(SnapshotSegment.TYPE_RENAME_DIR, oldDir, newDir);
+    }
+
+    // 与 appendTombstone 相同，旧路径（目录时为其下）没有历史时不写记录
+    private void appendRename(byte type, String oldPath, String newPath) {
+        boolean directory = type == SnapshotSegment.TYPE_RENAME_DIR;
+        writer.execute(() -> {
+            synchronized (this) {
+                if (directory ? pathsUnder(files, oldPath, true).isEmpty() : !files.containsKey(oldPath)) {
+                    return;
+                }
+            }
+            try {
+                byte[] oldBytes = oldPath.getBytes(StandardCharsets.UTF_8);
+                byte[] newBytes = newPath.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer body = ByteBuffer.allocate(1 + SnapshotSegment.stringSize(oldBytes) + SnapshotSegment.stringSize(newBytes));
+                body.put(type);
+                SnapshotSegment.putString(body, oldBytes);
+                SnapshotSegment.putString(body, newBytes);
+                append(body);
+                if (directory) {
+                    applyRenameDirectory(oldPath, newPath);
+                } else {
+                    applyRename(oldPath, newPath);
+                }
+            } catch (IOException e) {
+                logger.severe("修改快照路径失败: " + oldPath + " -> " + newPath + " " + e.getMessage());
+            }
+        });
+    }
+
+    // 去重率 = 所有快照内容的总字节数 / 实际写入的 blob 字节数，越大说明节省越多
+    public double getDedupRatio() {
+        long stored = storedBytes.get();
+        return stored == 0 ? 1.0 : (double) logicalBytes.get() / stored;
+    }
+
+    // 内容与已有 blob 相同、只追加了元数据的保存次数
+    public long getDedupHits() {
+        return dedupHits.get();
+    }
+
+    public long getLogicalBytes() {
+        return logicalBytes.get();
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    public long getSnapshotCount() {
+        return snapshotCount.get();
+    }
+
+    // 各压缩编码的压缩率和吞吐量
+    public List<CodecStats> getCodecStats() {
+        return new ArrayList<>(codecStats.values());
+    }
+
+    // 全部段文件的字节数
+    public synchronized long getSegmentBytes() {
+        long total = 0;
+        for (SnapshotSegment segment : segments.values()) {
+            total += segment.size();
+        }
+        return total;
+    }
+
+    // 写入队列的深度、合并和丢弃次数、写入延迟等统计
+    public SnapshotWriter getWriter() {
+        return writer;
+    }
+
+    // 保留策略和压缩的统计，未启用时为 null
+    public SnapshotCompactor getCompactor() {
+        return compactor;
+    }
+
+    // 停止后台整理，写完排队中的快照，再释放段文件
+    @Override
+    public void shutdown() {
+        closing = true;
+        SnapshotMetrics.get().unregister(this);
+        if (compactor != null) {
+            compactor.shutdown(10, TimeUnit.SECONDS);
+        }
+        writer.close(10, TimeUnit.SECONDS);
+        writeLane.close(10, TimeUnit.SECONDS);
+        if (ownedIo != null) {
+            ownedIo.shutdown();
+        }
+        if (searchIndex != null) {
+            saveSearchIndex();
+        }
+        synchronized (this) {
+            for (SnapshotSegment segment : segments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    logger.warning("关闭段文件失败: " + segment.file);
+                }
+            }
+            segments.clear();
+        }
+    }
+
+    private void appendSnapshot(Snapshot snapshot) throws IOException {
+        byte[] content = snapshot.getContent() == null ? new byte[0] : snapshot.getContent();
+        long hash = ContentHash.hash64(content);
+        Entry previous;
+        Blob candidate;
+        synchronized (this) {
+            List<Entry> history = historyOf(snapshot.getFilePath());
+            previous = history.isEmpty() ? null : history.get(history.size() - 1);
+            candidate = blobsByHash.get(hash);
+        }
+
+        // 已有相同内容的 blob 时只追加快照记录；哈希相同还要逐字节确认
+        Blob blob = null;
+        if (candidate != null && candidate.size == content.length
+                && Arrays.equals(blobContent(candidate), content)) {
+            blob = candidate;
+            dedupHits.incrementAndGet();
+        }
+        if (blob == null) {
+            blob = appendBlob(content, hash, previous == null ? null : previous.blob);
+            indexBlob(blob, content, previous == null ? null : previous.blob);
+        }
+        latestContent.put(blob.id, content);
+
+        byte[] name = snapshot.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] path = snapshot.getFilePath().getBytes(StandardCharsets.UTF_8);
+        long id = nextId();
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 8 + SnapshotSegment.stringSize(name)
+                + SnapshotSegment.stringSize(path) + 8);
+        body.put(SnapshotSegment.TYPE_SNAPSHOT_REF)
+                .putLong(id)
+                .putLong(snapshot.getRealTimestamp());
+        SnapshotSegment.putString(body, name);
+        SnapshotSegment.putString(body, path);
+        body.putLong(blob.id);
+        append(body);
+
+        addEntry(id, snapshot.getName(), snapshot.getFilePath(), snapshot.getRealTimestamp(), blob);
+        logicalBytes.addAndGet(content.length);
+        snapshotCount.incrementAndGet();
+        SnapshotMetrics.get().recordSnapshotWritten();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("为文件保存的快照 :" + snapshot.getFilePath() + " at " + snapshot.getTimestamp());
+        }
+    }
+
+    // 写入一个新 blob：距关键帧不足 keyframeInterval 层时尝试只保存相对 previous 的补丁
+    private Blob appendBlob(byte[] content, long hash, Blob previous) throws IOException {
+        byte[] delta = null;
+        if (previous != null && previous.depth + 1 < keyframeInterval) {
+            delta = SnapshotDelta.encode(blobContent(previous), content);
+        }
+        byte[] raw = delta != null ? delta : content;
+        Blob base = delta != null ? previous : null;
+
+        // 在写线程上压缩；压缩后没有变小就原样保存
+        byte codecId = SnapshotCodec.IDENTITY_ID;
+        byte[] payload = raw;
+        if (codec.getId() != SnapshotCodec.IDENTITY_ID && raw.length >= MIN_CODEC_BYTES) {
+            long start = System.nanoTime();
+            byte[] encoded = codec.encode(raw);
+            boolean smaller = encoded.length < raw.length;
+            statsFor(codec.getId()).recordEncode(raw.length, smaller ? encoded.length : raw.length, System.nanoTime() - start);
+            if (smaller) {
+                codecId = codec.getId();
+                payload = encoded;
+            }
+        }
+
+        long id = nextId();
+        boolean coded = codecId != SnapshotCodec.IDENTITY_ID;
+        ByteBuffer body = ByteBuffer.allocate(BLOB_RECORD_OVERHEAD - SnapshotSegment.RECORD_HEADER_SIZE
+                + (coded ? CODED_BLOB_EXTRA : 0) + payload.length);
+        body.put(coded ? SnapshotSegment.TYPE_CODED_BLOB : SnapshotSegment.TYPE_BLOB)
+                .putLong(id)
+                .putLong(hash)
+                .putInt(content.length)
+                .putLong(base == null ? -1 : base.id);
+        if (coded) {
+            body.put(codecId).putInt(raw.length);
+        }
+        body.putInt(payload.length);
+        int payloadPosition = body.position();
+        body.put(payload);
+        long recordOffset = append(body);
+
+        Blob blob = new Blob(id, hash, true, content.length, active.number,
+                recordOffset + SnapshotSegment.RECORD_HEADER_SIZE + payloadPosition, payload.length, base, codecId, raw.length);
+        synchronized (this) {
+            addBlob(blob);
+        }
+        storedBytes.addAndGet(payload.length);
+        return blob;
+    }
+
+    // 把新 blob 加入搜索索引，以同一文件的上一版本为索引基准；须在写任务中调用
+    private void indexBlob(Blob blob, byte[] content, Blob previous) {
+        if (searchIndex == null) {
+            return;
+        }
+        byte[] previousContent = null;
+        if (previous != null && searchIndex.needsContent(previous.id)) {
+            try {
+                previousContent = blobContent(previous);
+            } catch (IOException e) {
+                previous = null; // 读不到上一版本时记录全部三元组
+            }
+        }
+        searchIndex.add(blob.id, previous == null ? -1 : previous.id, content, previousContent);
+    }
+
+    // 打开后补建索引文件中没有的 blob（索引文件缺失、损坏或上次没有正常关闭）。
+    // 按文件逐个版本进行，每个写任务只处理一小批，不耽误新的保存
+    private void indexPendingBlobs() {
+        List<Blob[]> pending = new ArrayList<>(); // {blob, 同一文件的上一版本}
+        synchronized (this) {
+            Set<Long> seen = new HashSet<>();
+            for (TrackedFile file : files.values()) {
+                Blob previous = null;
+                for (Entry entry : file.history) {
+                    if (entry.blob != previous && !searchIndex.contains(entry.blob.id) && seen.add(entry.blob.id)) {
+                        pending.add(new Blob[]{entry.blob, previous});
+                    }
+                    previous = entry.blob;
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        logger.info("补建搜索索引: " + pending.size() + " 个版本");
+        searchBacklog.set(pending.size());
+        indexBatch(pending, 0, newDecodeCache());
+    }
+
+    private void indexBatch(List<Blob[]> pending, int from, Map<Long, byte[]> decoded) {
+        writer.execute(() -> {
+            int to = Math.min(pending.size(), from + INDEX_BATCH);
+            for (int i = from; i < to && !closing; i++) {
+                Blob blob = pending.get(i)[0];
+                Blob previous = pending.get(i)[1];
+                try {
+                    byte[] previousContent = previous != null && searchIndex.needsContent(previous.id)
+                            ? readContent(previous, decoded) : null;
+                    searchIndex.add(blob.id, previous == null ? -1 : previous.id, readContent(blob, decoded), previousContent);
+                } catch (IOException e) {
+                    logger.warning("建立搜索索引失败: " + blob.id + " " + e.getMessage()); // 多半是已被清理，搜索时会直接核对内容
+                }
+                searchBacklog.decrementAndGet();
+            }
+            if (closing) {
+                searchBacklog.set(0);
+            } else if (to < pending.size()) {
+                indexBatch(pending, to, decoded);
+            } else {
+                saveSearchIndex(); // 补建的结果先落盘，下次打开不必重做
+            }
+        });
+    }
+
+    private void saveSearchIndex() {
+        Set<Long> live;
+        synchronized (this) {
+            live = new HashSet<>(blobsById.keySet());
+        }
+        try {
+            searchIndex.save(live::contains);
+        } catch (IOException e) {
+            logger.warning("保存搜索索引失败: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<SnapshotSearchHit> search(SnapshotQuery query, String text, boolean matchCase, int limit,
+                                          BooleanSupplier cancelled) {
+        if (searchIndex == null) {
+            return VersionControl.super.search(query, text, matchCase, limit, cancelled);
+        }
+        List<SnapshotSearchHit> hits = new ArrayList<>();
+        if (text == null || text.isEmpty() || limit <= 0) {
+            return hits;
+        }
+        LongPredicate candidate = searchIndex.candidates(text);
+        // 按时间顺序遍历时上一版本正好是补丁基准；内容相同的快照只核对一次
+        Map<Long, byte[]> decoded = newDecodeCache();
+        Map<Long, SnapshotSearchHit> checked = new HashMap<>();
+        Iterator<SnapshotMeta> metas = streamSnapshotMetas(query).iterator();
+        while (metas.hasNext() && hits.size() < limit && !cancelled.getAsBoolean()) {
+            SnapshotMeta meta = metas.next();
+            Entry entry;
+            synchronized (this) {
+                entry = byId.get(meta.getId());
+            }
+            if (entry == null || !candidate.test(entry.blob.id)) {
+                continue;
+            }
+            SnapshotSearchHit hit;
+            if (checked.containsKey(entry.blob.id)) {
+                hit = checked.get(entry.blob.id);
+            } else {
+                try {
+                    hit = SnapshotSearchHit.match(meta, readContent(entry.blob, decoded), text, matchCase);
+                } catch (IOException e) {
+                    logger.warning("读取快照内容失败: " + entry.id + " " + e.getMessage());
+                    continue;
+                }
+                checked.put(entry.blob.id, hit);
+            }
+            if (hit != null) {
+                hits.add(hit.getMeta() == meta ? hit : hit.forSnapshot(meta));
+            }
+        }
+        return hits;
+    }
+
+    // 还在等待补建搜索索引的版本数，为 0 时搜索完全走索引
+    public int getSearchBacklog() {
+        return searchBacklog.get();
+    }
+
+    private CodecStats statsFor(byte codecId) {
+        return codecStats.computeIfAbsent(codecId, id -> {
+            SnapshotCodec known = codecFor(id);
+            return new CodecStats(known == null ? "codec-" + id : known.getName());
+        });
+    }
+
+    // 按 blob 记录中的编码 id 找到解码用的编码，未知时返回 null
+    private SnapshotCodec codecFor(byte codecId) {
+        if (codecId == codec.getId()) {
+            return codec;
+        }
+        if (codecId == SnapshotCodec.IDENTITY_ID) {
+            return SnapshotCodec.identity();
+        }
+        if (codecId == SnapshotCodec.DEFLATE_ID) {
+            return deflateDecoder;
+        }
+        return null;
+    }
+
+    // 写任务中读取 blob 内容，优先使用缓存
+    private byte[] blobContent(Blob blob) throws IOException {
+        byte[] content = latestContent.get(blob.id);
+        if (content == null) {
+            content = readContent(blob, null);
+            latestContent.put(blob.id, content);
+        }
+        return content;
+    }
+
+    private synchronized long nextId() {
+        return nextId++;
+    }
+
+    // 成组提交：把活动段中暂存的记录一次写入并 force，由 SnapshotWriter 每批调用一次
+    private void commitActiveSegment() {
+        SnapshotSegment segment = active;
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.commit(true);
+        } catch (IOException e) {
+            logger.severe("提交段文件失败: " + segment.file + " " + e.getMessage());
+        }
+    }
+
+    // 在活动段尾追加记录（先暂存，成组提交时落盘），必要时滚动到新段；返回记录在段中的偏移
+    private long append(ByteBuffer body) throws IOException {
+        body.flip();
+        ByteBuffer record = SnapshotSegment.frame(body);
+        if (active == null
+                || (active.size() > SnapshotSegment.HEADER_SIZE && active.size() + record.remaining() > maxSegmentBytes)) {
+            if (active != null) {
+                active.commit(true); // 旧段写满后不再追加，先落盘
+            }
+            long number = active == null ? 1 : active.number + 1;
+            SnapshotSegment segment = SnapshotSegment.create(segmentDir, number);
+            synchronized (this) {
+                segments.put(number, segment);
+            }
+            active = segment;
+        }
+        SnapshotMetrics.get().recordBytesWritten(record.remaining());
+        return active.append(record);
+    }
+
+    private synchronized List<Entry> allEntries() {
+        return new ArrayList<>(liveTimeline());
+    }
+
+    /**
+     * 流式查询的游标：每次在锁内按 (时间戳, id) 从上次停下的位置二分定位，取出一页元数据。
+     * 游标记住的是键而不是下标，遍历期间有新快照写入或删除也不会重复或遗漏已有条目。
+     */
+    private final class MetaCursor extends Spliterators.AbstractSpliterator<SnapshotMeta> {
+        private final SnapshotQuery query;
+        private final ArrayDeque<SnapshotMeta> page = new ArrayDeque<>();
+        private boolean started = false;
+        private boolean exhausted = false;
+        private long lastTimestamp;
+        private long lastId;
+
+        MetaCursor(SnapshotQuery query) {
+            super(Long.MAX_VALUE, ORDERED | NONNULL);
+            this.query = query;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super SnapshotMeta> action) {
+            while (page.isEmpty() && !exhausted) {
+                fill();
+            }
+            SnapshotMeta meta = page.poll();
+            if (meta == null) {
+                return false;
+            }
+            action.accept(meta);
+            return true;
+        }
+
+        private void fill() {
+            synchronized (SegmentedVersionControl.this) {
+                List<Entry> entries = query.getPath() != null
+                        ? historyOf(query.getPath())
+                        : liveTimeline();
+                boolean descending = query.isNewestFirst();
+                int i;
+                if (!descending) {
+                    i = started ? search(entries, lastTimestamp, lastId + 1) : search(entries, query.getFrom(), Long.MIN_VALUE);
+                } else {
+                    i = (started ? search(entries, lastTimestamp, lastId) : search(entries, query.getTo(), Long.MIN_VALUE)) - 1;
+                }
+                int scanned = 0;
+                while (page.size() < CURSOR_PAGE_SIZE && scanned < CURSOR_SCAN_LIMIT) {
+                    if (i < 0 || i >= entries.size()) {
+                        exhausted = true;
+                        return;
+                    }
+                    Entry entry = entries.get(i);
+                    if (!query.matchesTime(entry.timestamp)) {
+                        exhausted = true; // 列表按时间有序，越过时间范围即结束
+                        return;
+                    }
+                    if (query.matchesPath(entry.path())) {
+                        page.add(entry.toMeta());
+                    }
+                    started = true;
+                    lastTimestamp = entry.timestamp;
+                    lastId = entry.id;
+                    scanned++;
+                    i += descending ? -1 : 1;
+                }
+            }
+        }
+    }
+
+    // 返回第一个 (时间戳, id) 不小于给定键的下标，列表须按 (时间戳, id) 升序
+    private static int search(List<Entry> entries, long timestamp, long id) {
+        int lo = 0;
+        int hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Entry e = entries.get(mid);
+            if (e.timestamp < timestamp || (e.timestamp == timestamp && e.id < id)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    byte[] readContent(Blob blob, Map<Long, byte[]> decoded) throws IOException {
+        // 沿补丁链回溯到关键帧或已还原过的版本
+        Deque<Blob> chain = new ArrayDeque<>();
+        Blob current = blob;
+        byte[] content = null;
+        while (current != null) {
+            if (decoded != null && decoded.containsKey(current.id)) {
+                content = decoded.get(current.id);
+                break;
+            }
+            chain.push(current);
+            current = current.base;
+        }
+        while (!chain.isEmpty()) {
+            Blob next = chain.pop();
+            ByteBuffer payload = decodedPayload(next);
+            if (next.isKeyframe()) {
+                content = new byte[payload.remaining()];
+                payload.get(content);
+            } else {
+                content = SnapshotDelta.apply(content, payload);
+            }
+            if (decoded != null) {
+                decoded.put(next.id, content);
+            }
+        }
+        return content;
+    }
+
+    // 解压后的 payload；未压缩的直接返回段文件中的视图
+    private ByteBuffer decodedPayload(Blob blob) throws IOException {
+        ByteBuffer payload = payload(blob);
+        if (blob.codec == SnapshotCodec.IDENTITY_ID) {
+            return payload;
+        }
+        SnapshotCodec decoder = codecFor(blob.codec);
+        if (decoder == null) {
+            throw new IOException("未知的压缩编码: " + blob.codec);
+        }
+        long start = System.nanoTime();
+        byte[] raw = decoder.decode(payload, blob.rawLength);
+        statsFor(blob.codec).recordDecode(raw.length, System.nanoTime() - start);
+        return ByteBuffer.wrap(raw);
+    }
+
+    private ByteBuffer payload(Blob blob) throws IOException {
+        SnapshotSegment segment;
+        synchronized (this) {
+            segment = segments.get(blob.segment);
+        }
+        if (segment == null) {
+            throw new IOException("段文件不存在: " + blob.segment);
+        }
+        return segment.view(blob.payloadOffset, blob.payloadLength);
+    }
+
+    // 按段号顺序打开全部段文件并重放记录，重建内存索引
+    private void openSegments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        Set<String> obsolete = readObsolete();
+        List<String> undeleted = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(segmentDir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SnapshotSegment.SUFFIX + SnapshotSegment.TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file); // 压缩中断留下的临时段
+                    continue;
+                }
+                long number = SnapshotSegment.parseNumber(name);
+                if (number <= 0) {
+                    continue;
+                }
+                if (obsolete.contains(name)) {
+                    // 压缩已经换下的旧段，不再重放
+                    try {
+                        Files.delete(file);
+                    } catch (IOException e) {
+                        undeleted.add(name);
+                    }
+                    continue;
+                }
+                numbers.add(number);
+            }
+        }
+        if (!obsolete.isEmpty()) {
+            writeObsolete(undeleted);
+        }
+        Collections.sort(numbers);
+        for (int i = 0; i < numbers.size(); i++) {
+            long number = numbers.get(i);
+            boolean last = i == numbers.size() - 1;
+            SnapshotSegment segment = SnapshotSegment.open(segmentDir.resolve(SnapshotSegment.fileName(number)), number, last);
+            segments.put(number, segment);
+            long valid = segment.scan((offset, body) -> replay(segment, offset, body));
+            if (valid < segment.size()) {
+                if (last) {
+                    logger.warning("段文件末尾不完整，已截断: " + segment.file);
+                    segment.truncate(valid);
+                } else {
+                    logger.warning("段文件中有损坏的记录，之后的内容被忽略: " + segment.file);
+                }
+            }
+            if (last) {
+                active = segment;
+            }
+        }
+    }
+
+    private void replay(SnapshotSegment segment, long recordOffset, ByteBuffer body) {
+        byte type = body.get();
+        if (type == SnapshotSegment.TYPE_BLOB || type == SnapshotSegment.TYPE_CODED_BLOB) {
+            long id = body.getLong();
+            long hash = body.getLong();
+            int size = body.getInt();
+            long baseId = body.getLong();
+            byte codecId = SnapshotCodec.IDENTITY_ID;
+            int rawLength = -1;
+            if (type == SnapshotSegment.TYPE_CODED_BLOB) {
+                codecId = body.get();
+                rawLength = body.getInt();
+            }
+            int length = body.getInt();
+            if (blobsById.containsKey(id)) {
+                return; // 压缩后的段与尚未删除的旧段内容重复
+            }
+            Blob base = baseId < 0 ? null : blobsById.get(baseId);
+            if (baseId >= 0 && base == null) {
+                logger.warning("blob 缺少补丁基准，已忽略: " + id);
+                return;
+            }
+            addBlob(new Blob(id, hash, true, size, segment.number,
+                    recordOffset + SnapshotSegment.RECORD_HEADER_SIZE + body.position(), length, base,
+                    codecId, rawLength < 0 ? length : rawLength));
+            storedBytes.addAndGet(length);
+            nextId = Math.max(nextId, id + 1);
+        } else if (type == SnapshotSegment.TYPE_SNAPSHOT_REF) {
+            long id = body.getLong();
+            long timestamp = body.getLong();
+            String name = SnapshotSegment.getString(body);
+            String path = SnapshotSegment.getString(body);
+            Blob blob = blobsById.get(body.getLong());
+            if (!replayedIds.add(id)) {
+                return; // 压缩后的段与尚未删除的旧段内容重复
+            }
+            if (blob == null) {
+                logger.warning("快照引用的 blob 不存在，已忽略: " + id);
+                return;
+            }
+            addEntry(id, name, path, timestamp, blob);
+            logicalBytes.addAndGet(blob.size);
+            snapshotCount.incrementAndGet();
+            nextId = Math.max(nextId, id + 1);
+        } else if (type == SnapshotSegment.TYPE_SNAPSHOT || type == SnapshotSegment.TYPE_SNAPSHOT_DELTA) {
+            replayInlineSnapshot(segment, recordOffset, body, type);
+        } else if (type == SnapshotSegment.TYPE_DELETE) {
+            applyDelete(SnapshotSegment.getString(body));
+        } else if (type == SnapshotSegment.TYPE_RENAME) {
+            String oldPath = SnapshotSegment.getString(body);
+            applyRename(oldPath, SnapshotSegment.getString(body));
+        } else if (type == SnapshotSegment.TYPE_RENAME_DIR) {
+            String oldDir = SnapshotSegment.getString(body);
+            applyRenameDirectory(oldDir, SnapshotSegment.getString(body));
+        } else if (type == SnapshotSegment.TYPE_TOMBSTONE) {
+            String path = SnapshotSegment.getString(body);
+            long deletedAt = body.getLong();
+            applyTombstone(path, deletedAt, body.get() != 0);
+        } else if (type == SnapshotSegment.TYPE_RESTORE) {
+            String path = SnapshotSegment.getString(body);
+            applyRestore(path, body.get() != 0);
+        } else if (type == SnapshotSegment.TYPE_DROP) {
+            int count = body.getInt();
+            List<Long> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ids.add(body.getLong());
+            }
+            applyDrop(ids);
+        } else {
+            logger.warning("未知的记录类型 " + type + "，位于 " + segment.file);
+        }
+    }
+
+    // 旧格式的快照记录把内容直接写在记录里，重放时把内容当作一个不参与去重的 blob
+    private void replayInlineSnapshot(SnapshotSegment segment, long recordOffset, ByteBuffer body, byte type) {
+        long id = body.getLong();
+        if (!replayedIds.add(id)) {
+            return;
+        }
+        long timestamp = body.getLong();
+        String name = SnapshotSegment.getString(body);
+        String path = SnapshotSegment.getString(body);
+        Blob base = null;
+        int size = -1;
+        if (type == SnapshotSegment.TYPE_SNAPSHOT_DELTA) {
+            Entry baseEntry = byId.get(body.getLong());
+            size = body.getInt();
+            if (baseEntry == null) {
+                logger.warning("增量快照缺少基准版本，已忽略: " + id);
+                return;
+            }
+            base = baseEntry.blob;
+        }
+        int length = body.getInt();
+        Blob blob = new Blob(id, 0, false, size < 0 ? length : size, segment.number,
+                recordOffset + SnapshotSegment.RECORD_HEADER_SIZE + body.position(), length, base);
+        addBlob(blob);
+        addEntry(id, name, path, timestamp, blob);
+        storedBytes.addAndGet(length);
+        logicalBytes.addAndGet(blob.size);
+        snapshotCount.incrementAndGet();
+        nextId = Math.max(nextId, id + 1);
+    }
+
+    private synchronized void addBlob(Blob blob) {
+        blobsById.put(blob.id, blob);
+        if (blob.hashed) {
+            blobsByHash.put(blob.hash, blob);
+        }
+    }
+
+    private synchronized void addEntry(long id, String name, String path, long timestamp, Blob blob) {
+        if (tombstones.containsKey(path)) {
+            // 宽限期内同一路径又保存了快照，说明文件回来了，先恢复它的历史
+            restoreExact(path);
+            sortTimeline();
+        }
+        TrackedFile file = files.get(path);
+        if (file == null) {
+            file = new TrackedFile(nextFileId++, path);
+            files.put(path, file);
+        }
+        Entry entry = new Entry(id, name, file, timestamp, blob);
+        byId.put(entry.id, entry);
+        insertSorted(file.history, entry);
+        insertSorted(timeline, entry);
+    }
+
+    // 某个路径当前的历史，没有时返回空列表；须持有 this
+    private List<Entry> historyOf(String path) {
+        TrackedFile file = files.get(path);
+        return file == null ? Collections.emptyList() : file.history;
+    }
+
+    // 正常保存时时间戳递增，插入位置就在末尾
+    private static void insertSorted(List<Entry> entries, Entry entry) {
+        int i = entries.size();
+        while (i > 0 && compareTime(entries.get(i - 1), entry) > 0) {
+            i--;
+        }
+        entries.add(i, entry);
+    }
+
+    private static int compareTime(Entry a, Entry b) {
+        int c = Long.compare(a.timestamp, b.timestamp);
+        return c != 0 ? c : Long.compare(a.id, b.id);
+    }
+
+    // 按路径彻底清除：当前的文件和同一路径上的墓碑都去掉
+    private synchronized void applyDelete(String path) {
+        tombstones.remove(path);
+        TrackedFile file = files.remove(path);
+        if (file != null) {
+            file.history.forEach(e -> byId.remove(e.id));
+            timelineStale = true;
+        }
+    }
+
+    // 路径本身，以及 recursive 时其下的所有路径
+    private static List<String> pathsUnder(NavigableMap<String, ?> map, String path, boolean recursive) {
+        List<String> paths = new ArrayList<>();
+        if (map.containsKey(path)) {
+            paths.add(path);
+        }
+        if (recursive) {
+            String prefix = path + "/";
+            paths.addAll(map.subMap(prefix, true, prefix + Character.MAX_VALUE, true).keySet());
+        }
+        return paths;
+    }
+
+    // 把路径（目录时包括其下所有文件）的历史移到墓碑中，返回被隐藏的路径；已有的墓碑保持不变
+    private synchronized List<String> applyTombstone(String path, long deletedAt, boolean recursive) {
+        List<String> buried = pathsUnder(files, path, recursive);
+        if (buried.isEmpty()) {
+            return buried;
+        }
+        for (String buriedPath : buried) {
+            TrackedFile file = files.remove(buriedPath);
+            file.history.forEach(e -> byId.remove(e.id));
+            tombstones.put(buriedPath, new Tombstone(file, deletedAt));
+        }
+        timelineStale = true;
+        return buried;
+    }
+
+    private synchronized void applyRestore(String path, boolean recursive) {
+        List<String> restored = pathsUnder(tombstones, path, recursive);
+        for (String restoredPath : restored) {
+            restoreExact(restoredPath);
+        }
+        if (!restored.isEmpty()) {
+            sortTimeline();
+        }
+    }
+
+    // 墓碑中的历史重新可见；同一路径已有新历史时并入其中。调用者之后须对 timeline 排序
+    private void restoreExact(String path) {
+        liveTimeline(); // 恢复的条目可能还留在 timeline 中，先清除再加入，避免重复
+        Tombstone tombstone = tombstones.remove(path);
+        TrackedFile target = files.get(path);
+        if (target == null) {
+            files.put(path, tombstone.file);
+            target = tombstone.file;
+        }
+        for (Entry entry : tombstone.file.history) {
+            Entry restored = entry;
+            if (target != tombstone.file) {
+                restored = new Entry(entry.id, entry.name, target, entry.timestamp, entry.blob);
+                insertSorted(target.history, restored);
+            }
+            byId.put(restored.id, restored);
+            timeline.add(restored);
+        }
+    }
+
+    private void sortTimeline() {
+        timeline.sort(SegmentedVersionControl::compareTime);
+    }
+
+    // 清除 timeline 中已不可见的条目后返回；一批删除只需遍历一次 timeline；须持有 this
+    private List<Entry> liveTimeline() {
+        if (timelineStale) {
+            timeline.removeIf(e -> byId.get(e.id) != e);
+            timelineStale = false;
+        }
+        return timeline;
+    }
+
+    private synchronized void applyDrop(Collection<Long> ids) {
+        Set<Long> dropped = new HashSet<>();
+        Set<TrackedFile> touched = new HashSet<>();
+        for (long id : ids) {
+            Entry entry = byId.remove(id);
+            if (entry != null) {
+                dropped.add(id);
+                touched.add(entry.file);
+            }
+        }
+        if (dropped.isEmpty()) {
+            return;
+        }
+        for (TrackedFile file : touched) {
+            file.history.removeIf(e -> dropped.contains(e.id));
+            if (file.history.isEmpty()) {
+                files.remove(file.path, file);
+            }
+        }
+        timelineStale = true;
+    }
+
+    private synchronized void applyRename(String oldPath, String newPath) {
+        if (oldPath.equals(newPath)) {
+            return;
+        }
+        TrackedFile file = files.remove(oldPath);
+        if (file == null) {
+            return;
+        }
+        if (tombstones.containsKey(newPath)) {
+            // 移动到刚删除的文件的位置：那份历史先恢复，再和移过来的合并
+            restoreExact(newPath);
+            sortTimeline();
+        }
+        TrackedFile target = files.get(newPath);
+        if (target == null) {
+            // 只修改文件的当前路径，快照条目不变
+            file.path = newPath;
+            files.put(newPath, file);
+            return;
+        }
+        // 目标路径已有历史（例如移动时覆盖了另一个文件），把条目并入目标文件
+        List<Entry> live = liveTimeline(); // 先清除，下面按 byId 替换后不能再清
+        for (Entry entry : file.history) {
+            Entry moved = new Entry(entry.id, entry.name, target, entry.timestamp, entry.blob);
+            byId.put(moved.id, moved);
+            insertSorted(target.history, moved);
+            // 时间和 id 不变，在 timeline 中原位替换
+            int i = Collections.binarySearch(live, entry, SegmentedVersionControl::compareTime);
+            if (i >= 0) {
+                live.set(i, moved);
+            }
+        }
+    }
+
+    // 目录改名或移动：oldDir 下的每个文件换成 newDir 下的同名路径
+    private synchronized void applyRenameDirectory(String oldDir, String newDir) {
+        String oldPrefix = oldDir + "/";
+        String newPrefix = newDir + "/";
+        List<String> moved = new ArrayList<>(files.subMap(oldPrefix, true, oldPrefix + Character.MAX_VALUE, true).keySet());
+        for (String path : moved) {
+            applyRename(path, newPrefix + path.substring(oldPrefix.length()));
+        }
+    }
+
+    private boolean compactQuietly() {
+        try {
+            return compactSegments();
+        } catch (IOException e) {
+            logger.warning("压缩段文件失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 压缩已封存的段：只把仍被引用的 blob 和快照复制到新段，换上新段后删除旧段；返回是否做了压缩。
+     * 确定计划和换段在写任务中进行，耗时的复制在调用线程上进行，期间保存照常写入新的活动段。
+     */
+    boolean compactSegments() throws IOException {
+        CompletableFuture<CompactionPlan> planned = new CompletableFuture<>();
+        if (!writer.execute(() -> completeWith(planned, this::planCompaction))) {
+            return false;
+        }
+        CompactionPlan plan = await(planned);
+        if (plan == null) {
+            return false;
+        }
+        Map<Long, Blob> copied = new HashMap<>();
+        List<SnapshotSegment> outputs = writeCompacted(plan, copied);
+        if (outputs == null) {
+            return false;
+        }
+        CompletableFuture<Boolean> swapped = new CompletableFuture<>();
+        if (!writer.execute(() -> completeWith(swapped, () -> swapCompacted(plan, outputs, copied)))) {
+            deleteQuietly(outputs);
+            return false;
+        }
+        boolean done = await(swapped);
+        if (done) {
+            logger.info("压缩了 " + plan.sealed.size() + " 个段文件，保留 " + plan.entries.size() + " 个快照");
+        }
+        return done;
+    }
+
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    private static <T> void completeWith(CompletableFuture<T> future, IOSupplier<T> step) {
+        try {
+            future.complete(step.get());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("压缩被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    // 在写任务中执行：统计存活数据，垃圾足够多时封存活动段并预留新段的段号
+    private CompactionPlan planCompaction() throws IOException {
+        if (active == null) {
+            return null;
+        }
+        List<SnapshotSegment> sealed;
+        List<Entry> entries;
+        Map<Long, Blob> live = new TreeMap<>();
+        Map<String, Long> buried = new TreeMap<>();
+        synchronized (this) {
+            sealed = new ArrayList<>(segments.values());
+            entries = retainedEntries();
+            for (Map.Entry<String, Tombstone> tombstone : tombstones.entrySet()) {
+                buried.put(tombstone.getKey(), tombstone.getValue().deletedAt);
+            }
+            for (Entry entry : entries) {
+                Blob blob = entry.blob;
+                while (blob != null && live.putIfAbsent(blob.id, blob) == null) {
+                    blob = blob.base;
+                }
+            }
+            // 不再被引用的 blob 不能再被去重命中，否则换段时会丢失
+            blobsByHash.values().removeIf(blob -> !live.containsKey(blob.id));
+        }
+        long sealedBytes = 0;
+        for (SnapshotSegment segment : sealed) {
+            sealedBytes += segment.size() - SnapshotSegment.HEADER_SIZE;
+        }
+        long liveBytes = 0;
+        for (Blob blob : live.values()) {
+            liveBytes += BLOB_RECORD_OVERHEAD + blob.payloadLength + (blob.codec != SnapshotCodec.IDENTITY_ID ? CODED_BLOB_EXTRA : 0);
+        }
+        for (Entry entry : entries) {
+            liveBytes += REF_RECORD_OVERHEAD + entry.name.length() + entry.path().length();
+        }
+        for (String path : buried.keySet()) {
+            liveBytes += TOMBSTONE_RECORD_OVERHEAD + path.length();
+        }
+        if (sealedBytes == 0 || liveBytes > sealedBytes * (1 - COMPACTION_GARBAGE_RATIO)) {
+            return null;
+        }
+        // 封存当前活动段，之后的写入从预留的段号之后开始
+        active.commit(true);
+        long firstNumber = active.number + 1;
+        SnapshotSegment next = SnapshotSegment.create(segmentDir, firstNumber + sealed.size());
+        synchronized (this) {
+            segments.put(next.number, next);
+        }
+        active = next;
+        entries.sort(Comparator.comparingLong(e -> e.id));
+        // 改名和删除也在写任务中执行，这里取到的路径与已封存段重放后的状态一致；之后的记录在新的活动段中
+        List<String> paths = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            paths.add(entry.path());
+        }
+        return new CompactionPlan(sealed, firstNumber, sealed.size(), new ArrayList<>(live.values()), entries, paths, buried);
+    }
+
+    // 压缩时要保留的快照：可见的快照加上墓碑中还能恢复的快照；须持有 this
+    private List<Entry> retainedEntries() {
+        List<Entry> entries = new ArrayList<>(byId.values());
+        for (Tombstone tombstone : tombstones.values()) {
+            entries.addAll(tombstone.file.history);
+        }
+        return entries;
+    }
+
+    // 在压缩线程上执行：把存活的 blob 和快照写入临时段，copied 记录 blob 在新段中的位置；放弃时返回 null
+    private List<SnapshotSegment> writeCompacted(CompactionPlan plan, Map<Long, Blob> copied) throws IOException {
+        List<SnapshotSegment> outputs = new ArrayList<>();
+        Map<Long, byte[]> decoded = newDecodeCache();
+        boolean done = false;
+        try {
+            SnapshotSegment out = null;
+            long unflushed = 0;
+            for (Blob blob : plan.blobs) {
+                if (closing) {
+                    return null;
+                }
+                // 旧格式的内容没有哈希，复制时补上，之后也能参与去重
+                long hash = blob.hashed ? blob.hash : ContentHash.hash64(readContent(blob, decoded));
+                // 压缩过的内容原样复制，不重新编码
+                boolean coded = blob.codec != SnapshotCodec.IDENTITY_ID;
+                ByteBuffer body = ByteBuffer.allocate(BLOB_RECORD_OVERHEAD - SnapshotSegment.RECORD_HEADER_SIZE
+                        + (coded ? CODED_BLOB_EXTRA : 0) + blob.payloadLength);
+                body.put(coded ? SnapshotSegment.TYPE_CODED_BLOB : SnapshotSegment.TYPE_BLOB)
+                        .putLong(blob.id)
+                        .putLong(hash)
+                        .putInt(blob.size)
+                        .putLong(blob.base == null ? -1 : blob.base.id);
+                if (coded) {
+                    body.put(blob.codec).putInt(blob.rawLength);
+                }
+                body.putInt(blob.payloadLength);
+                int payloadPosition = body.position();
+                body.put(payload(blob));
+                body.flip();
+                ByteBuffer record = SnapshotSegment.frame(body);
+                out = compactionOutput(out, outputs, plan, record.remaining());
+                if (out == null) {
+                    return null;
+                }
+                long offset = out.append(record);
+                Blob base = blob.base == null ? null : copied.get(blob.base.id);
+                copied.put(blob.id, blob.moveTo(out.number, offset + SnapshotSegment.RECORD_HEADER_SIZE + payloadPosition, hash, base));
+                unflushed += record.capacity();
+                if (unflushed >= COMPACTION_FLUSH_BYTES) {
+                    out.commit(false);
+                    unflushed = 0;
+                }
+            }
+            for (int i = 0; i < plan.entries.size(); i++) {
+                if (closing) {
+                    return null;
+                }
+                Entry entry = plan.entries.get(i);
+                byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+                byte[] path = plan.paths.get(i).getBytes(StandardCharsets.UTF_8);
+                ByteBuffer body = ByteBuffer.allocate(1 + 8 + 8 + SnapshotSegment.stringSize(name)
+                        + SnapshotSegment.stringSize(path) + 8);
+                body.put(SnapshotSegment.TYPE_SNAPSHOT_REF)
+                        .putLong(entry.id)
+                        .putLong(entry.timestamp);
+                SnapshotSegment.putString(body, name);
+                SnapshotSegment.putString(body, path);
+                body.putLong(entry.blob.id);
+                body.flip();
+                ByteBuffer record = SnapshotSegment.frame(body);
+                out = compactionOutput(out, outputs, plan, record.remaining());
+                if (out == null) {
+                    return null;
+                }
+                out.append(record);
+                unflushed += record.capacity();
+                if (unflushed >= COMPACTION_FLUSH_BYTES) {
+                    out.commit(false);
+                    unflushed = 0;
+                }
+            }
+            // 墓碑写在快照之后：重放时先建立历史再隐藏，删除时间不变，宽限期照常计算
+            for (Map.Entry<String, Long> tombstone : plan.tombstones.entrySet()) {
+                byte[] path = tombstone.getKey().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer body = ByteBuffer.allocate(1 + SnapshotSegment.stringSize(path) + 8 + 1);
+                body.put(SnapshotSegment.TYPE_TOMBSTONE);
+                SnapshotSegment.putString(body, path);
+                body.putLong(tombstone.getValue()).put((byte) 0);
+                body.flip();
+                ByteBuffer record = SnapshotSegment.frame(body);
+                out = compactionOutput(out, outputs, plan, record.remaining());
+                if (out == null) {
+                    return null;
+                }
+                out.append(record);
+            }
+            for (SnapshotSegment segment : outputs) {
+                segment.commit(true);
+            }
+            done = true;
+            return outputs;
+        } finally {
+            if (!done) {
+                deleteQuietly(outputs);
+            }
+        }
+    }
+
+    // 当前临时段放不下时开始下一个；预留的段号用完时返回 null，放弃这次压缩
+    private SnapshotSegment compactionOutput(SnapshotSegment out, List<SnapshotSegment> outputs, CompactionPlan plan, int recordSize) throws IOException {
+        if (out != null && (out.size() <= SnapshotSegment.HEADER_SIZE || out.size() + recordSize <= maxSegmentBytes)) {
+            return out;
+        }
+        if (outputs.size() >= plan.reservedNumbers) {
+            logger.warning("压缩后的段数超过预留的段号，放弃这次压缩");
+            return null;
+        }
+        SnapshotSegment next = SnapshotSegment.createTemp(segmentDir, plan.firstNumber + outputs.size());
+        outputs.add(next);
+        return next;
+    }
+
+    // 在写任务中执行：确认复制期间没有重新引用旧段中未复制的 blob，然后换上新段并更新内存索引
+    private boolean swapCompacted(CompactionPlan plan, List<SnapshotSegment> outputs, Map<Long, Blob> copied) throws IOException {
+        Set<Long> sealedNumbers = new HashSet<>();
+        for (SnapshotSegment segment : plan.sealed) {
+            sealedNumbers.add(segment.number);
+        }
+        synchronized (this) {
+            for (Entry entry : retainedEntries()) {
+                for (Blob blob = entry.blob; blob != null; blob = blob.base) {
+                    if (sealedNumbers.contains(blob.segment) && !copied.containsKey(blob.id)) {
+                        logger.warning("压缩期间有快照引用了未复制的 blob，放弃这次压缩: " + blob.id);
+                        deleteQuietly(outputs);
+                        return false;
+                    }
+                }
+            }
+        }
+        List<SnapshotSegment> published = new ArrayList<>(outputs.size());
+        for (SnapshotSegment output : outputs) {
+            published.add(output.publish());
+        }
+        synchronized (this) {
+            for (SnapshotSegment segment : published) {
+                segments.put(segment.number, segment);
+            }
+            // 复制过的 blob 换成新位置；以它们为基准的新 blob 也要重建，旧段中剩下的 blob 丢弃
+            Map<Long, Blob> remapped = new HashMap<>(copied);
+            List<Blob> blobs = new ArrayList<>(blobsById.values());
+            blobs.sort(Comparator.comparingLong(b -> b.id));
+            for (Blob blob : blobs) {
+                Blob replacement = remapped.get(blob.id);
+                if (replacement == null) {
+                    if (sealedNumbers.contains(blob.segment)) {
+                        blobsById.remove(blob.id);
+                        blobsByHash.remove(blob.hash, blob);
+                        storedBytes.addAndGet(-blob.payloadLength);
+                        continue;
+                    }
+                    if (blob.base == null || !remapped.containsKey(blob.base.id)) {
+                        continue;
+                    }
+                    replacement = new Blob(blob.id, blob.hash, blob.hashed, blob.size, blob.segment,
+                            blob.payloadOffset, blob.payloadLength, remapped.get(blob.base.id), blob.codec, blob.rawLength);
+                    remapped.put(blob.id, replacement);
+                }
+                blobsById.put(blob.id, replacement);
+                if (blob.hashed) {
+                    blobsByHash.remove(blob.hash, blob);
+                }
+                blobsByHash.putIfAbsent(replacement.hash, replacement);
+            }
+            Map<Long, Entry> rebuilt = new HashMap<>();
+            for (Entry entry : retainedEntries()) {
+                Blob blob = remapped.get(entry.blob.id);
+                if (blob != null) {
+                    rebuilt.put(entry.id, new Entry(entry.id, entry.name, entry.file, entry.timestamp, blob));
+                }
+            }
+            List<Entry> live = liveTimeline(); // 须在 byId 替换之前清除，否则新条目会被当作已删除
+            byId.replaceAll((id, e) -> rebuilt.getOrDefault(id, e));
+            for (TrackedFile file : files.values()) {
+                file.history.replaceAll(e -> rebuilt.getOrDefault(e.id, e));
+            }
+            for (Tombstone tombstone : tombstones.values()) {
+                tombstone.file.history.replaceAll(e -> rebuilt.getOrDefault(e.id, e));
+            }
+            live.replaceAll(e -> rebuilt.getOrDefault(e.id, e));
+            for (SnapshotSegment segment : plan.sealed) {
+                segments.remove(segment.number);
+            }
+        }
+        retireSegments(plan.sealed);
+        return true;
+    }
+
+    // 先把旧段记入 obsolete.list 再删除；删除失败（例如 Windows 上文件仍被映射）的留在清单中，下次打开时再删
+    private void retireSegments(List<SnapshotSegment> retired) throws IOException {
+        Set<String> pending = readObsolete();
+        for (SnapshotSegment segment : retired) {
+            pending.add(segment.file.getFileName().toString());
+        }
+        writeObsolete(pending);
+        for (SnapshotSegment segment : retired) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                logger.warning("关闭段文件失败: " + segment.file);
+            }
+        }
+        List<String> undeleted = new ArrayList<>();
+        for (String name : pending) {
+            try {
+                Files.deleteIfExists(segmentDir.resolve(name));
+            } catch (IOException e) {
+                undeleted.add(name);
+            }
+        }
+        writeObsolete(undeleted);
+    }
+
+    private Set<String> readObsolete() throws IOException {
+        Path file = segmentDir.resolve(OBSOLETE_FILE);
+        Set<String> names = new LinkedHashSet<>();
+        if (Files.isRegularFile(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    names.add(line.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    // 先写临时文件再替换；清单为空时删除文件
+    private void writeObsolete(Collection<String> names) throws IOException {
+        Path file = segmentDir.resolve(OBSOLETE_FILE);
+        if (names.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Path tmp = segmentDir.resolve(OBSOLETE_FILE + SnapshotSegment.TEMP_SUFFIX);
+        Files.write(tmp, names, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteQuietly(List<SnapshotSegment> segments) {
+        for (SnapshotSegment segment : segments) {
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                logger.warning("删除临时段失败: " + segment.file);
+            }
+        }
+    }
+
+    // 把旧版本每个快照一个文件的历史导入段文件，导入成功后删除旧文件
+    private void importLegacySnapshots() throws IOException {
+        List<Path> legacy = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file) && !file.getFileName().toString().equals(SnapshotStoreOptions.FILE_NAME)) {
+                    legacy.add(file);
+                }
+            }
+        }
+        if (legacy.isEmpty()) {
+            return;
+        }
+        List<Snapshot> imported = new ArrayList<>();
+        List<Path> done = new ArrayList<>();
+        // 通过旧格式的索引读取：改名只记录在索引中，快照的路径以索引为准
+        try (SnapshotIndex index = SnapshotIndex.open(baseDir, VersionControlImpl::readSnapshot)) {
+            for (SnapshotIndex.Entry entry : index.allEntries()) {
+                Path file = baseDir.resolve(entry.name);
+                Snapshot snapshot = VersionControlImpl.readSnapshot(file);
+                if (snapshot != null) {
+                    snapshot.setFilePath(entry.path);
+                    imported.add(snapshot);
+                    done.add(file);
+                }
+            }
+        }
+        done.add(baseDir.resolve(SnapshotIndex.INDEX_FILE_NAME));
+        done.add(baseDir.resolve(SnapshotIndex.INDEX_FILE_NAME + ".tmp"));
+        imported.sort(Comparator.comparingLong(Snapshot::getRealTimestamp));
+        for (Snapshot snapshot : imported) {
+            appendSnapshot(snapshot);
+        }
+        // 导入的记录落盘后才能删除旧文件
+        if (active != null) {
+            active.commit(true);
+        }
+        for (Path file : done) {
+            Files.deleteIfExists(file);
+        }
+        logger.info("导入了 " + imported.size() + " 个旧格式快照");
+    }
+}
@@ -0,0 +1,47 @@
+package tongji.ggyl.versioncontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * SnapshotCodec 是快照内容写入段文件前的压缩编码，由存储的写线程调用 encode，读取时在任意线程上调用 decode。
+ * 实现须是线程安全的。id 写在每条 blob 记录里，一经使用就不能再分配给别的编码。
+ */
+public interface SnapshotCodec {
+    byte IDENTITY_ID = 0;
+    byte DEFLATE_ID = 1;
+
+    byte getId();
+
+    String getName();
+
+    byte[] encode(byte[] raw);
+
+    // 把 encoded 的剩余字节还原为 rawLength 字节的原始内容
+    byte[] decode(ByteBuffer encoded, int rawLength) throws IOException;
+
+    // 不压缩，原样保存
+    static SnapshotCodec identity() {
+        return IdentityCodec.INSTANCE;
+    }
+
+    // JDK 自带的 Deflater，level 为 1（最快）到 9（最小）
+    static SnapshotCodec deflate(int level) {
+        return new DeflateCodec(level);
+    }
+
+    // 解析配置中的编码，例如 identity、deflate、deflate:9
+    static SnapshotCodec parse(String spec) {
+        String value = spec.trim().toLowerCase();
+        int colon = value.indexOf(':');
+        String name = colon < 0 ? value : value.substring(0, colon);
+        if (name.equals(IdentityCodec.NAME)) {
+            return identity();
+        }
+        if (name.equals(DeflateCodec.NAME)) {
+            return deflate(colon < 0 ? Deflater.DEFAULT_COMPRESSION : Integer.parseInt(value.substring(colon + 1)));
+        }
+        throw new IllegalArgumentException("未知的压缩编码: " + spec);
+    }
+}
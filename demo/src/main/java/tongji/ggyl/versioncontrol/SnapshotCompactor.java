@@ -0,0 +1,118 @@
+package tongji.ggyl.versioncontrol;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * SnapshotCompactor 在共用 I/O 调度器的后台 Lane 上定期整理快照历史（低优先级，与其他项目的整理轮流执行）：
+ * 先清除删除宽限期已过的文件历史，再按 RetentionPolicy 选出过期的快照并删除，最后执行存储自己的压缩（例如合并段文件、回收空间）。
+ * 删除和压缩中修改索引的步骤都交给存储的写队列执行，不会阻塞保存。
+ */
+public class SnapshotCompactor {
+    private static final Logger logger = Logger.getLogger(SnapshotCompactor.class.getName());
+
+    private final VersionControl store;
+    private final RetentionPolicy policy;
+    private final BooleanSupplier compaction; // 存储自己的空间回收，返回是否做了压缩；可以为 null
+    private final SnapshotIoScheduler.Lane lane;
+    private volatile ScheduledFuture<?> next; // 下一次定期整理
+    private volatile boolean stopped = false;
+    private long periodNanos;
+    private volatile long lastRunMillis = 0;
+    private volatile long droppedTotal = 0;
+    private volatile long compactionsTotal = 0;
+
+    public SnapshotCompactor(String name, SnapshotIoScheduler scheduler, VersionControl store, RetentionPolicy policy,
+                             BooleanSupplier compaction) {
+        this.store = store;
+        this.policy = policy;
+        this.compaction = compaction;
+        this.lane = scheduler.newLane(name, SnapshotIoScheduler.Priority.BACKGROUND);
+    }
+
+    // 启动后等 initialDelay 第一次整理，之后每次整理结束再隔 period 整理一次
+    public void start(long initialDelay, long period, TimeUnit unit) {
+        periodNanos = unit.toNanos(period);
+        next = lane.schedule(this::runScheduled, initialDelay, unit);
+    }
+
+    private void runScheduled() {
+        runQuietly();
+        if (!stopped) {
+            next = lane.schedule(this::runScheduled, periodNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // 立即整理一次，返回删除的快照个数；在调用线程上执行
+    public synchronized int runOnce() {
+        long now = System.currentTimeMillis();
+        int dropped = 0;
+        // 先清除宽限期已过的已删除文件，它们的空间也由之后的压缩回收
+        int swept = store.sweepDeletedSnapshots();
+        if (swept > 0) {
+            logger.info("清除了 " + swept + " 个已删除文件的历史");
+        }
+        if (!policy.isKeepAll()) {
+            List<SnapshotMeta> metas;
+            try (Stream<SnapshotMeta> stream = store.streamSnapshotMetas(SnapshotQuery.all())) {
+                metas = stream.collect(Collectors.toList());
+            }
+            Set<Long> expired = policy.select(metas, now);
+            if (!expired.isEmpty()) {
+                store.deleteSnapshots(expired);
+                dropped = expired.size();
+                droppedTotal += dropped;
+            }
+        }
+        if (compaction != null && compaction.getAsBoolean()) {
+            compactionsTotal++;
+        }
+        lastRunMillis = now;
+        if (dropped > 0) {
+            logger.info("按保留策略清理了 " + dropped + " 个快照");
+        }
+        return dropped;
+    }
+
+    private void runQuietly() {
+        try {
+            runOnce();
+        } catch (RuntimeException e) {
+            logger.warning("整理快照历史失败: " + e);
+        }
+    }
+
+    public RetentionPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getLastRunMillis() {
+        return lastRunMillis;
+    }
+
+    public long getDroppedTotal() {
+        return droppedTotal;
+    }
+
+    public long getCompactionsTotal() {
+        return compactionsTotal;
+    }
+
+    // 停止定期整理；正在进行的一次会在压缩的检查点上尽快结束
+    public void shutdown(long timeout, TimeUnit unit) {
+        stopped = true;
+        ScheduledFuture<?> pending = next;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        if (!lane.close(timeout, unit)) {
+            logger.warning("整理快照历史的任务没有按时结束");
+        }
+    }
+}
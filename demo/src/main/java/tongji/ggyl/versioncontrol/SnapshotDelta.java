@@ -0,0 +1,122 @@
+package tongji.ggyl.versioncontrol;
+
+import com.github.difflib.DiffUtils;
+import com.github.difflib.patch.AbstractDelta;
+import com.github.difflib.patch.Patch;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SnapshotDelta 用 java-diff-utils 计算两个版本之间的行级差异，并编码成紧凑的二进制补丁。
+ * 补丁格式：[差异块个数]，每块为 [原文起始行][原文行数][新行数][新行...]，按原文位置升序排列。
+ */
+final class SnapshotDelta {
+
+    private SnapshotDelta() {
+    }
+
+    /**
+     * 计算从 base 到 target 的补丁；内容不是合法 UTF-8 或补丁不比原文小时返回 null，
+     * 调用方此时应保存完整内容。
+     */
+    static byte[] encode(byte[] base, byte[] target) {
+        List<String> baseLines = splitLines(base);
+        List<String> targetLines = splitLines(target);
+        if (baseLines == null || targetLines == null) {
+            return null;
+        }
+        Patch<String> patch = DiffUtils.diff(baseLines, targetLines);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(patch.getDeltas().size());
+            for (AbstractDelta<String> delta : patch.getDeltas()) {
+                out.writeInt(delta.getSource().getPosition());
+                out.writeInt(delta.getSource().size());
+                List<String> lines = delta.getTarget().getLines();
+                out.writeInt(lines.size());
+                for (String line : lines) {
+                    byte[] utf8 = line.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                }
+                if (out.size() >= target.length) {
+                    return null; // 补丁已经比完整内容大，不划算
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // 把补丁应用到 base 上，还原出新版本的内容
+    static byte[] apply(byte[] base, ByteBuffer patch) throws IOException {
+        List<String> baseLines = splitLines(base);
+        if (baseLines == null) {
+            throw new IOException("增量快照的基准内容不是合法的 UTF-8");
+        }
+        List<String> result = new ArrayList<>(baseLines.size());
+        int cursor = 0;
+        int count = patch.getInt();
+        for (int i = 0; i < count; i++) {
+            int position = patch.getInt();
+            int sourceSize = patch.getInt();
+            int lineCount = patch.getInt();
+            if (position < cursor || position + sourceSize > baseLines.size()) {
+                throw new IOException("增量快照的补丁与基准内容不匹配");
+            }
+            result.addAll(baseLines.subList(cursor, position));
+            for (int j = 0; j < lineCount; j++) {
+                byte[] utf8 = new byte[patch.getInt()];
+                patch.get(utf8);
+                result.add(new String(utf8, StandardCharsets.UTF_8));
+            }
+            cursor = position + sourceSize;
+        }
+        result.addAll(baseLines.subList(cursor, baseLines.size()));
+        return String.join("\n", result).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 只读出补丁中各差异块的位置和行数，不解码新行的内容；补丁格式不对时抛出 IOException
+    static List<LineChange> changes(ByteBuffer patch) throws IOException {
+        try {
+            int count = patch.getInt();
+            List<LineChange> changes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int position = patch.getInt();
+                int sourceSize = patch.getInt();
+                int lineCount = patch.getInt();
+                for (int j = 0; j < lineCount; j++) {
+                    int length = patch.getInt();
+                    patch.position(patch.position() + length);
+                }
+                changes.add(new LineChange(position, sourceSize, lineCount));
+            }
+            return changes;
+        } catch (RuntimeException e) {
+            throw new IOException("补丁格式不正确: " + e);
+        }
+    }
+
+    // 按 "\n" 切分且保留末尾空行，保证 join 后与原内容逐字节相同；不是合法 UTF-8 时返回 null
+    private static List<String> splitLines(byte[] content) {
+        String text;
+        try {
+            text = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(content))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+        return Arrays.asList(text.split("\n", -1));
+    }
+}
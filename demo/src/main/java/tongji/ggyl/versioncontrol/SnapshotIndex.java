@@ -0,0 +1,468 @@
+package tongji.ggyl.versioncontrol;
+
+import tongji.ggyl.eventlistening.Snapshot;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * SnapshotIndex 是快照目录的持久化索引，记录 文件路径 -> 快照条目（id、快照文件名、时间戳、大小）。
+ * 索引以追加日志的形式保存在快照目录下，由 saveVersionSnapshot 增量维护；
+ * 打开时若索引缺失或损坏，会扫描目录重建，按文件查询时只需读取该文件自己的快照。
+ * 改名和移动只修改索引中的路径，快照文件里保存的仍是保存时的路径，读取时以索引为准。
+ */
+class SnapshotIndex implements Closeable {
+    static final String INDEX_FILE_NAME = ".index";
+    private static final Logger logger = Logger.getLogger(SnapshotIndex.class.getName());
+    private static final int MAGIC = 0x534E4958; // "SNIX"
+    private static final int VERSION = 1;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_MOVE = 3;
+    private static final byte OP_DROP = 4; // 按保留策略移除单个快照
+    private static final byte OP_MOVE_DIR = 5; // 目录改名或移动
+    private static final byte OP_REMOVE_DIR = 6; // 目录被删除
+
+    // 索引中的一条快照记录
+    static final class Entry {
+        final long id;
+        final String name;      // 快照在目录中的文件名
+        final String path;      // 被快照的源文件路径
+        final long timestamp;
+        final int size;         // 快照内容的字节数
+
+        Entry(long id, String name, String path, long timestamp, int size) {
+            this.id = id;
+            this.name = name;
+            this.path = path;
+            this.timestamp = timestamp;
+            this.size = size;
+        }
+
+        Entry withPath(String newPath) {
+            return new Entry(id, name, newPath, timestamp, size);
+        }
+
+        SnapshotMeta toMeta() {
+            return new SnapshotMeta(id, name, path, timestamp, size);
+        }
+    }
+
+    private final Path dir;
+    private final Path indexFile;
+    private final Function<Path, Snapshot> reader; // 重建索引时用于反序列化快照文件
+    private final Map<String, List<Entry>> byPath = new HashMap<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<Long, Entry> byId = new HashMap<>();
+    private long nextId = 1;
+    private int journalRecords = 0; // 日志中的记录数，超过存活条目太多时压缩
+    private DataOutputStream journal;
+
+    private SnapshotIndex(Path dir, Function<Path, Snapshot> reader) {
+        this.dir = dir;
+        this.indexFile = dir.resolve(INDEX_FILE_NAME);
+        this.reader = reader;
+    }
+
+    // 打开快照目录的索引，必要时重建
+    static SnapshotIndex open(Path dir, Function<Path, Snapshot> reader) throws IOException {
+        Files.createDirectories(dir);
+        SnapshotIndex index = new SnapshotIndex(dir, reader);
+        boolean dirty = !index.replay();
+        dirty |= index.reconcile();
+        if (dirty) {
+            index.rewrite();
+        } else {
+            index.openJournal();
+        }
+        return index;
+    }
+
+    synchronized Entry add(Snapshot snapshot, String name) {
+        Entry old = byName.remove(name); // 同名快照文件被覆盖
+        if (old != null) {
+            byId.remove(old.id);
+            removeEntry(old);
+        }
+        int size = snapshot.getContent() == null ? 0 : snapshot.getContent().length;
+        Entry entry = new Entry(nextId++, name, snapshot.getFilePath(), snapshot.getRealTimestamp(), size);
+        putEntry(entry);
+        try {
+            // 日志由 sync 统一刷新，成组提交时一批快照只刷新一次
+            journal.writeByte(OP_ADD);
+            writeEntry(journal, entry);
+            journalRecords++;
+        } catch (IOException e) {
+            logger.severe("写入快照索引失败: " + e.getMessage());
+        }
+        return entry;
+    }
+
+    synchronized List<Entry> entriesFor(String path) {
+        List<Entry> entries = byPath.get(path);
+        return entries == null ? new ArrayList<>() : new ArrayList<>(entries);
+    }
+
+    // 同一文件中按 (时间戳, id) 排在给定快照之前的最后一个条目，二分查找
+    synchronized Entry previous(String path, long timestamp, long id) {
+        List<Entry> entries = byPath.get(path);
+        if (entries == null) {
+            return null;
+        }
+        int lo = 0;
+        int hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Entry e = entries.get(mid);
+            if (e.timestamp < timestamp || (e.timestamp == timestamp && e.id < id)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == 0 ? null : entries.get(lo - 1);
+    }
+
+    synchronized Entry entry(long id) {
+        return byId.get(id);
+    }
+
+    synchronized List<Entry> allEntries() {
+        List<Entry> all = new ArrayList<>(byName.size());
+        for (List<Entry> entries : byPath.values()) {
+            all.addAll(entries);
+        }
+        return all;
+    }
+
+    // 移除某个文件的全部条目，返回被移除的条目
+    synchronized List<Entry> removePath(String path) {
+        List<Entry> removed = byPath.remove(path);
+        if (removed == null) {
+            return new ArrayList<>();
+        }
+        for (Entry entry : removed) {
+            byName.remove(entry.name);
+            byId.remove(entry.id);
+        }
+        appendRecord(OP_REMOVE, path, null);
+        return removed;
+    }
+
+    // 移除 dir 下所有文件的条目，整个目录只写一条日志记录；返回被移除的条目
+    synchronized List<Entry> removeDirectory(String dir) {
+        List<Entry> removed = applyRemoveDirectory(dir);
+        if (!removed.isEmpty()) {
+            appendRecord(OP_REMOVE_DIR, dir, null);
+        }
+        return removed;
+    }
+
+    private List<Entry> applyRemoveDirectory(String dir) {
+        String prefix = dir + "/";
+        List<Entry> removed = new ArrayList<>();
+        Iterator<Map.Entry<String, List<Entry>>> it = byPath.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<Entry>> file = it.next();
+            if (file.getKey().startsWith(prefix)) {
+                for (Entry entry : file.getValue()) {
+                    byName.remove(entry.name);
+                    byId.remove(entry.id);
+                    removed.add(entry);
+                }
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    // 按 id 移除若干条目，返回被移除的条目；一批只刷新一次日志
+    synchronized List<Entry> removeIds(Collection<Long> ids) {
+        List<Entry> removed = new ArrayList<>();
+        for (long id : ids) {
+            Entry entry = byId.remove(id);
+            if (entry == null) {
+                continue;
+            }
+            byName.remove(entry.name);
+            removeEntry(entry);
+            removed.add(entry);
+        }
+        if (removed.isEmpty()) {
+            return removed;
+        }
+        try {
+            for (Entry entry : removed) {
+                journal.writeByte(OP_DROP);
+                journal.writeUTF(entry.name);
+                journalRecords++;
+            }
+            journal.flush();
+            if (journalRecords > 2 * byName.size() + 64) {
+                rewrite();
+            }
+        } catch (IOException e) {
+            logger.severe("写入快照索引失败: " + e.getMessage());
+        }
+        return removed;
+    }
+
+    // 把某个文件的全部条目改到新路径下，返回改名后的条目
+    synchronized List<Entry> movePath(String oldPath, String newPath) {
+        List<Entry> renamed = applyMove(oldPath, newPath);
+        if (!renamed.isEmpty()) {
+            appendRecord(OP_MOVE, oldPath, newPath);
+        }
+        return renamed;
+    }
+
+    // 把 oldDir 下每个文件的条目改到 newDir 下的同名路径，整个目录只写一条日志记录；返回改名后的条目
+    synchronized List<Entry> moveDirectory(String oldDir, String newDir) {
+        List<Entry> renamed = applyMoveDirectory(oldDir, newDir);
+        if (!renamed.isEmpty()) {
+            appendRecord(OP_MOVE_DIR, oldDir, newDir);
+        }
+        return renamed;
+    }
+
+    private List<Entry> applyMove(String oldPath, String newPath) {
+        List<Entry> moved = oldPath.equals(newPath) ? null : byPath.remove(oldPath);
+        if (moved == null) {
+            return new ArrayList<>();
+        }
+        List<Entry> renamed = new ArrayList<>(moved.size());
+        for (Entry entry : moved) {
+            Entry newEntry = entry.withPath(newPath);
+            byName.put(newEntry.name, newEntry);
+            byId.put(newEntry.id, newEntry);
+            renamed.add(newEntry);
+        }
+        List<Entry> target = byPath.computeIfAbsent(newPath, k -> new ArrayList<>());
+        for (Entry entry : renamed) {
+            insertSorted(target, entry);
+        }
+        return renamed;
+    }
+
+    private List<Entry> applyMoveDirectory(String oldDir, String newDir) {
+        String oldPrefix = oldDir + "/";
+        String newPrefix = newDir + "/";
+        List<String> paths = new ArrayList<>();
+        for (String path : byPath.keySet()) {
+            if (path.startsWith(oldPrefix)) {
+                paths.add(path);
+            }
+        }
+        List<Entry> renamed = new ArrayList<>();
+        for (String path : paths) {
+            renamed.addAll(applyMove(path, newPrefix + path.substring(oldPrefix.length())));
+        }
+        return renamed;
+    }
+
+    // 把缓冲中的日志记录写入文件
+    synchronized void sync() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            logger.severe("刷新快照索引失败: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private void appendRecord(byte op, String first, String second) {
+        try {
+            journal.writeByte(op);
+            journal.writeUTF(first);
+            if (second != null) {
+                journal.writeUTF(second);
+            }
+            journal.flush();
+            journalRecords++;
+            if (journalRecords > 2 * byName.size() + 64) {
+                rewrite(); // 删除和改名积累过多，压缩日志
+            }
+        } catch (IOException e) {
+            logger.severe("写入快照索引失败: " + e.getMessage());
+        }
+    }
+
+    // 重放索引日志；返回 false 表示索引缺失或损坏，需要重写
+    private boolean replay() {
+        if (!Files.isRegularFile(indexFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("索引文件头不匹配");
+            }
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    return true;
+                }
+                if (op == OP_ADD) {
+                    Entry entry = readEntry(in);
+                    Entry old = byName.remove(entry.name);
+                    if (old != null) {
+                        byId.remove(old.id);
+                        removeEntry(old);
+                    }
+                    putEntry(entry);
+                    nextId = Math.max(nextId, entry.id + 1);
+                } else if (op == OP_REMOVE) {
+                    List<Entry> removed = byPath.remove(in.readUTF());
+                    if (removed != null) {
+                        removed.forEach(e -> {
+                            byName.remove(e.name);
+                            byId.remove(e.id);
+                        });
+                    }
+                } else if (op == OP_MOVE) {
+                    String oldPath = in.readUTF();
+                    applyMove(oldPath, in.readUTF());
+                } else if (op == OP_MOVE_DIR) {
+                    String oldDir = in.readUTF();
+                    applyMoveDirectory(oldDir, in.readUTF());
+                } else if (op == OP_REMOVE_DIR) {
+                    applyRemoveDirectory(in.readUTF());
+                } else if (op == OP_DROP) {
+                    Entry removed = byName.remove(in.readUTF());
+                    if (removed != null) {
+                        byId.remove(removed.id);
+                        removeEntry(removed);
+                    }
+                } else {
+                    throw new IOException("未知的索引记录类型: " + op);
+                }
+                journalRecords++;
+            }
+        } catch (EOFException e) {
+            // 最后一条记录没写完整（例如 IDE 崩溃），保留已读到的部分
+            logger.warning("快照索引末尾不完整，已截断");
+            return false;
+        } catch (IOException e) {
+            logger.warning("快照索引损坏，重新扫描目录: " + e.getMessage());
+            byPath.clear();
+            byName.clear();
+            byId.clear();
+            return false;
+        }
+    }
+
+    // 把索引与目录中的实际文件对齐：只反序列化索引中没有的文件；返回是否有改动
+    private boolean reconcile() throws IOException {
+        Set<String> present = new HashSet<>();
+        boolean changed = false;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (!Files.isRegularFile(entry) || isIndexFile(name) || name.equals(SnapshotStoreOptions.FILE_NAME)) {
+                    continue;
+                }
+                present.add(name);
+                if (byName.containsKey(name)) {
+                    continue;
+                }
+                Snapshot snapshot = reader.apply(entry);
+                if (snapshot != null) {
+                    int size = snapshot.getContent() == null ? 0 : snapshot.getContent().length;
+                    putEntry(new Entry(nextId++, name, snapshot.getFilePath(), snapshot.getRealTimestamp(), size));
+                    changed = true;
+                }
+            }
+        }
+        for (Entry entry : new ArrayList<>(byName.values())) {
+            if (!present.contains(entry.name)) {
+                byName.remove(entry.name);
+                byId.remove(entry.id);
+                removeEntry(entry);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // 以当前内存状态重写整个索引日志（先写临时文件再替换）
+    private void rewrite() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        Path tmp = dir.resolve(INDEX_FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (List<Entry> entries : byPath.values()) {
+                for (Entry entry : entries) {
+                    out.writeByte(OP_ADD);
+                    writeEntry(out, entry);
+                }
+            }
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalRecords = byName.size();
+        openJournal();
+    }
+
+    private void openJournal() throws IOException {
+        journal = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(indexFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+    }
+
+    private void putEntry(Entry entry) {
+        byName.put(entry.name, entry);
+        byId.put(entry.id, entry);
+        insertSorted(byPath.computeIfAbsent(entry.path, k -> new ArrayList<>()), entry);
+    }
+
+    private void removeEntry(Entry entry) {
+        List<Entry> entries = byPath.get(entry.path);
+        if (entries != null) {
+            entries.removeIf(e -> e.name.equals(entry.name));
+            if (entries.isEmpty()) {
+                byPath.remove(entry.path);
+            }
+        }
+    }
+
+    // 按 (时间戳, id) 有序插入；正常保存时总是追加在末尾
+    private static void insertSorted(List<Entry> entries, Entry entry) {
+        int i = entries.size();
+        while (i > 0 && (entries.get(i - 1).timestamp > entry.timestamp
+                || (entries.get(i - 1).timestamp == entry.timestamp && entries.get(i - 1).id > entry.id))) {
+            i--;
+        }
+        entries.add(i, entry);
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeLong(entry.id);
+        out.writeUTF(entry.name);
+        out.writeUTF(entry.path);
+        out.writeLong(entry.timestamp);
+        out.writeInt(entry.size);
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        return new Entry(in.readLong(), in.readUTF(), in.readUTF(), in.readLong(), in.readInt());
+    }
+
+    // 目录中的索引文件及其临时文件不是快照
+    static boolean isIndexFile(String fileName) {
+        return fileName.equals(INDEX_FILE_NAME) || fileName.equals(INDEX_FILE_NAME + ".tmp");
+    }
+}
@@ -0,0 +1,224 @@
+package tongji.ggyl.versioncontrol;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * SnapshotIoScheduler 是所有打开的项目共用的有界 I/O 线程池，取代每个存储各自的线程；
+ * IDE 中由应用级服务 SnapshotIoService 持有，插件卸载时 shutdown。
+ * 每个存储的写队列和后台整理各占一个 Lane：同一 Lane 中的任务按提交顺序逐个执行，不同 Lane 之间轮流执行，
+ * 一个项目的大量写入不会挡住其他项目。写入优先于后台整理，但后台整理每等过 BACKGROUND_TURN 次调度至少执行一次。
+ * 后台整理最多同时占用 threads - 1 个线程：整理中有等待写队列的步骤，总要留一个线程给写入。
+ */
+public final class SnapshotIoScheduler {
+    private static final Logger logger = Logger.getLogger(SnapshotIoScheduler.class.getName());
+    private static final int BACKGROUND_TURN = 4;
+
+    public enum Priority {
+        WRITE,      // 保存、删除等写队列中的任务
+        BACKGROUND  // 清理历史、压缩段文件等后台整理
+    }
+
+    /**
+     * Lane 是调度器中的一条任务队列，任务串行执行；作为 Executor 交给 SnapshotWriter 等使用。
+     * 关闭后不再接受任务。
+     */
+    public final class Lane implements Executor {
+        private final String name;
+        private final Priority priority;
+        // 以下状态受调度器保护
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean ready = false;   // 在等待执行的 Lane 队列中
+        private boolean running = false; // 正有任务在执行
+        private volatile boolean closed = false;
+
+        private Lane(String name, Priority priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            submit(this, task);
+        }
+
+        // 延迟 delay 后提交任务；Lane 已关闭时不再提交
+        public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+            return timer.schedule(() -> {
+                if (!closed) {
+                    submit(this, task);
+                }
+            }, delay, unit);
+        }
+
+        public int getQueueDepth() {
+            synchronized (SnapshotIoScheduler.this) {
+                return tasks.size();
+            }
+        }
+
+        // 不再接受新任务，并等待已提交的任务执行完，超时返回 false
+        public boolean close(long timeout, TimeUnit unit) {
+            return closeLane(this, unit.toNanos(timeout));
+        }
+    }
+
+    private final int threads;
+    private final int maxBackground;
+    private final ScheduledExecutorService timer; // 只负责到期后提交任务，不执行任务
+    // 以下状态受 this 保护
+    private final ArrayDeque<Lane> readyWrites = new ArrayDeque<>();     // 有任务等待的 WRITE Lane，按轮到的顺序
+    private final ArrayDeque<Lane> readyBackground = new ArrayDeque<>(); // 有任务等待的 BACKGROUND Lane
+    private int runningBackground = 0;
+    private int writeTurns = 0; // 后台整理等待期间连续调度写入的次数
+    private int laneCount = 0;
+    private boolean stopped = false; // shutdown 之后不再接受任务，工作线程执行完已提交的任务后退出
+
+    public SnapshotIoScheduler(String name, int threads) {
+        if (threads < 2) {
+            throw new IllegalArgumentException("I/O 线程数至少为 2: " + threads);
+        }
+        this.threads = threads;
+        this.maxBackground = threads - 1;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 1; i <= threads; i++) {
+            Thread thread = new Thread(this::work, name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // 按 CPU 核数取 2 到 4 个线程
+    public static int defaultThreadCount() {
+        return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public synchronized Lane newLane(String name, Priority priority) {
+        laneCount++;
+        return new Lane(name, priority);
+    }
+
+    public int getThreadCount() {
+        return threads;
+    }
+
+    // 还没有关闭的 Lane 数
+    public synchronized int getLaneCount() {
+        return laneCount;
+    }
+
+    // 停止接受任务，已提交的任务执行完后工作线程和定时线程退出
+    public void shutdown() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        timer.shutdownNow();
+    }
+
+    private synchronized void submit(Lane lane, Runnable task) {
+        if (lane.closed || stopped) {
+            logger.warning(lane.name + " 已关闭，忽略任务");
+            return;
+        }
+        lane.tasks.addLast(task);
+        if (!lane.ready && !lane.running) {
+            lane.ready = true;
+            (lane.priority == Priority.WRITE ? readyWrites : readyBackground).addLast(lane);
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean closeLane(Lane lane, long timeoutNanos) {
+        if (!lane.closed) {
+            lane.closed = true;
+            laneCount--;
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (lane.running || !lane.tasks.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 选出下一个执行的 Lane，没有可执行的返回 null
+    private Lane nextLane() {
+        boolean backgroundReady = !readyBackground.isEmpty() && runningBackground < maxBackground;
+        if (!readyWrites.isEmpty() && (!backgroundReady || writeTurns < BACKGROUND_TURN)) {
+            if (backgroundReady) {
+                writeTurns++;
+            }
+            return readyWrites.pollFirst();
+        }
+        if (backgroundReady) {
+            writeTurns = 0;
+            return readyBackground.pollFirst();
+        }
+        return null;
+    }
+
+    private void work() {
+        Thread thread = Thread.currentThread();
+        while (true) {
+            Lane lane;
+            Runnable task;
+            synchronized (this) {
+                while ((lane = nextLane()) == null) {
+                    if (stopped) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // 工作线程只在 shutdown 后退出，忽略中断
+                    }
+                }
+                lane.ready = false;
+                lane.running = true;
+                task = lane.tasks.pollFirst();
+                if (lane.priority == Priority.BACKGROUND) {
+                    runningBackground++;
+                }
+            }
+            // 后台整理以低优先级执行，与原来的整理线程一致
+            thread.setPriority(lane.priority == Priority.BACKGROUND ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.severe(lane.name + " 任务失败: " + e);
+            } finally {
+                Thread.interrupted(); // 任务留下的中断状态不影响之后的任务
+                synchronized (this) {
+                    lane.running = false;
+                    if (lane.priority == Priority.BACKGROUND) {
+                        runningBackground--;
+                    }
+                    // 还有任务时排到同级 Lane 的末尾，轮流执行
+                    if (!lane.tasks.isEmpty()) {
+                        lane.ready = true;
+                        (lane.priority == Priority.WRITE ? readyWrites : readyBackground).addLast(lane);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
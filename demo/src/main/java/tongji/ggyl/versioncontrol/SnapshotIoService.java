@@ -0,0 +1,32 @@
+package tongji.ggyl.versioncontrol;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+
+/**
+ * SnapshotIoService 是应用级服务，持有所有项目共用的 SnapshotIoScheduler，并注册快照指标的 MBean。
+ * 应用级服务在所有项目关闭之后释放，插件卸载时也会释放：这时停止 I/O 线程并注销 MBean，不留下引用插件类加载器的线程。
+ */
+@Service(Service.Level.APP)
+public final class SnapshotIoService implements Disposable {
+    private final SnapshotIoScheduler scheduler = new SnapshotIoScheduler("snapshot-io", SnapshotIoScheduler.defaultThreadCount());
+
+    public SnapshotIoService() {
+        SnapshotMetrics.get().registerMBean();
+    }
+
+    public static SnapshotIoService getInstance() {
+        return ApplicationManager.getApplication().getService(SnapshotIoService.class);
+    }
+
+    public SnapshotIoScheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public void dispose() {
+        scheduler.shutdown();
+        SnapshotMetrics.get().unregisterMBean();
+    }
+}
@@ -0,0 +1,61 @@
+package tongji.ggyl.versioncontrol;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * SnapshotMeta 是快照的元数据（id、文件路径、时间戳、内容大小），不包含内容本身。
+ * 列表展示只需要元数据，内容在真正需要时通过 VersionControl.loadContent 读取。
+ */
+public final class SnapshotMeta {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+
+    private final long id;
+    private final String name;
+    private final String filePath;
+    private final long timestamp;
+    private final int size;
+    private String formattedTimestamp; // 列表渲染时反复使用，首次格式化后缓存
+
+    public SnapshotMeta(long id, String name, String filePath, long timestamp, int size) {
+        this.id = id;
+        this.name = name;
+        this.filePath = filePath;
+        this.timestamp = timestamp;
+        this.size = size;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public long getRealTimestamp() {
+        return timestamp;
+    }
+
+    // 格式为 年/月/日 时:分:秒，与 Snapshot.getTimestamp 一致
+    public String getTimestamp() {
+        if (formattedTimestamp == null) {
+            formattedTimestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()).format(FORMATTER);
+        }
+        return formattedTimestamp;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String getFileNameWithoutTimestamp() {
+        return name.split("-")[0];
+    }
+}
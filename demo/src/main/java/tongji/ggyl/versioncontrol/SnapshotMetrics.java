@@ -0,0 +1,251 @@
+package tongji.ggyl.versioncontrol;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * SnapshotMetrics 是快照流水线的运行指标：从 PSI 事件、生成快照、写入队列到落盘和读取。
+ * 计数器用 LongAdder，耗时用 LatencyHistogram，记录时不加锁；队列深度和存储大小由各存储注册的函数在读取时计算。
+ * 整个 IDE 进程共用一个实例，多个项目的数据合在一起；IDE 中由 SnapshotIoService 注册为 JMX MBean，释放时注销。
+ */
+public final class SnapshotMetrics implements SnapshotMetricsMBean {
+    public static final String OBJECT_NAME = "tongji.ggyl:type=SnapshotMetrics";
+    private static final Logger logger = Logger.getLogger(SnapshotMetrics.class.getName());
+    private static final SnapshotMetrics INSTANCE = new SnapshotMetrics();
+
+    private final LongAdder psiEventsReceived = new LongAdder();
+    private final LongAdder psiEventsFiltered = new LongAdder();  // 没有对应文件或在批量更新中，不会生成快照的事件
+    private final LongAdder captureRequests = new LongAdder();    // 合并 PSI 事件后提交给调度器的文件数
+    private final LongAdder snapshotsCaptured = new LongAdder();
+    private final LongAdder capturesUnchanged = new LongAdder();  // 到期时文档没有变化，不再保存
+    private final LongAdder capturesRejected = new LongAdder();   // 被 AdmissionPolicy 拒绝的文件
+    private final LongAdder snapshotsWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();  // 写任务本身的执行时间
+    private final LatencyHistogram commitLatency = new LatencyHistogram(); // 从入队到所在批次落盘
+    private final LatencyHistogram readLatency = new LatencyHistogram();   // 读取一个快照的内容
+    // 各存储注册的队列深度和存储大小，键为存储实例
+    private final Map<Object, LongSupplier> queueDepths = new ConcurrentHashMap<>();
+    private final Map<Object, LongSupplier> storeSizes = new ConcurrentHashMap<>();
+
+    private SnapshotMetrics() {
+    }
+
+    public static SnapshotMetrics get() {
+        return INSTANCE;
+    }
+
+    // 插件重新加载时上一次的 MBean 可能还在，替换掉
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+        } catch (JMException | RuntimeException e) {
+            logger.warning("注册快照指标的 MBean 失败: " + e.getMessage());
+        }
+    }
+
+    // 注销 MBean，不再让 MBeanServer 持有插件的类
+    public void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | RuntimeException e) {
+            logger.warning("注销快照指标的 MBean 失败: " + e.getMessage());
+        }
+    }
+
+    // 存储打开时注册，storeBytes 为 null 表示不统计存储大小；关闭时 unregister
+    public void register(Object store, LongSupplier queueDepth, LongSupplier storeBytes) {
+        queueDepths.put(store, queueDepth);
+        if (storeBytes != null) {
+            storeSizes.put(store, storeBytes);
+        }
+    }
+
+    public void unregister(Object store) {
+        queueDepths.remove(store);
+        storeSizes.remove(store);
+    }
+
+    public void recordPsiEvent() {
+        psiEventsReceived.increment();
+    }
+
+    public void recordFilteredPsiEvent() {
+        psiEventsFiltered.increment();
+    }
+
+    public void recordCaptureRequest() {
+        captureRequests.increment();
+    }
+
+    public void recordCapture() {
+        snapshotsCaptured.increment();
+    }
+
+    public void recordUnchangedCapture() {
+        capturesUnchanged.increment();
+    }
+
+    public void recordRejectedCapture() {
+        capturesRejected.increment();
+    }
+
+    public void recordSnapshotWritten() {
+        snapshotsWritten.increment();
+    }
+
+    public void recordBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public LatencyHistogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    @Override
+    public long getPsiEventsReceived() {
+        return psiEventsReceived.sum();
+    }
+
+    @Override
+    public long getPsiEventsFiltered() {
+        return psiEventsFiltered.sum();
+    }
+
+    @Override
+    public long getCaptureRequests() {
+        return captureRequests.sum();
+    }
+
+    @Override
+    public long getSnapshotsCaptured() {
+        return snapshotsCaptured.sum();
+    }
+
+    @Override
+    public long getCapturesUnchanged() {
+        return capturesUnchanged.sum();
+    }
+
+    @Override
+    public long getCapturesRejected() {
+        return capturesRejected.sum();
+    }
+
+    @Override
+    public long getSnapshotsWritten() {
+        return snapshotsWritten.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return sum(queueDepths);
+    }
+
+    @Override
+    public long getStoreBytes() {
+        return sum(storeSizes);
+    }
+
+    private static long sum(Map<Object, LongSupplier> gauges) {
+        long total = 0;
+        for (LongSupplier gauge : gauges.values()) {
+            total += gauge.getAsLong();
+        }
+        return total;
+    }
+
+    @Override
+    public long getWriteLatencyP50Micros() {
+        return micros(writeLatency.getPercentileNanos(0.5));
+    }
+
+    @Override
+    public long getWriteLatencyP99Micros() {
+        return micros(writeLatency.getPercentileNanos(0.99));
+    }
+
+    @Override
+    public long getCommitLatencyP50Micros() {
+        return micros(commitLatency.getPercentileNanos(0.5));
+    }
+
+    @Override
+    public long getCommitLatencyP99Micros() {
+        return micros(commitLatency.getPercentileNanos(0.99));
+    }
+
+    @Override
+    public long getReadLatencyP50Micros() {
+        return micros(readLatency.getPercentileNanos(0.5));
+    }
+
+    @Override
+    public long getReadLatencyP99Micros() {
+        return micros(readLatency.getPercentileNanos(0.99));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    // 指标名 -> 显示的值，供工具窗口按行显示
+    public Map<String, String> describe() {
+        Map<String, String> rows = new LinkedHashMap<>();
+        rows.put("PSI events received", String.valueOf(getPsiEventsReceived()));
+        rows.put("PSI events filtered", String.valueOf(getPsiEventsFiltered()));
+        rows.put("Capture requests", String.valueOf(getCaptureRequests()));
+        rows.put("Snapshots captured", String.valueOf(getSnapshotsCaptured()));
+        rows.put("Captures skipped (unchanged)", String.valueOf(getCapturesUnchanged()));
+        rows.put("Captures rejected (admission)", String.valueOf(getCapturesRejected()));
+        rows.put("Snapshots written", String.valueOf(getSnapshotsWritten()));
+        rows.put("Bytes written", String.valueOf(getBytesWritten()));
+        rows.put("Write queue depth", String.valueOf(getQueueDepth()));
+        rows.put("Store size (bytes)", String.valueOf(getStoreBytes()));
+        rows.put("Write latency", describe(writeLatency));
+        rows.put("Commit latency", describe(commitLatency));
+        rows.put("Read latency", describe(readLatency));
+        return rows;
+    }
+
+    private static String describe(LatencyHistogram histogram) {
+        return "n=" + histogram.getCount()
+                + "  p50=" + micros(histogram.getPercentileNanos(0.5)) + "us"
+                + "  p99=" + micros(histogram.getPercentileNanos(0.99)) + "us"
+                + "  max=" + micros(histogram.getMaxNanos()) + "us";
+    }
+}
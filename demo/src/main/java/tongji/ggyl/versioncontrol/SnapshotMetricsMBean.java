@@ -0,0 +1,39 @@
+package tongji.ggyl.versioncontrol;
+
+/**
+ * SnapshotMetricsMBean 是 SnapshotMetrics 在 JMX 中的视图（tongji.ggyl:type=SnapshotMetrics），
+ * 可以用 JConsole 或 VisualVM 连接 IDE 进程查看。耗时的单位为微秒。
+ */
+public interface SnapshotMetricsMBean {
+    long getPsiEventsReceived();
+
+    long getPsiEventsFiltered();
+
+    long getCaptureRequests();
+
+    long getSnapshotsCaptured();
+
+    long getCapturesUnchanged();
+
+    long getCapturesRejected();
+
+    long getSnapshotsWritten();
+
+    long getBytesWritten();
+
+    long getQueueDepth();
+
+    long getStoreBytes();
+
+    long getWriteLatencyP50Micros();
+
+    long getWriteLatencyP99Micros();
+
+    long getCommitLatencyP50Micros();
+
+    long getCommitLatencyP99Micros();
+
+    long getReadLatencyP50Micros();
+
+    long getReadLatencyP99Micros();
+}
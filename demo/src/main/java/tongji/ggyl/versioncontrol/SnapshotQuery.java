@@ -0,0 +1,79 @@
+package tongji.ggyl.versioncontrol;
+
+/**
+ * SnapshotQuery 是流式查询快照的条件：文件路径或路径前缀、时间范围 [from, to) 和排序方向。
+ * 不设置的条件不参与过滤，默认按时间从旧到新。
+ */
+public class SnapshotQuery {
+    private String path;                 // 只查询这个文件，null 表示不限
+    private String pathPrefix;           // 只查询以此开头的路径（例如一个目录），null 表示不限
+    private long from = Long.MIN_VALUE;  // 包含
+    private long to = Long.MAX_VALUE;    // 不包含
+    private boolean newestFirst = false;
+
+    public static SnapshotQuery all() {
+        return new SnapshotQuery();
+    }
+
+    public static SnapshotQuery forFile(String path) {
+        return new SnapshotQuery().setPath(path);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    // 路径完全相同才匹配
+    public SnapshotQuery setPath(String path) {
+        this.path = path;
+        return this;
+    }
+
+    public String getPathPrefix() {
+        return pathPrefix;
+    }
+
+    public SnapshotQuery setPathPrefix(String pathPrefix) {
+        this.pathPrefix = pathPrefix;
+        return this;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    // 时间戳范围 [from, to)，单位毫秒
+    public SnapshotQuery setTimeRange(long from, long to) {
+        if (from > to) {
+            throw new IllegalArgumentException("时间范围不合法: " + from + " > " + to);
+        }
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    public boolean isNewestFirst() {
+        return newestFirst;
+    }
+
+    public SnapshotQuery setNewestFirst(boolean newestFirst) {
+        this.newestFirst = newestFirst;
+        return this;
+    }
+
+    public boolean matchesPath(String filePath) {
+        return (path == null || path.equals(filePath)) && (pathPrefix == null || filePath.startsWith(pathPrefix));
+    }
+
+    public boolean matchesTime(long timestamp) {
+        return timestamp >= from && timestamp < to;
+    }
+
+    public boolean matches(SnapshotMeta meta) {
+        return matchesPath(meta.getFilePath()) && matchesTime(meta.getRealTimestamp());
+    }
+}
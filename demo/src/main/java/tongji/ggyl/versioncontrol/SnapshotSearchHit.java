@@ -0,0 +1,108 @@
+package tongji.ggyl.versioncontrol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SnapshotSearchHit 是全文搜索找到的一个快照：快照的元数据和其中包含搜索文本的行。
+ * 忽略大小写时只忽略 ASCII 字母的大小写，与搜索索引一致。
+ */
+public final class SnapshotSearchHit {
+    static final int MAX_LINES = 20;        // 每个快照最多记录的匹配行
+    private static final int MAX_LINE_CHARS = 200; // 记录的行过长时截断
+
+    private final SnapshotMeta meta;
+    private final List<Line> lines;
+    private final int lineCount;
+
+    // 一行匹配：行号从 0 开始
+    public static final class Line {
+        private final int number;
+        private final String text;
+
+        Line(int number, String text) {
+            this.number = number;
+            this.text = text;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private SnapshotSearchHit(SnapshotMeta meta, List<Line> lines, int lineCount) {
+        this.meta = meta;
+        this.lines = lines;
+        this.lineCount = lineCount;
+    }
+
+    public SnapshotMeta getMeta() {
+        return meta;
+    }
+
+    // 最多 MAX_LINES 行
+    public List<Line> getLines() {
+        return lines;
+    }
+
+    // 匹配的总行数，可能多于 getLines 的行数
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    // 内容相同的另一个快照
+    SnapshotSearchHit forSnapshot(SnapshotMeta other) {
+        return new SnapshotSearchHit(other, lines, lineCount);
+    }
+
+    // 在快照内容中查找 text，没有匹配时返回 null
+    static SnapshotSearchHit match(SnapshotMeta meta, byte[] content, String text, boolean matchCase) {
+        String original = new String(content, StandardCharsets.UTF_8);
+        String haystack = matchCase ? original : foldCase(original);
+        String needle = matchCase ? text : foldCase(text);
+        int at = haystack.indexOf(needle);
+        if (at < 0) {
+            return null;
+        }
+        List<Line> lines = new ArrayList<>();
+        int count = 0;
+        int line = 0;
+        int lineStart = 0;
+        int scanned = 0;
+        while (at >= 0) {
+            for (; scanned < at; scanned++) {
+                if (haystack.charAt(scanned) == '\n') {
+                    line++;
+                    lineStart = scanned + 1;
+                }
+            }
+            int lineEnd = haystack.indexOf('\n', at);
+            if (lineEnd < 0) {
+                lineEnd = haystack.length();
+            }
+            if (lines.size() < MAX_LINES) {
+                lines.add(new Line(line, original.substring(lineStart, Math.min(lineEnd, lineStart + MAX_LINE_CHARS))));
+            }
+            count++;
+            // 同一行只算一次
+            at = haystack.indexOf(needle, Math.max(lineEnd, at + 1));
+        }
+        return new SnapshotSearchHit(meta, Collections.unmodifiableList(lines), count);
+    }
+
+    private static String foldCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,318 @@
+package tongji.ggyl.versioncontrol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * SnapshotSegment 是快照存储中的一个段文件。
+ * 段文件由文件头和若干条记录组成，每条记录为 [4 字节长度][4 字节 CRC32][记录体]，只追加不修改；
+ * 读取时通过 FileChannel.map 映射到内存，扫描元数据时不需要拷贝快照内容；
+ * 活动段变长后，映射之外的少量新记录从文件读取，落后超过 REMAP_LAG 才重新映射整个段。
+ * 追加的记录先暂存在内存中，commit 时一次写入文件并 force，实现成组提交。
+ */
+final class SnapshotSegment implements Closeable {
+    static final String SUFFIX = ".seg";
+    static final String TEMP_SUFFIX = ".tmp"; // 压缩时正在写的段文件，完成后去掉这个后缀
+    static final int MAGIC = 0x534E5347; // "SNSG"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    private static final int STAGING_INITIAL = 64 * 1024;
+    private static final int STAGING_RETAIN = 4 * 1024 * 1024; // 提交后暂存区超过这个大小就释放
+    static final long REMAP_LAG = 4 * 1024 * 1024; // 映射落后已提交长度不超过这么多时，映射之外的读取直接从文件读
+
+    // 记录体的第一个字节是记录类型
+    static final byte TYPE_SNAPSHOT = 1;
+    static final byte TYPE_DELETE = 2;
+    static final byte TYPE_RENAME = 3;
+    static final byte TYPE_SNAPSHOT_DELTA = 4; // 只保存相对基准快照的补丁
+    static final byte TYPE_BLOB = 5;           // 按内容哈希寻址的快照内容（完整内容或补丁）
+    static final byte TYPE_SNAPSHOT_REF = 6;   // 只含元数据、引用一个 blob 的快照
+    static final byte TYPE_DROP = 7;           // 按保留策略清理的一组快照 id
+    static final byte TYPE_RENAME_DIR = 8;     // 目录改名或移动，其下所有文件的路径一起修改
+    static final byte TYPE_TOMBSTONE = 9;      // 删除文件或目录：历史先隐藏，宽限期过后才清除
+    static final byte TYPE_RESTORE = 10;       // 宽限期内文件重新出现，恢复被隐藏的历史
+    static final byte TYPE_CODED_BLOB = 11;    // 压缩编码后的 blob，比 TYPE_BLOB 多编码 id 和编码前的长度
+
+    // 扫描段文件时逐条回调，body 的 position 指向记录类型字节
+    interface RecordVisitor {
+        void visit(long recordOffset, ByteBuffer body) throws IOException;
+    }
+
+    final long number;
+    final Path file;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer mapped; // 只读映射，活动段变长后按需重新映射
+    private volatile long size;          // 逻辑长度，包含还没提交的记录
+    private volatile long committedSize; // 已写入文件的长度
+    private ByteBuffer staging;          // 还没提交的记录，受 this 保护
+    private boolean unsynced = false;    // 有写入但还没 force，受 this 保护
+
+    private SnapshotSegment(long number, Path file, FileChannel channel, long size) {
+        this.number = number;
+        this.file = file;
+        this.channel = channel;
+        this.size = size;
+        this.committedSize = size;
+    }
+
+    static SnapshotSegment create(Path dir, long number) throws IOException {
+        return createFile(dir.resolve(fileName(number)), number);
+    }
+
+    // 压缩时先写到临时文件，publish 后才成为正式的段文件
+    static SnapshotSegment createTemp(Path dir, long number) throws IOException {
+        return createFile(dir.resolve(fileName(number) + TEMP_SUFFIX), number);
+    }
+
+    private static SnapshotSegment createFile(Path file, long number) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, HEADER_SIZE - header.remaining());
+        }
+        return new SnapshotSegment(number, file, channel, HEADER_SIZE);
+    }
+
+    static SnapshotSegment open(Path file, long number, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ);
+        SnapshotSegment segment = new SnapshotSegment(number, file, channel, channel.size());
+        if (segment.size < HEADER_SIZE) {
+            segment.close();
+            throw new IOException("段文件过短: " + file);
+        }
+        ByteBuffer header = segment.view(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            segment.close();
+            throw new IOException("段文件头不匹配: " + file);
+        }
+        return segment;
+    }
+
+    static String fileName(long number) {
+        return String.format("%08d%s", number, SUFFIX);
+    }
+
+    // 从文件名解析段号，不是段文件时返回 -1
+    static long parseNumber(String fileName) {
+        if (!fileName.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    // 在段尾追加一条完整记录（含记录头），返回记录的起始偏移；记录先暂存，commit 后才写入文件
+    synchronized long append(ByteBuffer record) {
+        long offset = size;
+        int length = record.remaining();
+        if (staging == null || staging.remaining() < length) {
+            int used = staging == null ? 0 : staging.position();
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(STAGING_INITIAL, Math.max(used + length, used * 2)));
+            if (staging != null) {
+                staging.flip();
+                grown.put(staging);
+            }
+            staging = grown;
+        }
+        staging.put(record);
+        size = offset + length;
+        return offset;
+    }
+
+    /**
+     * 把暂存的记录一次写入文件；sync 为 true 时再 force 到磁盘。
+     * 一批快照只需要一次写入和一次 force。
+     */
+    synchronized void commit(boolean sync) throws IOException {
+        if (staging != null && staging.position() > 0) {
+            staging.flip();
+            long position = committedSize;
+            while (staging.hasRemaining()) {
+                position += channel.write(staging, position);
+            }
+            committedSize = position;
+            unsynced = true;
+            if (staging.capacity() > STAGING_RETAIN) {
+                staging = null;
+            } else {
+                staging.clear();
+            }
+        }
+        if (sync && unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    // 返回 [offset, offset + length) 的只读视图；已提交的部分直接指向映射内存，暂存的记录返回副本
+    ByteBuffer view(long offset, int length) throws IOException {
+        if (offset + length > committedSize) {
+            ByteBuffer staged = viewStaged(offset, length);
+            if (staged != null) {
+                return staged;
+            }
+        }
+        MappedByteBuffer buffer = mapped;
+        if (buffer == null || offset + length > buffer.capacity()) {
+            // 每次读到新提交的记录都重新映射整个段代价太大，落后不多时先从文件读取
+            if (buffer != null && committedSize - buffer.capacity() <= REMAP_LAG) {
+                return readCommitted(offset, length);
+            }
+            buffer = remap(offset + length);
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit((int) (offset + length)).position((int) offset);
+        return view.slice();
+    }
+
+    // 暂存区会在提交后复用，所以拷贝一份；在此期间已经提交的返回 null，改走映射
+    private synchronized ByteBuffer viewStaged(long offset, int length) throws IOException {
+        if (offset + length <= committedSize) {
+            return null;
+        }
+        if (offset < committedSize || offset + length > size) {
+            throw new IOException("读取越过段尾: " + file);
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        ByteBuffer source = staging.duplicate();
+        int start = (int) (offset - committedSize);
+        source.limit(start + length).position(start);
+        copy.put(source).flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    // 从文件读取已提交的 [offset, offset + length)，返回只读副本
+    private ByteBuffer readCommitted(long offset, int length) throws IOException {
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        long position = offset;
+        while (copy.hasRemaining()) {
+            int read = channel.read(copy, position);
+            if (read < 0) {
+                throw new IOException("读取越过段尾: " + file);
+            }
+            position += read;
+        }
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    private synchronized MappedByteBuffer remap(long required) throws IOException {
+        MappedByteBuffer buffer = mapped;
+        if (buffer == null || required > buffer.capacity()) {
+            if (required > committedSize) {
+                throw new IOException("读取越过段尾: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, committedSize);
+            mapped = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * 顺序扫描全部记录并校验 CRC，返回最后一条完整记录之后的偏移。
+     * 遇到不完整或校验失败的记录即停止，调用方据此截断段尾。
+     */
+    long scan(RecordVisitor visitor) throws IOException {
+        long end = size;
+        long offset = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (offset + RECORD_HEADER_SIZE <= end) {
+            ByteBuffer header = view(offset, RECORD_HEADER_SIZE);
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || offset + RECORD_HEADER_SIZE + length > end) {
+                break;
+            }
+            ByteBuffer body = view(offset + RECORD_HEADER_SIZE, length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            visitor.visit(offset, body);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    // 截断段尾未写完整的记录（例如 IDE 崩溃时写了一半）
+    synchronized void truncate(long validSize) throws IOException {
+        channel.truncate(validSize);
+        size = validSize;
+        committedSize = validSize;
+        mapped = null;
+    }
+
+    // 把记录体包装成带长度和 CRC 的完整记录
+    static ByteBuffer frame(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.remaining());
+        record.putInt(body.remaining()).putInt((int) crc.getValue()).put(body).flip();
+        return record;
+    }
+
+    static int stringSize(byte[] utf8) {
+        return 4 + utf8.length;
+    }
+
+    static void putString(ByteBuffer buffer, byte[] utf8) {
+        buffer.putInt(utf8.length).put(utf8);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 关闭前写入还没提交的记录
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                commit(false);
+            }
+        } finally {
+            mapped = null;
+            channel.close();
+        }
+    }
+
+    // 把临时段落盘后改名为正式段文件，返回以只读方式重新打开的段
+    SnapshotSegment publish() throws IOException {
+        commit(true);
+        close();
+        Path target = file.resolveSibling(fileName(number));
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        return open(target, number, false);
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+}
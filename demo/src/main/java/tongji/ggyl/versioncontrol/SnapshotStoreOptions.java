@@ -0,0 +1,220 @@
+package tongji.ggyl.versioncontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.logging.Logger;
+
+/**
+ * SnapshotStoreOptions 是快照存储的可调参数。
+ * 默认值适合大多数项目；也可以在快照目录下放一个 store.properties 覆盖其中的项。
+ */
+public class SnapshotStoreOptions {
+    public static final String FILE_NAME = "store.properties";
+    private static final Logger logger = Logger.getLogger(SnapshotStoreOptions.class.getName());
+
+    private long maxSegmentBytes = 64L * 1024 * 1024; // 单个段文件的滚动阈值
+    private int keyframeInterval = 20;                // 每隔多少个版本保存一次完整内容，1 表示不做增量
+    private int writeQueueCapacity = 1024;            // 写入队列中最多排队的保存数（同一文件只算一个）
+    private SnapshotWriter.OverflowPolicy overflowPolicy = SnapshotWriter.OverflowPolicy.BLOCK;
+    private long commitWindowMillis = 5;              // 成组提交时最多等待多久攒一批，0 表示不等待
+    private int commitMaxBatch = 256;                 // 一批最多包含的写任务数
+    private RetentionPolicy retentionPolicy = RetentionPolicy.defaults();
+    private long compactionIntervalMinutes = 30;      // 后台整理历史的间隔，0 表示不整理
+    private long deleteGraceMinutes = 24 * 60;        // 删除的文件保留多久历史以便恢复，0 表示立即清除
+    private SnapshotCodec codec = SnapshotCodec.deflate(Deflater.BEST_SPEED); // 新写入内容的压缩编码
+    private boolean searchIndexEnabled = true;        // 是否维护全文搜索索引
+    private AdmissionPolicy admissionPolicy = AdmissionPolicy.defaults(); // 哪些文件的修改生成快照
+    private SnapshotIoScheduler ioScheduler;          // 写入和整理使用的线程，不读自文件；null 表示存储自己建一个，关闭时停止
+
+    public long getMaxSegmentBytes() {
+        return maxSegmentBytes;
+    }
+
+    public SnapshotStoreOptions setMaxSegmentBytes(long maxSegmentBytes) {
+        this.maxSegmentBytes = maxSegmentBytes;
+        return this;
+    }
+
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    public SnapshotStoreOptions setKeyframeInterval(int keyframeInterval) {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("关键帧间隔必须大于 0: " + keyframeInterval);
+        }
+        this.keyframeInterval = keyframeInterval;
+        return this;
+    }
+
+    public int getWriteQueueCapacity() {
+        return writeQueueCapacity;
+    }
+
+    public SnapshotStoreOptions setWriteQueueCapacity(int writeQueueCapacity) {
+        if (writeQueueCapacity < 1) {
+            throw new IllegalArgumentException("写入队列容量必须大于 0: " + writeQueueCapacity);
+        }
+        this.writeQueueCapacity = writeQueueCapacity;
+        return this;
+    }
+
+    public SnapshotWriter.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public SnapshotStoreOptions setOverflowPolicy(SnapshotWriter.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    public long getCommitWindowMillis() {
+        return commitWindowMillis;
+    }
+
+    public SnapshotStoreOptions setCommitWindowMillis(long commitWindowMillis) {
+        if (commitWindowMillis < 0) {
+            throw new IllegalArgumentException("提交窗口不能为负数: " + commitWindowMillis);
+        }
+        this.commitWindowMillis = commitWindowMillis;
+        return this;
+    }
+
+    public int getCommitMaxBatch() {
+        return commitMaxBatch;
+    }
+
+    public SnapshotStoreOptions setCommitMaxBatch(int commitMaxBatch) {
+        if (commitMaxBatch < 1) {
+            throw new IllegalArgumentException("每批写任务数必须大于 0: " + commitMaxBatch);
+        }
+        this.commitMaxBatch = commitMaxBatch;
+        return this;
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    public SnapshotStoreOptions setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy == null ? RetentionPolicy.keepAll() : retentionPolicy;
+        return this;
+    }
+
+    public long getCompactionIntervalMinutes() {
+        return compactionIntervalMinutes;
+    }
+
+    public SnapshotStoreOptions setCompactionIntervalMinutes(long compactionIntervalMinutes) {
+        if (compactionIntervalMinutes < 0) {
+            throw new IllegalArgumentException("整理间隔不能为负数: " + compactionIntervalMinutes);
+        }
+        this.compactionIntervalMinutes = compactionIntervalMinutes;
+        return this;
+    }
+
+    public long getDeleteGraceMinutes() {
+        return deleteGraceMinutes;
+    }
+
+    public SnapshotStoreOptions setDeleteGraceMinutes(long deleteGraceMinutes) {
+        if (deleteGraceMinutes < 0) {
+            throw new IllegalArgumentException("删除宽限期不能为负数: " + deleteGraceMinutes);
+        }
+        this.deleteGraceMinutes = deleteGraceMinutes;
+        return this;
+    }
+
+    public SnapshotCodec getCodec() {
+        return codec;
+    }
+
+    public SnapshotStoreOptions setCodec(SnapshotCodec codec) {
+        this.codec = codec == null ? SnapshotCodec.identity() : codec;
+        return this;
+    }
+
+    public boolean isSearchIndexEnabled() {
+        return searchIndexEnabled;
+    }
+
+    public SnapshotStoreOptions setSearchIndexEnabled(boolean searchIndexEnabled) {
+        this.searchIndexEnabled = searchIndexEnabled;
+        return this;
+    }
+
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+
+    public SnapshotStoreOptions setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy == null ? AdmissionPolicy.admitAll() : admissionPolicy;
+        return this;
+    }
+
+    public SnapshotIoScheduler getIoScheduler() {
+        return ioScheduler;
+    }
+
+    public SnapshotStoreOptions setIoScheduler(SnapshotIoScheduler ioScheduler) {
+        this.ioScheduler = ioScheduler;
+        return this;
+    }
+
+    // 读取快照目录下的 store.properties，文件不存在或某项格式错误时使用默认值
+    public static SnapshotStoreOptions load(Path baseDir) {
+        SnapshotStoreOptions options = new SnapshotStoreOptions();
+        Path file = baseDir.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            return options;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            logger.warning("读取存储配置失败，使用默认值: " + e.getMessage());
+            return options;
+        }
+        apply(properties, "segment.maxBytes", value -> options.setMaxSegmentBytes(Long.parseLong(value)));
+        apply(properties, "delta.keyframeInterval", value -> options.setKeyframeInterval(Integer.parseInt(value)));
+        apply(properties, "writer.queueCapacity", value -> options.setWriteQueueCapacity(Integer.parseInt(value)));
+        apply(properties, "writer.overflowPolicy", value -> options.setOverflowPolicy(SnapshotWriter.OverflowPolicy.valueOf(value.toUpperCase())));
+        apply(properties, "commit.windowMillis", value -> options.setCommitWindowMillis(Long.parseLong(value)));
+        apply(properties, "commit.maxBatch", value -> options.setCommitMaxBatch(Integer.parseInt(value)));
+        // 例如 1h:0,1d:1h,30d:1d；留空表示不按年龄清理
+        apply(properties, "retention.tiers", value -> options.setRetentionPolicy(RetentionPolicy.parseTiers(value)));
+        apply(properties, "retention.maxBytesPerFile", value -> options.retentionPolicy.setMaxBytesPerFile(Long.parseLong(value)));
+        apply(properties, "retention.maxBytesPerProject", value -> options.retentionPolicy.setMaxBytesPerProject(Long.parseLong(value)));
+        apply(properties, "compaction.intervalMinutes", value -> options.setCompactionIntervalMinutes(Long.parseLong(value)));
+        apply(properties, "delete.graceMinutes", value -> options.setDeleteGraceMinutes(Long.parseLong(value)));
+        // 例如 identity、deflate、deflate:9
+        apply(properties, "codec", value -> options.setCodec(SnapshotCodec.parse(value)));
+        apply(properties, "search.index", value -> options.setSearchIndexEnabled(Boolean.parseBoolean(value)));
+        // 例如 **/build/**,**/*.log；留空表示不按路径排除
+        apply(properties, "admission.excludeGlobs", value -> options.admissionPolicy.setExcludeGlobs(value));
+        apply(properties, "admission.maxFileBytes", value -> options.admissionPolicy.setMaxFileBytes(Long.parseLong(value)));
+        apply(properties, "admission.skipBinary", value -> options.admissionPolicy.setSkipBinary(Boolean.parseBoolean(value)));
+        apply(properties, "admission.skipExcluded", value -> options.admissionPolicy.setSkipProjectExcluded(Boolean.parseBoolean(value)));
+        apply(properties, "admission.skipGenerated", value -> options.admissionPolicy.setSkipGenerated(Boolean.parseBoolean(value)));
+        apply(properties, "admission.bulkThreshold", value -> options.admissionPolicy.setBulkThreshold(Integer.parseInt(value)));
+        return options;
+    }
+
+    // 只应用一项配置；格式错误时这一项保持默认值并记录是哪一项，不影响其他项
+    private static void apply(Properties properties, String key, Consumer<String> setter) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return;
+        }
+        try {
+            setter.accept(value.trim());
+        } catch (IllegalArgumentException e) {
+            logger.warning("存储配置 " + key + "=" + value + " 有误，使用默认值: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package tongji.ggyl.versioncontrol;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * SnapshotWriter 是快照存储的后台写入队列：所有写操作按提交顺序串行执行，执行线程由传入的 Executor 提供。
+ * 同一文件还在排队的保存只保留最新一次；队列满时按 OverflowPolicy 处理。
+ * 删除、改名等其他操作不会被合并或丢弃，并且会截断之前的合并，保证它们与保存的相对顺序不变。
+ * 执行完的任务按时间窗口和个数攒成一批，每批只调用一次 commit（成组提交）。
+ */
+public class SnapshotWriter {
+    private static final Logger logger = Logger.getLogger(SnapshotWriter.class.getName());
+    private static final int DRAIN_BATCH = 64; // 每次占用执行线程最多处理的任务数，处理完重新提交自己
+
+    // 保存队列已满时的处理方式
+    public enum OverflowPolicy {
+        BLOCK,        // 提交方等待队列出现空位
+        DROP_OLDEST,  // 丢弃队列中最早的一次保存
+        DROP_NEWEST,  // 丢弃本次保存
+        CALLER_RUNS   // 提交方自己执行队首任务腾出空位（仍然保持串行和顺序）
+    }
+
+    // 队列中的一个写任务；保存任务的 write 可以被同一文件更新的保存替换
+    private static final class Task {
+        final String path; // 保存任务对应的文件路径，其他操作为 null
+        Runnable write;
+        long enqueuedAt;
+        long writeNanos;
+
+        Task(String path, Runnable write) {
+            this.path = path;
+            this.write = write;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+
+    private final String name;
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Runnable commit;         // 一批任务执行完后调用一次，把这批写入落盘
+    private final long commitWindowNanos;
+    private final int commitMaxBatch;
+    private final ReentrantLock runLock = new ReentrantLock(); // 执行任务时持有，保证任意时刻只有一个任务在写
+    // 以下状态受 this 保护
+    private final ArrayDeque<Task> queue = new ArrayDeque<>();
+    private final Map<String, Task> pendingSaves = new HashMap<>(); // 仍可合并的排队保存
+    private int queuedSaves = 0;
+    private int inFlight = 0;          // 已入队但还没执行完的任务数，flush 等它归零
+    private boolean drainScheduled = false;
+    private boolean closed = false;
+    private int flushWaiters = 0;      // 正在 flush 的线程数，有人等待时不再攒批
+    // 统计
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong(); // 入队到写完
+    private final AtomicLong totalWriteNanos = new AtomicLong();   // 任务本身的执行时间
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile int maxQueueDepth = 0;
+
+    // commit 在每批任务执行完后调用一次，由存储实现把这批写入一次性落盘
+    public SnapshotWriter(String name, Executor executor, SnapshotStoreOptions options, Runnable commit) {
+        this.name = name;
+        this.executor = executor;
+        this.capacity = options.getWriteQueueCapacity();
+        this.policy = options.getOverflowPolicy();
+        this.commit = commit;
+        this.commitWindowNanos = TimeUnit.MILLISECONDS.toNanos(options.getCommitWindowMillis());
+        this.commitMaxBatch = options.getCommitMaxBatch();
+    }
+
+    // 提交某个文件的一次保存；该文件已有排队中的保存时直接替换为这一次
+    public void save(String path, Runnable write) {
+        submitted.incrementAndGet();
+        offer(path, write);
+    }
+
+    private void offer(String path, Runnable write) {
+        Runnable runNow = null;
+        synchronized (this) {
+            if (rejectIfClosed()) {
+                return;
+            }
+            Task pending = pendingSaves.get(path);
+            if (pending != null) {
+                pending.write = write;
+                coalesced.incrementAndGet();
+                return;
+            }
+            while (queuedSaves >= capacity) {
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (policy == OverflowPolicy.DROP_OLDEST && dropOldestSave()) {
+                    break;
+                }
+                if (policy == OverflowPolicy.CALLER_RUNS) {
+                    runNow = write;
+                    break;
+                }
+                // BLOCK，或者队列里只有不能丢弃的操作
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (rejectIfClosed()) {
+                    return;
+                }
+            }
+            if (runNow == null) {
+                Task task = new Task(path, write);
+                pendingSaves.put(path, task);
+                enqueue(task);
+                return;
+            }
+        }
+        // CALLER_RUNS：先在当前线程执行并提交队首任务腾出空位，再正常入队
+        Task task = runOne();
+        if (task != null) {
+            List<Task> batch = new ArrayList<>();
+            batch.add(task);
+            commit(batch);
+        }
+        offer(path, runNow);
+    }
+
+    // 提交一个不可合并、不可丢弃的操作（删除、改名等），之前排队的保存不再与之后的保存合并；已关闭时返回 false
+    public boolean execute(Runnable operation) {
+        synchronized (this) {
+            if (rejectIfClosed()) {
+                return false;
+            }
+            submitted.incrementAndGet();
+            pendingSaves.clear();
+            enqueue(new Task(null, operation));
+            return true;
+        }
+    }
+
+    // 等待已提交的任务全部写完，超时返回 false
+    public boolean flush(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            flushWaiters++;
+            notifyAll(); // 让正在攒批的执行线程立即提交
+            try {
+                while (inFlight > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                flushWaiters--;
+            }
+        }
+    }
+
+    // 不再接受新任务，并等待已提交的任务写完
+    public boolean close(long timeout, TimeUnit unit) {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        boolean flushed = flush(timeout, unit);
+        if (!flushed) {
+            logger.warning(name + " 关闭时仍有 " + getQueueDepth() + " 个写任务未完成");
+        }
+        return flushed;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    // 因同一文件有更新的保存而被替换掉的次数
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    // 因队列已满被丢弃的保存次数
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    // 已提交的批次数；completed / batches 即平均每批的任务数
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    // 从入队到所在批次提交完成的平均时间（毫秒）
+    public double getAverageLatencyMillis() {
+        long n = completed.get();
+        return n == 0 ? 0 : totalLatencyNanos.get() / 1e6 / n;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1e6;
+    }
+
+    // 任务本身的平均执行时间（毫秒），不含排队
+    public double getAverageWriteMillis() {
+        long n = completed.get();
+        return n == 0 ? 0 : totalWriteNanos.get() / 1e6 / n;
+    }
+
+    private boolean rejectIfClosed() {
+        if (closed) {
+            logger.warning(name + " 已关闭，忽略写任务");
+        }
+        return closed;
+    }
+
+    private void enqueue(Task task) {
+        queue.addLast(task);
+        if (task.path != null) {
+            queuedSaves++;
+        }
+        inFlight++;
+        if (queue.size() > maxQueueDepth) {
+            maxQueueDepth = queue.size();
+        }
+        if (!drainScheduled) {
+            drainScheduled = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    // 丢弃队列中最早的一次保存，队列里没有保存时返回 false
+    private boolean dropOldestSave() {
+        for (Iterator<Task> it = queue.iterator(); it.hasNext(); ) {
+            Task task = it.next();
+            if (task.path != null) {
+                it.remove();
+                pendingSaves.remove(task.path, task);
+                queuedSaves--;
+                inFlight--;
+                dropped.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 在执行线程上处理任务，按成组提交分批：一批最多 commitMaxBatch 个任务，
+     * 队列暂时为空时最多再等 commitWindow 纳秒攒更多任务，然后调用一次 commit 把整批落盘。
+     * 处理满 DRAIN_BATCH 个任务后在批次边界让出线程，重新提交自己，避免长期占用共享线程池。
+     */
+    private void drain() {
+        List<Task> batch = new ArrayList<>();
+        long windowEnd = 0;
+        int processed = 0;
+        while (true) {
+            Task task = runOne();
+            if (task != null) {
+                if (batch.isEmpty()) {
+                    windowEnd = System.nanoTime() + commitWindowNanos;
+                }
+                batch.add(task);
+                processed++;
+                if (batch.size() < commitMaxBatch) {
+                    continue;
+                }
+            } else if (batch.isEmpty()) {
+                break;
+            } else if (awaitMore(windowEnd)) {
+                continue;
+            }
+            commit(batch);
+            if (processed >= DRAIN_BATCH) {
+                break;
+            }
+        }
+        synchronized (this) {
+            if (queue.isEmpty()) {
+                drainScheduled = false;
+                return;
+            }
+        }
+        executor.execute(this::drain);
+    }
+
+    // 在成组提交的窗口内等待新任务；窗口结束、有人在 flush 或已关闭时返回 false
+    private synchronized boolean awaitMore(long windowEnd) {
+        while (queue.isEmpty()) {
+            long remaining = windowEnd - System.nanoTime();
+            if (remaining <= 0 || closed || flushWaiters > 0) {
+                return false;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 取出并执行队首任务，队列为空时返回 null；任务在所在批次提交后才算完成
+    private Task runOne() {
+        runLock.lock();
+        try {
+            Task task;
+            Runnable write;
+            synchronized (this) {
+                task = queue.pollFirst();
+                if (task == null) {
+                    return null;
+                }
+                if (task.path != null) {
+                    pendingSaves.remove(task.path, task);
+                    queuedSaves--;
+                }
+                write = task.write;
+                notifyAll(); // 唤醒等待空位的提交方
+            }
+            long start = System.nanoTime();
+            try {
+                write.run();
+            } catch (RuntimeException e) {
+                logger.severe(name + " 写任务失败: " + e);
+            }
+            task.writeNanos = System.nanoTime() - start;
+            return task;
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    // 一批任务只调用一次 commit（一次写入和一次 force），之后才记为完成
+    private void commit(List<Task> batch) {
+        runLock.lock();
+        try {
+            commit.run();
+        } catch (RuntimeException e) {
+            logger.severe(name + " 提交失败: " + e);
+        } finally {
+            runLock.unlock();
+        }
+        batches.incrementAndGet();
+        long end = System.nanoTime();
+        SnapshotMetrics metrics = SnapshotMetrics.get();
+        for (Task task : batch) {
+            long latency = end - task.enqueuedAt;
+            completed.incrementAndGet();
+            totalLatencyNanos.addAndGet(latency);
+            totalWriteNanos.addAndGet(task.writeNanos);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            metrics.getWriteLatency().record(task.writeNanos);
+            metrics.getCommitLatency().record(latency);
+        }
+        synchronized (this) {
+            inFlight -= batch.size();
+            if (inFlight == 0) {
+                notifyAll();
+            }
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,378 @@
+package tongji.ggyl.versioncontrol;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.LongPredicate;
+import java.util.logging.Logger;
+
+/**
+ * TrigramIndex 是快照内容的三元组倒排索引，用于全文搜索时先筛出可能包含搜索文本的 blob。
+ * 三元组取内容中连续的 3 个字节，ASCII 字母先转成小写。
+ * 每个 blob 只记录相对同一文件上一版本（索引基准）新增和消失的三元组，blob 包含的三元组沿基准链推出：
+ * 历史再长，索引大小也只和改动量有关。blob 按建立索引的顺序编号，基准的编号总在前面，查询时顺序扫描一遍即可。
+ * 由写任务在保存快照时更新，关闭时写入 search/trigrams.idx；文件缺失或损坏时打开后在后台重建。
+ */
+final class TrigramIndex {
+    static final String DIR_NAME = "search";
+    static final String FILE_NAME = "trigrams.idx";
+    private static final int MAGIC = 0x54524931; // "TRI1"
+    private static final int MAX_QUERY_TRIGRAMS = 64; // 查询最多使用的三元组个数，超出的只在核对内容时检查
+    private static final int RECENT_TRIGRAMS = 64;    // 缓存最近建立索引的 blob 的三元组，下一版本计算差异时不用重新提取
+    private static final Logger logger = Logger.getLogger(TrigramIndex.class.getName());
+
+    // 一个三元组的倒排表：在哪些位置新增、在哪些位置消失，位置升序
+    private static final class Postings {
+        int[] added = new int[4];
+        int addedSize;
+        int[] removed = new int[0];
+        int removedSize;
+
+        void add(int position) {
+            if (addedSize == added.length) {
+                added = Arrays.copyOf(added, addedSize * 2);
+            }
+            added[addedSize++] = position;
+        }
+
+        void remove(int position) {
+            if (removedSize == removed.length) {
+                removed = Arrays.copyOf(removed, Math.max(4, removedSize * 2));
+            }
+            removed[removedSize++] = position;
+        }
+    }
+
+    private final Path file;
+    private long[] blobIds = new long[1024]; // 位置 -> blob id
+    private int[] basePositions = new int[1024]; // 位置 -> 索引基准的位置，没有基准时为 -1
+    private int size = 0;
+    private int generation = 0; // 每次重新编号加一，之前查询得到的位置随之失效
+    private final Map<Long, Integer> positions = new HashMap<>(); // blob id -> 位置
+    private final Map<Integer, Postings> postings = new HashMap<>();
+    private final Map<Long, int[]> recent = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+            return size() > RECENT_TRIGRAMS;
+        }
+    };
+
+    private TrigramIndex(Path file) {
+        this.file = file;
+    }
+
+    // 读取 baseDir/search 下的索引文件，不存在或损坏时返回空索引
+    static TrigramIndex open(Path baseDir) {
+        TrigramIndex index = new TrigramIndex(baseDir.resolve(DIR_NAME).resolve(FILE_NAME));
+        if (!Files.isRegularFile(index.file)) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index.file)))) {
+            index.read(in);
+        } catch (IOException | RuntimeException e) {
+            logger.warning("搜索索引损坏，将重新建立: " + e);
+            return new TrigramIndex(index.file);
+        }
+        return index;
+    }
+
+    synchronized boolean contains(long blobId) {
+        return positions.containsKey(blobId);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    // 建立索引时需要读取 base 的内容：base 已建立索引，但三元组不在缓存中
+    synchronized boolean needsContent(long baseId) {
+        return positions.containsKey(baseId) && !recent.containsKey(baseId);
+    }
+
+    /**
+     * 为一个新 blob 建立索引。baseId 为同一文件上一版本的 blob，-1 表示没有；
+     * base 已建立索引时只记录差异，否则记录全部三元组。baseContent 只在 needsContent 时需要，其余情况可为 null。
+     */
+    synchronized void add(long blobId, long baseId, byte[] content, byte[] baseContent) {
+        if (positions.containsKey(blobId)) {
+            return;
+        }
+        int[] trigrams = trigrams(content);
+        Integer basePosition = baseId < 0 ? null : positions.get(baseId);
+        int[] baseTrigrams = null;
+        if (basePosition != null) {
+            baseTrigrams = recent.get(baseId);
+            if (baseTrigrams == null && baseContent != null) {
+                baseTrigrams = trigrams(baseContent);
+            }
+        }
+        int position = append(blobId, baseTrigrams == null ? -1 : basePosition);
+        if (baseTrigrams == null) {
+            for (int trigram : trigrams) {
+                postingsOf(trigram).add(position);
+            }
+        } else {
+            // 两个有序数组归并，得到新增和消失的三元组
+            int i = 0;
+            int j = 0;
+            while (i < trigrams.length || j < baseTrigrams.length) {
+                if (j == baseTrigrams.length || (i < trigrams.length && trigrams[i] < baseTrigrams[j])) {
+                    postingsOf(trigrams[i++]).add(position);
+                } else if (i == trigrams.length || baseTrigrams[j] < trigrams[i]) {
+                    postingsOf(baseTrigrams[j++]).remove(position);
+                } else {
+                    i++;
+                    j++;
+                }
+            }
+        }
+        recent.put(blobId, trigrams);
+    }
+
+    private int append(long blobId, int basePosition) {
+        if (size == blobIds.length) {
+            blobIds = Arrays.copyOf(blobIds, size * 2);
+            basePositions = Arrays.copyOf(basePositions, size * 2);
+        }
+        blobIds[size] = blobId;
+        basePositions[size] = basePosition;
+        positions.put(blobId, size);
+        return size++;
+    }
+
+    private Postings postingsOf(int trigram) {
+        return postings.computeIfAbsent(trigram, t -> new Postings());
+    }
+
+    /**
+     * 可能包含 text 的 blob。结果只会多不会少：还没有建立索引的 blob 一律算作可能包含，
+     * 调用者须再核对内容。text 不足 3 个字节时无法筛选，全部算作可能包含。
+     */
+    synchronized LongPredicate candidates(String text) {
+        int[] query = trigrams(text.getBytes(StandardCharsets.UTF_8));
+        if (query.length == 0) {
+            return blobId -> true;
+        }
+        int count = Math.min(query.length, MAX_QUERY_TRIGRAMS);
+        long[] added = new long[size];
+        long[] removed = new long[size];
+        for (int bit = 0; bit < count; bit++) {
+            Postings list = postings.get(query[bit]);
+            if (list == null) {
+                // 没有任何版本出现过这个三元组，只有未建立索引的 blob 可能包含
+                return unindexedAfter(new BitSet());
+            }
+            for (int i = 0; i < list.addedSize; i++) {
+                added[list.added[i]] |= 1L << bit;
+            }
+            for (int i = 0; i < list.removedSize; i++) {
+                removed[list.removed[i]] |= 1L << bit;
+            }
+        }
+        // 基准的位置总在前面，顺序扫描一遍就能推出每个 blob 包含哪些查询三元组
+        long all = count == 64 ? -1L : (1L << count) - 1;
+        long[] present = new long[size];
+        BitSet matched = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            long inherited = basePositions[i] < 0 ? 0 : present[basePositions[i]];
+            present[i] = (inherited & ~removed[i]) | added[i];
+            if (present[i] == all) {
+                matched.set(i);
+            }
+        }
+        return unindexedAfter(matched);
+    }
+
+    // 查询时已建立索引的 blob 按 matched 判断，之后才加入的或已被重新编号的都算作可能包含
+    private LongPredicate unindexedAfter(BitSet matched) {
+        int limit = size;
+        int queried = generation;
+        return blobId -> {
+            int position = positionOf(blobId, queried);
+            return position < 0 || position >= limit || matched.get(position);
+        };
+    }
+
+    private synchronized int positionOf(long blobId, int queried) {
+        Integer position = positions.get(blobId);
+        return position == null || queried != generation ? -1 : position;
+    }
+
+    /**
+     * 去掉不再需要的 blob 后写入索引文件（先写临时文件再替换）。
+     * live 判断 blob 是否仍在存储中；已删除的 blob 若还是其他 blob 的索引基准则保留。
+     */
+    synchronized void save(LongPredicate live) throws IOException {
+        prune(live);
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            write(out);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void prune(LongPredicate live) {
+        boolean[] keep = new boolean[size];
+        for (int i = size - 1; i >= 0; i--) {
+            keep[i] |= live.test(blobIds[i]);
+            if (keep[i] && basePositions[i] >= 0) {
+                keep[basePositions[i]] = true;
+            }
+        }
+        int[] remap = new int[size];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                remap[i] = kept;
+                blobIds[kept] = blobIds[i];
+                basePositions[kept] = basePositions[i] < 0 ? -1 : remap[basePositions[i]];
+                kept++;
+            } else {
+                remap[i] = -1;
+                positions.remove(blobIds[i]);
+                recent.remove(blobIds[i]);
+            }
+        }
+        if (kept == size) {
+            return;
+        }
+        size = kept;
+        generation++;
+        for (int i = 0; i < size; i++) {
+            positions.put(blobIds[i], i);
+        }
+        Iterator<Postings> it = postings.values().iterator();
+        while (it.hasNext()) {
+            Postings list = it.next();
+            list.addedSize = remapAll(list.added, list.addedSize, remap);
+            list.removedSize = remapAll(list.removed, list.removedSize, remap);
+            if (list.addedSize == 0 && list.removedSize == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private static int remapAll(int[] list, int length, int[] remap) {
+        int kept = 0;
+        for (int i = 0; i < length; i++) {
+            if (remap[list[i]] >= 0) {
+                list[kept++] = remap[list[i]];
+            }
+        }
+        return kept;
+    }
+
+    // 格式：魔数、blob 个数、每个 blob 的 id 和基准位置、三元组个数、每个三元组的两个倒排表（位置差值按变长整数保存）
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(blobIds[i]);
+            writeVarInt(out, basePositions[i] + 1);
+        }
+        out.writeInt(postings.size());
+        for (Map.Entry<Integer, Postings> entry : postings.entrySet()) {
+            out.writeInt(entry.getKey());
+            writeList(out, entry.getValue().added, entry.getValue().addedSize);
+            writeList(out, entry.getValue().removed, entry.getValue().removedSize);
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("不是搜索索引文件: " + file);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long blobId = in.readLong();
+            int basePosition = readVarInt(in) - 1;
+            if (basePosition >= i) {
+                throw new IOException("索引基准位置不合法: " + basePosition);
+            }
+            append(blobId, basePosition);
+        }
+        int trigramCount = in.readInt();
+        for (int i = 0; i < trigramCount; i++) {
+            Postings list = postingsOf(in.readInt());
+            list.added = readList(in);
+            list.addedSize = list.added.length;
+            list.removed = readList(in);
+            list.removedSize = list.removed.length;
+        }
+    }
+
+    private static void writeList(DataOutputStream out, int[] list, int length) throws IOException {
+        writeVarInt(out, length);
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            writeVarInt(out, list[i] - previous);
+            previous = list[i];
+        }
+    }
+
+    private int[] readList(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        int[] list = new int[length];
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous += readVarInt(in);
+            if (previous >= size) {
+                throw new IOException("倒排表位置越界: " + previous);
+            }
+            list[i] = previous;
+        }
+        return list;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("变长整数过长");
+    }
+
+    // 内容中出现的全部三元组，升序且不重复
+    static int[] trigrams(byte[] content) {
+        if (content.length < 3) {
+            return new int[0];
+        }
+        int[] result = new int[content.length - 2];
+        int a = fold(content[0]);
+        int b = fold(content[1]);
+        for (int i = 2; i < content.length; i++) {
+            int c = fold(content[i]);
+            result[i - 2] = (a << 16) | (b << 8) | c;
+            a = b;
+            b = c;
+        }
+        Arrays.sort(result);
+        int unique = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (i == 0 || result[i] != result[i - 1]) {
+                result[unique++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, unique);
+    }
+
+    private static int fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+}
@@ -3,7 +3,15 @@ package tongji.ggyl.versioncontrol;
 
 import tongji.ggyl.eventlistening.Snapshot;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * VersionControl 是版本控制的接口，定义了保存代码快照的方法。
@@ -16,9 +24,124 @@ public interface VersionControl {
 
     void saveVersionSnapshot(Snapshot snapshot);
 
-    // 查询某个文件的历史快照
+    // 查询某个文件的历史快照；会把全部内容读进内存，历史较长时用 streamSnapshots
     List<Snapshot> getSnapshotsForFile(String path);
     List<Snapshot> getAllSnapshots();
+    // 只查询元数据，不读取快照内容
+    List<SnapshotMeta> getAllSnapshotMetas();
+    List<SnapshotMeta> getSnapshotMetasForFile(String path);
+    // 按 id 读取快照内容，快照不存在或读取失败时返回 null
+    byte[] loadContent(long snapshotId);
+
+    // 快照个数；path 为 null 时统计全部文件
+    default int countSnapshots(String path) {
+        return path == null ? getAllSnapshotMetas().size() : getSnapshotMetasForFile(path).size();
+    }
+
+    // 按时间从新到旧分页查询元数据；path 为 null 时查询全部文件。默认实现每次都排序，存储实现应覆盖
+    default List<SnapshotMeta> getSnapshotMetas(String path, int offset, int limit) {
+        List<SnapshotMeta> metas = path == null ? getAllSnapshotMetas() : getSnapshotMetasForFile(path);
+        metas.sort(Comparator.comparingLong(SnapshotMeta::getRealTimestamp).thenComparingLong(SnapshotMeta::getId).reversed());
+        int from = Math.min(Math.max(offset, 0), metas.size());
+        return new ArrayList<>(metas.subList(from, Math.min(metas.size(), from + limit)));
+    }
+
+    // 同一文件中紧挨在 meta 之前的快照，按 (时间戳, id) 排序；没有时返回 null。默认实现线性查找，存储实现应覆盖
+    default SnapshotMeta getPreviousSnapshotMeta(SnapshotMeta meta) {
+        SnapshotMeta previous = null;
+        for (SnapshotMeta candidate : getSnapshotMetasForFile(meta.getFilePath())) {
+            if (compareTime(candidate, meta) < 0 && (previous == null || compareTime(candidate, previous) > 0)) {
+                previous = candidate;
+            }
+        }
+        return previous;
+    }
+
+    // 按时间戳比较，同一毫秒内的快照按 id（保存顺序）比较
+    static int compareTime(SnapshotMeta a, SnapshotMeta b) {
+        int c = Long.compare(a.getRealTimestamp(), b.getRealTimestamp());
+        return c != 0 ? c : Long.compare(a.getId(), b.getId());
+    }
+
+    // 按条件流式查询元数据。默认实现先取出全部元数据再过滤排序，存储实现应覆盖为分批读取
+    default Stream<SnapshotMeta> streamSnapshotMetas(SnapshotQuery query) {
+        List<SnapshotMeta> metas = query.getPath() != null ? getSnapshotMetasForFile(query.getPath()) : getAllSnapshotMetas();
+        Comparator<SnapshotMeta> order = VersionControl::compareTime;
+        return metas.stream().filter(query::matches).sorted(query.isNewestFirst() ? order.reversed() : order);
+    }
+
+    // 按条件流式读取快照，内容在遍历到时才逐个读取，内存占用与历史长度无关
+    default Stream<Snapshot> streamSnapshots(SnapshotQuery query) {
+        return streamSnapshotMetas(query).map(meta -> {
+            byte[] content = loadContent(meta.getId());
+            return content == null ? null : new Snapshot(meta.getName(), meta.getFilePath(), content, meta.getRealTimestamp());
+        }).filter(Objects::nonNull);
+    }
+
+    // 全文搜索：按 query 的条件和顺序查找内容包含 text 的快照及其中匹配的行，最多 limit 个。
+    // 默认实现逐个读取快照内容，存储实现应覆盖为先用索引筛选
+    default List<SnapshotSearchHit> search(SnapshotQuery query, String text, boolean matchCase, int limit) {
+        return search(query, text, matchCase, limit, () -> false);
+    }
+
+    // 同上；cancelled 返回 true 时尽快停止，返回已找到的部分结果
+    default List<SnapshotSearchHit> search(SnapshotQuery query, String text, boolean matchCase, int limit,
+                                           BooleanSupplier cancelled) {
+        if (text == null || text.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        return streamSnapshotMetas(query).takeWhile(meta -> !cancelled.getAsBoolean()).map(meta -> {
+            byte[] content = loadContent(meta.getId());
+            return content == null ? null : SnapshotSearchHit.match(meta, content, text, matchCase);
+        }).filter(Objects::nonNull).limit(limit).collect(Collectors.toList());
+    }
+
+    // 存储中已有的从 baseSnapshotId 到 snapshotId 的行级差异（例如增量保存的补丁），内容相同时为空列表；
+    // 没有现成的差异时返回 null，调用者自己计算
+    default List<LineChange> getStoredChanges(long baseSnapshotId, long snapshotId) {
+        return null;
+    }
+
+    // 有快照的全部文件路径，按字典序排列
+    default List<String> getTrackedFilePaths() {
+        TreeSet<String> paths = new TreeSet<>();
+        for (SnapshotMeta meta : getAllSnapshotMetas()) {
+            paths.add(meta.getFilePath());
+        }
+        return new ArrayList<>(paths);
+    }
     void deleteSnapshotsForFile(String path);
+    // 目录被删除：dir 下所有文件的快照一起删除。默认实现逐个文件删除，存储实现应覆盖为一次操作
+    default void deleteSnapshotsForDirectory(String dir) {
+        String prefix = dir + "/";
+        for (String path : getTrackedFilePaths()) {
+            if (path.startsWith(prefix)) {
+                deleteSnapshotsForFile(path);
+            }
+        }
+    }
+    // 删除后又重新出现的文件或目录（例如撤销删除）：还在宽限期内的历史恢复可见。默认不支持恢复
+    default void restoreDeletedSnapshots(String path, boolean directory) {
+    }
+    // 清除宽限期已过的已删除历史，返回清除的文件个数；由后台整理定期调用
+    default int sweepDeletedSnapshots() {
+        return 0;
+    }
+    // 删除指定 id 的若干快照（保留策略清理历史时使用），不存在的 id 忽略
+    void deleteSnapshots(Collection<Long> snapshotIds);
     void changeSnapshotsPathForFile(String oldPath,String newPath);
+    // 目录改名或移动：oldDir 下每个文件的快照改到 newDir 下的同名路径。默认实现逐个文件修改，存储实现应覆盖为一次操作
+    default void changeSnapshotsPathForDirectory(String oldDir, String newDir) {
+        String prefix = oldDir + "/";
+        for (String path : getTrackedFilePaths()) {
+            if (path.startsWith(prefix)) {
+                changeSnapshotsPathForFile(path, newDir + "/" + path.substring(prefix.length()));
+            }
+        }
+    }
+    // 快照存放目录（项目根目录下的 snapshots）
+    String getProjectBasePath();
+    // 写完排队中的快照并释放资源，项目关闭时调用
+    default void shutdown() {
+    }
 }
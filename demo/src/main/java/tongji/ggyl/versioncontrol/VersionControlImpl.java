@@ -2,197 +2,252 @@ package tongji.ggyl.versioncontrol;
 
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectUtil;
-import com.intellij.openapi.vfs.VirtualFile;
 import tongji.ggyl.eventlistening.Snapshot;
-import tongji.ggyl.eventlistening.VersionControlPlugin;
 import tongji.ggyl.versioncontrol.VersionControl;
 
 import java.io.*;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class VersionControlImpl implements VersionControl {
     private final String projectBasePath;
-    private static final Logger logger = Logger.getLogger(VersionControlPlugin.class.getName()); // 用于记录日志信息
-    private final ExecutorService executorService = Executors.newCachedThreadPool(); // 创建线程池
+    private static final Logger logger = Logger.getLogger(VersionControlImpl.class.getName()); // 用于记录日志信息
+    // 有界写队列，在所有项目共用的 I/O 线程上执行，取代每个项目各自的线程池
+    private final SnapshotIoScheduler.Lane writeLane;
+    private final SnapshotIoScheduler ownedIo; // 没有指定共用的调度器时自己建的，关闭时停止
+    private final SnapshotWriter writer;
+    private final SnapshotIndex index; // 路径 -> 快照条目 的持久化索引
+    private final SnapshotCompactor compactor; // 按保留策略清理历史，未启用时为 null
+    @Override
     public String getProjectBasePath() {
         return projectBasePath;
     }
     //传project参数，用于初始化快照文件夹路径
+    // 在 IDE 中使用应用级服务的共用调度器
     public VersionControlImpl(Project project) {
-        VirtualFile baseDir = ProjectUtil.guessProjectDir(project);
-        this.projectBasePath = baseDir.getPath()+"/snapshots";
-        System.out.println("project:"+this.projectBasePath);
+        this(snapshotDir(project), SnapshotStoreOptions.load(snapshotDir(project))
+                .setIoScheduler(SnapshotIoService.getInstance().getScheduler()));
+    }
+
+    private static Path snapshotDir(Project project) {
+        return Paths.get(ProjectUtil.guessProjectDir(project).getPath(), "snapshots");
+    }
+
+    // 直接指定快照目录，不需要 Project，基准测试等脱离 IDE 的场景使用
+    public VersionControlImpl(Path baseDir) {
+        this(baseDir, SnapshotStoreOptions.load(baseDir));
+    }
+
+    public VersionControlImpl(Path baseDir, SnapshotStoreOptions options) {
+        this.projectBasePath = baseDir.toString().replace('\\', '/');
+        try {
+            this.index = SnapshotIndex.open(baseDir, VersionControlImpl::readSnapshot);
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开快照索引失败: " + projectBasePath, e);
+        }
+        // 每批快照写完后只刷新一次索引日志
+        SnapshotIoScheduler io = options.getIoScheduler();
+        this.ownedIo = io == null ? new SnapshotIoScheduler("snapshot-io " + projectBasePath, 2) : null;
+        if (io == null) {
+            io = ownedIo;
+        }
+        this.writeLane = io.newLane("snapshot-writer " + projectBasePath, SnapshotIoScheduler.Priority.WRITE);
+        this.writer = new SnapshotWriter("snapshot-writer", writeLane, options, index::sync);
+        // 每个快照是单独的文件，删除即回收空间，不需要再压缩
+        long interval = options.getCompactionIntervalMinutes();
+        if (interval > 0) {
+            compactor = new SnapshotCompactor("snapshot-compactor " + projectBasePath, io, this, options.getRetentionPolicy(), null);
+            compactor.start(Math.min(interval, 5), interval, TimeUnit.MINUTES);
+        } else {
+            compactor = null;
+        }
+        // 快照分散在各个文件中，不统计存储大小
+        SnapshotMetrics.get().register(this, writer::getQueueDepth, null);
     }
 
     @Override
     public void saveVersionSnapshot(Snapshot snapshot) {
-        executorService.submit(() -> {
-            //System.out.println("66666666");
-
+        // 同一文件排队中的保存只写最新一次
+        writer.save(snapshot.getFilePath(), () -> {
             // 定义快照文件名
             String fileName = snapshot.getName();
             File snapshotFile = new File(projectBasePath, fileName);
 
             // 保存整个快照对象
             try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(snapshotFile))) {
-                //System.out.println(snapshotFile.getPath());
                 outputStream.writeObject(snapshot); // 写入整个快照对象
-                //System.out.println("77777777");
-                logger.info("为文件保存的快照 :" + snapshot.getFilePath() + " at " + snapshot.getTimestamp());
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("为文件保存的快照 :" + snapshot.getFilePath() + " at " + snapshot.getTimestamp());
+                }
             } catch (IOException e) {
                 logger.severe("保存快照失败: " + snapshot.getFilePath());
+                return;
             }
+            SnapshotMetrics.get().recordSnapshotWritten();
+            SnapshotMetrics.get().recordBytesWritten(snapshotFile.length());
+            // 快照文件写完后再登记到索引
+            index.add(snapshot, fileName);
         });
     }
 
     @Override
     public List<Snapshot> getSnapshotsForFile(String path) {
+        // 只读取索引中属于该文件的快照
+        return readEntries(index.entriesFor(path));
+    }
+    @Override
+    public List<Snapshot> getAllSnapshots(){
+        return readEntries(index.allEntries());
+    }
 
-        List<Snapshot> snapshots = new ArrayList<>();
-
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(projectBasePath))) {
-            for (Path entry : stream) {
-                if (Files.isRegularFile(entry)) { // 检查是否为常规文件
-                    //System.out.println(entry.getFileName()); // 输出文件名
-                    // 反序列化 Snapshot 对象
-                    try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(entry.toFile()))) {
-                        Snapshot snapshot = (Snapshot) ois.readObject(); // 反序列化
-                        if (snapshot != null && snapshot.getFilePath().equals(path)) {
-                            snapshots.add(snapshot); // 将反序列化的对象添加到列表中
-                        }
-                    } catch (ClassNotFoundException e) {
-                        System.out.println("catch1");
-                        System.err.println("Class not found: " + e.getMessage());
-                    } catch (IOException e) {
-                        System.out.println("catch2");
-                        System.err.println("Error reading file: " + e.getMessage());
-                    }
+    @Override
+    public List<SnapshotMeta> getAllSnapshotMetas() {
+        List<SnapshotMeta> metas = new ArrayList<>();
+        for (SnapshotIndex.Entry entry : index.allEntries()) {
+            metas.add(entry.toMeta());
+        }
+        return metas;
+    }
+
+    @Override
+    public List<SnapshotMeta> getSnapshotMetasForFile(String path) {
+        List<SnapshotMeta> metas = new ArrayList<>();
+        for (SnapshotIndex.Entry entry : index.entriesFor(path)) {
+            metas.add(entry.toMeta());
+        }
+        return metas;
+    }
+
+    @Override
+    public SnapshotMeta getPreviousSnapshotMeta(SnapshotMeta meta) {
+        SnapshotIndex.Entry previous = index.previous(meta.getFilePath(), meta.getRealTimestamp(), meta.getId());
+        return previous == null ? null : previous.toMeta();
+    }
+
+    @Override
+    public byte[] loadContent(long snapshotId) {
+        SnapshotIndex.Entry entry = index.entry(snapshotId);
+        if (entry == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Snapshot snapshot = readSnapshot(Paths.get(projectBasePath, entry.name));
+        SnapshotMetrics.get().getReadLatency().record(System.nanoTime() - start);
+        return snapshot == null ? null : snapshot.getContent();
+    }
+
+    @Override
+    public void deleteSnapshotsForFile(String path){
+        // 和保存走同一个队列，排在它之前的保存先写完
+        writer.execute(() -> {
+            for (SnapshotIndex.Entry entry : index.removePath(path)) {
+                try {
+                    Files.deleteIfExists(Paths.get(projectBasePath, entry.name));
+                } catch (IOException e) {
+                    logger.warning("删除快照文件失败: " + e.getMessage());
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return snapshots;
+        });
     }
+
     @Override
-    public List<Snapshot> getAllSnapshots(){
-        List<Snapshot> snapshots = new ArrayList<>();
-
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(projectBasePath))) {
-            for (Path entry : stream) {
-                if (Files.isRegularFile(entry)) { // 检查是否为常规文件
-                    // 反序列化 Snapshot 对象
-                    try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(entry.toFile()))) {
-                        Snapshot snapshot = (Snapshot) ois.readObject(); // 反序列化
-                        if (snapshot != null) {
-                            //System.out.println(snapshot.getFilePath());
-                            //System.out.println("fanxuliehua win");
-                            snapshots.add(snapshot); // 将反序列化的对象添加到列表中
-                            //System.out.println("add win");
-                        }
-                    } catch (ClassNotFoundException e) {
-                        System.out.println("catch1");
-                        System.err.println("Class not found: " + e.getMessage());
-                    } catch (IOException e) {
-                        System.out.println("catch2");
-                        System.err.println("Error reading file: " + e.getMessage());
-                    }
+    public void deleteSnapshotsForDirectory(String dir) {
+        // 整个目录只写一条索引记录；旧格式没有墓碑，快照文件立即删除
+        writer.execute(() -> {
+            for (SnapshotIndex.Entry entry : index.removeDirectory(dir)) {
+                try {
+                    Files.deleteIfExists(Paths.get(projectBasePath, entry.name));
+                } catch (IOException e) {
+                    logger.warning("删除快照文件失败: " + e.getMessage());
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return snapshots;
+        });
     }
 
     @Override
-    public void deleteSnapshotsForFile(String path){
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(projectBasePath))) {
-            for (Path entry : stream) {
-                if (Files.isRegularFile(entry)) { // 检查是否为常规文件
-                    // 反序列化 Snapshot 对象
-                    Snapshot snapshot = null;
-                    try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(entry.toFile()))) {
-                        snapshot = (Snapshot) ois.readObject(); // 反序列化
-                    } catch (ClassNotFoundException e) {
-                        System.out.println("catch1");
-                        System.err.println("Class not found: " + e.getMessage());
-                    } catch (IOException e) {
-                        System.out.println("catch2");
-                        System.err.println("Error reading file: " + e.getMessage());
-                    }
-
-                    // 只有在流关闭后才执行删除操作
-                    if (snapshot != null && snapshot.getFilePath().equals(path)) {
-                        //System.out.println("--------------------");
-                        //System.out.println("fanxuliehua win");
-                        //System.out.println("--------------------");
-                        // 删除此文件
-                        Files.delete(entry);
-                        //System.out.println("--------------------");
-                        //System.out.println("--delete win--");
-                        //System.out.println("--------------------");
-                    }
+    public void deleteSnapshots(Collection<Long> snapshotIds) {
+        List<Long> ids = new ArrayList<>(snapshotIds);
+        writer.execute(() -> {
+            for (SnapshotIndex.Entry entry : index.removeIds(ids)) {
+                try {
+                    Files.deleteIfExists(Paths.get(projectBasePath, entry.name));
+                } catch (IOException e) {
+                    logger.warning("删除快照文件失败: " + e.getMessage());
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        });
     }
 
     @Override
     public void changeSnapshotsPathForFile(String oldPath,String newPath){
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(projectBasePath))) {
-            for (Path entry : stream) {
-                if (Files.isRegularFile(entry)) { // 检查是否为常规文件
-                    //System.out.println("four");
-                    // 反序列化 Snapshot 对象
-                    try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(entry.toFile()))) {
-                        //System.out.println("five");
-                        Snapshot snapshot = (Snapshot) ois.readObject(); // 反序列化
-                        if (snapshot != null && snapshot.getFilePath().equals(oldPath)) {
-                            //System.out.println("six");
-                            //把snapshot的path修改掉，重新进行序列化
-                            snapshot.setFilePath(newPath);
-                            //System.out.println("six1");
-                            // 创建新的快照文件并进行序列化
-                            // 定义快照文件名
-                            String fileName = snapshot.getName();
-                            File snapshotFile = new File(projectBasePath, fileName);
-                            //System.out.println("seven");
-                            // 保存整个快照对象
-                            try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(snapshotFile))) {
-                                //System.out.println(snapshotFile.getPath());
-                                outputStream.writeObject(snapshot); // 写入整个快照对象
-                                //System.out.println("new win!!!");
-                                logger.info("为文件保存的快照 :" + snapshot.getFilePath() + " at " + snapshot.getTimestamp());
-                            } catch (IOException e) {
-                                logger.severe("保存快照失败: " + snapshot.getFilePath());
-                            }
-
-                            //System.out.println("--change win--");
-                        }
-                    } catch (ClassNotFoundException e) {
-                        System.out.println("catch1");
-                        System.err.println("Class not found: " + e.getMessage());
-                    } catch (IOException e) {
-                        System.out.println("catch2");
-                        System.err.println("Error reading file: " + e.getMessage());
-                    }
-                }
+        // 只修改索引中的路径，不再重写快照文件；和保存走同一个队列
+        writer.execute(() -> index.movePath(oldPath, newPath));
+    }
+
+    @Override
+    public void changeSnapshotsPathForDirectory(String oldDir, String newDir) {
+        // 整个目录只写一条索引记录
+        writer.execute(() -> index.moveDirectory(oldDir, newDir));
+    }
+
+    // 按索引条目逐个反序列化快照
+    private List<Snapshot> readEntries(List<SnapshotIndex.Entry> entries) {
+        List<Snapshot> snapshots = new ArrayList<>(entries.size());
+        for (SnapshotIndex.Entry entry : entries) {
+            long start = System.nanoTime();
+            Snapshot snapshot = readSnapshot(Paths.get(projectBasePath, entry.name));
+            SnapshotMetrics.get().getReadLatency().record(System.nanoTime() - start);
+            if (snapshot != null) {
+                snapshot.setFilePath(entry.path); // 文件改名后快照文件中的路径是旧的，以索引为准
+                snapshots.add(snapshot); // 将反序列化的对象添加到列表中
             }
+        }
+        return snapshots;
+    }
+
+    // 反序列化单个快照文件，失败时返回 null
+    static Snapshot readSnapshot(Path file) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file.toFile()))) {
+            return (Snapshot) ois.readObject(); // 反序列化
+        } catch (ClassNotFoundException e) {
+            logger.warning("快照类不存在: " + e.getMessage());
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.warning("读取快照文件失败: " + file + ": " + e.getMessage());
         }
+        return null;
+    }
+
+    // 写入队列的深度、合并和丢弃次数、写入延迟等统计
+    public SnapshotWriter getWriter() {
+        return writer;
+    }
+
+    // 保留策略的统计，未启用时为 null
+    public SnapshotCompactor getCompactor() {
+        return compactor;
     }
 
-    // 关闭线程池
+    // 停止后台清理，等待排队中的快照写完，再关闭写线程和索引
+    @Override
     public void shutdown() {
-        executorService.shutdown();
+        SnapshotMetrics.get().unregister(this);
+        if (compactor != null) {
+            compactor.shutdown(10, TimeUnit.SECONDS);
+        }
+        writer.close(10, TimeUnit.SECONDS);
+        writeLane.close(10, TimeUnit.SECONDS);
+        if (ownedIo != null) {
+            ownedIo.shutdown();
+        }
+        try {
+            index.close();
+        } catch (IOException e) {
+            logger.warning("关闭快照索引失败: " + e.getMessage());
+        }
     }
 }
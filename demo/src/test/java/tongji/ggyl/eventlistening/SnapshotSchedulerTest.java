@@ -0,0 +1,64 @@
+package tongji.ggyl.eventlistening;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightVirtualFile;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SnapshotScheduler 的去抖测试：还在等待中的快照在 flush 或 dispose 时立即保存，且每次修改只保存一次。
+ */
+class SnapshotSchedulerTest {
+    // 去抖时间足够长，测试期间不会自己到期
+    private static final long IDLE_MS = 60_000;
+
+    @Test
+    void disposeSavesPendingCapture() {
+        List<VirtualFile> saved = new CopyOnWriteArrayList<>();
+        SnapshotScheduler scheduler = new SnapshotScheduler(IDLE_MS, IDLE_MS, saved::add);
+        VirtualFile a = new LightVirtualFile("A.java");
+        VirtualFile b = new LightVirtualFile("B.java");
+        scheduler.schedule(a);
+        scheduler.schedule(a);
+        scheduler.schedule(b);
+        assertEquals(2, scheduler.getPendingCount());
+
+        scheduler.dispose();
+        assertEquals(2, saved.size());
+        assertTrue(saved.contains(a) && saved.contains(b));
+        assertEquals(0, scheduler.getPendingCount());
+
+        // 释放后不再接受新的请求
+        scheduler.schedule(a);
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    void flushBeforeDisposeSavesOnce() {
+        List<VirtualFile> saved = new CopyOnWriteArrayList<>();
+        SnapshotScheduler scheduler = new SnapshotScheduler(IDLE_MS, IDLE_MS, saved::add);
+        VirtualFile a = new LightVirtualFile("A.java");
+        scheduler.schedule(a);
+
+        // 项目关闭时先 flush，之后释放不会重复保存
+        scheduler.flush();
+        assertEquals(List.of(a), saved);
+        scheduler.dispose();
+        assertEquals(List.of(a), saved);
+    }
+
+    @Test
+    void cancelDropsPendingCapture() {
+        List<VirtualFile> saved = new CopyOnWriteArrayList<>();
+        SnapshotScheduler scheduler = new SnapshotScheduler(IDLE_MS, IDLE_MS, saved::add);
+        VirtualFile a = new LightVirtualFile("A.java");
+        scheduler.schedule(a);
+        scheduler.cancel(a);
+        scheduler.dispose();
+        assertTrue(saved.isEmpty());
+    }
+}
@@ -0,0 +1,91 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 准入策略的测试：路径模式中 * 和 ? 不跨目录，** 可以跨目录，** 加斜杠的前缀也可以匹配零层目录；开头有 NUL 字符的内容按二进制跳过。
+ */
+class AdmissionPolicyTest {
+
+    private static boolean matches(String glob, String path) {
+        return AdmissionPolicy.compileGlob(glob).matcher(path).matches();
+    }
+
+    @Test
+    void starStaysWithinDirectory() {
+        assertTrue(matches("/p/*.log", "/p/a.log"));
+        assertFalse(matches("/p/*.log", "/p/sub/a.log"));
+        assertTrue(matches("/p/*", "/p/"));
+    }
+
+    @Test
+    void questionMarkMatchesOneCharacter() {
+        assertTrue(matches("/p/?.txt", "/p/a.txt"));
+        assertFalse(matches("/p/?.txt", "/p/ab.txt"));
+        assertFalse(matches("/p?a.txt", "/p/a.txt"));
+    }
+
+    @Test
+    void doubleStarCrossesDirectories() {
+        assertTrue(matches("**/build/**", "/p/build/classes/A.class"));
+        assertTrue(matches("**/build/**", "build/A.class"));
+        assertFalse(matches("**/build/**", "/p/rebuild/A.class"));
+        assertTrue(matches("**/*.log", "/p/a/b/c.log"));
+        assertTrue(matches("/p/**/A.java", "/p/A.java"));
+        assertTrue(matches("/p/**/A.java", "/p/x/y/A.java"));
+        assertTrue(matches("/p/**", "/p/x/y"));
+    }
+
+    @Test
+    void otherCharactersAreLiteral() {
+        assertTrue(matches("**/*.min.js", "/p/app.min.js"));
+        assertFalse(matches("**/*.min.js", "/p/app-min.js"));
+        assertTrue(matches("/p/a+b(1)/[x].txt", "/p/a+b(1)/[x].txt"));
+        assertEquals(Pattern.compile("(?:.*/)?\\Qa\\E").pattern(), AdmissionPolicy.compileGlob("**/a").pattern());
+    }
+
+    @Test
+    void excludeGlobsFilterPaths() {
+        AdmissionPolicy policy = AdmissionPolicy.defaults();
+        assertFalse(policy.admitsPath("/p/node_modules/lib/index.js"));
+        assertFalse(policy.admitsPath("/p/web/app.min.js"));
+        assertTrue(policy.admitsPath("/p/src/A.java"));
+
+        policy.setExcludeGlobs(" **/*.tmp , ,/p/out/** ");
+        assertTrue(policy.admitsPath("/p/node_modules/lib/index.js"));
+        assertFalse(policy.admitsPath("/p/a.tmp"));
+        assertFalse(policy.admitsPath("/p/out/A.class"));
+        assertThrows(IllegalArgumentException.class, () -> policy.addExcludeGlob("  "));
+    }
+
+    @Test
+    void contentWithNulIsBinary() {
+        AdmissionPolicy policy = AdmissionPolicy.defaults();
+        assertTrue(policy.admitsContent("class A {}"));
+        assertTrue(policy.admitsContent(""));
+        assertFalse(policy.admitsContent("PK\u0003\u0004\0\0"));
+        // 只检查开头 8000 个字符
+        StringBuilder late = new StringBuilder();
+        for (int i = 0; i < 8000; i++) {
+            late.append('a');
+        }
+        assertTrue(policy.admitsContent(late.append('\0')));
+        assertTrue(AdmissionPolicy.admitAll().admitsContent("\0"));
+    }
+
+    @Test
+    void lengthAndBulkLimits() {
+        AdmissionPolicy policy = AdmissionPolicy.defaults().setMaxFileBytes(100).setBulkThreshold(3);
+        assertTrue(policy.admitsLength(100));
+        assertFalse(policy.admitsLength(101));
+        assertFalse(policy.isBulk(2));
+        assertTrue(policy.isBulk(3));
+        AdmissionPolicy all = AdmissionPolicy.admitAll();
+        assertTrue(all.admitsLength(Long.MAX_VALUE));
+        assertFalse(all.isBulk(Integer.MAX_VALUE));
+    }
+}
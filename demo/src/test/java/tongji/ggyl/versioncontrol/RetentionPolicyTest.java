@@ -0,0 +1,96 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 保留策略的测试：按年龄分层只留每个时间段最新的一个，字节数限制从最老的开始清理，每个文件最新的快照始终保留。
+ */
+class RetentionPolicyTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long NOW = 100 * DAY;
+
+    private static SnapshotMeta meta(long id, String path, long age, int size) {
+        return new SnapshotMeta(id, "s" + id, path, NOW - age, size);
+    }
+
+    @Test
+    void tiersKeepNewestPerInterval() {
+        RetentionPolicy policy = RetentionPolicy.parseTiers("1h:0, 1d:1h, 2d:1d");
+        List<SnapshotMeta> snapshots = List.of(
+                meta(1, "/p/A.java", 10 * MINUTE, 10),
+                meta(2, "/p/A.java", 20 * MINUTE, 10),
+                // 同一小时内只留较新的一个
+                meta(3, "/p/A.java", 2 * HOUR + 10 * MINUTE, 10),
+                meta(4, "/p/A.java", 2 * HOUR + 20 * MINUTE, 10),
+                meta(5, "/p/A.java", 36 * HOUR, 10),
+                // 比最后一层更老
+                meta(6, "/p/A.java", 3 * DAY, 10),
+                // 文件只有一个快照，再老也保留
+                meta(7, "/p/B.java", 10 * DAY, 10));
+        assertEquals(Set.of(4L, 6L), policy.select(snapshots, NOW));
+    }
+
+    @Test
+    void fileByteCapDropsOldest() {
+        RetentionPolicy policy = RetentionPolicy.keepAll().setMaxBytesPerFile(250);
+        assertFalse(policy.isKeepAll());
+        List<SnapshotMeta> snapshots = List.of(
+                meta(1, "/p/A.java", 4 * HOUR, 100),
+                meta(2, "/p/A.java", 3 * HOUR, 100),
+                meta(3, "/p/A.java", 2 * HOUR, 100),
+                meta(4, "/p/A.java", HOUR, 100),
+                meta(5, "/p/B.java", HOUR, 400));
+        assertEquals(Set.of(1L, 2L), policy.select(snapshots, NOW));
+    }
+
+    @Test
+    void projectByteCapDropsOldestAcrossFiles() {
+        RetentionPolicy policy = RetentionPolicy.keepAll().setMaxBytesPerProject(300);
+        List<SnapshotMeta> snapshots = List.of(
+                meta(1, "/p/C.java", 5 * HOUR, 100),
+                meta(2, "/p/C.java", 4 * HOUR, 100),
+                meta(3, "/p/C.java", 3 * HOUR, 100),
+                meta(4, "/p/D.java", 2 * HOUR, 100),
+                meta(5, "/p/D.java", HOUR, 100));
+        assertEquals(Set.of(1L, 2L), policy.select(snapshots, NOW));
+    }
+
+    @Test
+    void keepAllSelectsNothing() {
+        RetentionPolicy policy = RetentionPolicy.keepAll();
+        assertTrue(policy.isKeepAll());
+        assertTrue(policy.select(List.of(meta(1, "/p/A.java", 300 * DAY, 10), meta(2, "/p/A.java", 0, 10)), NOW).isEmpty());
+    }
+
+    @Test
+    void parseDurationUnits() {
+        assertEquals(42, RetentionPolicy.parseDuration("42"));
+        assertEquals(250, RetentionPolicy.parseDuration("250ms"));
+        assertEquals(5000, RetentionPolicy.parseDuration("5s"));
+        assertEquals(2 * MINUTE, RetentionPolicy.parseDuration("2m"));
+        assertEquals(3 * HOUR, RetentionPolicy.parseDuration("3h"));
+        assertEquals(7 * DAY, RetentionPolicy.parseDuration(" 7 D "));
+        assertThrows(IllegalArgumentException.class, () -> RetentionPolicy.parseDuration("-1h"));
+        assertThrows(IllegalArgumentException.class, () -> RetentionPolicy.parseDuration("1w"));
+    }
+
+    @Test
+    void parseTiersSortsByAge() {
+        RetentionPolicy policy = RetentionPolicy.parseTiers("30d:1d,1h:0,,1d:1h");
+        List<RetentionPolicy.Tier> tiers = policy.getTiers();
+        assertEquals(3, tiers.size());
+        assertEquals(HOUR, tiers.get(0).getMaxAgeMillis());
+        assertEquals(0, tiers.get(0).getIntervalMillis());
+        assertEquals(30 * DAY, tiers.get(2).getMaxAgeMillis());
+        assertEquals(DAY, tiers.get(2).getIntervalMillis());
+        assertThrows(IllegalArgumentException.class, () -> RetentionPolicy.parseTiers("1h"));
+        assertThrows(IllegalArgumentException.class, () -> RetentionPolicy.parseTiers("0h:0"));
+    }
+}
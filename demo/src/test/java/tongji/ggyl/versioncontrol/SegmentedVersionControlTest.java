@@ -0,0 +1,374 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tongji.ggyl.eventlistening.Snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 段文件存储的往返测试：重新打开后重放的内容与写入时一致，包括段尾不完整、压缩中断留下重复 id，以及墓碑和恢复。
+ */
+class SegmentedVersionControlTest {
+    @TempDir
+    Path dir;
+
+    private final List<SegmentedVersionControl> opened = new ArrayList<>();
+
+    @AfterEach
+    void shutdownStores() {
+        for (SegmentedVersionControl store : opened) {
+            store.shutdown();
+        }
+    }
+
+    // 关闭后台整理，测试中显式压缩；段文件较小，少量快照就会分成多个段
+    private static SnapshotStoreOptions options() {
+        return new SnapshotStoreOptions().setMaxSegmentBytes(4096).setCompactionIntervalMinutes(0);
+    }
+
+    private SegmentedVersionControl open(SnapshotStoreOptions options) {
+        SegmentedVersionControl store = new SegmentedVersionControl(dir, options);
+        opened.add(store);
+        return store;
+    }
+
+    private void close(SegmentedVersionControl store) {
+        opened.remove(store);
+        store.shutdown();
+    }
+
+    private static void save(SegmentedVersionControl store, String path, String content, long timestamp) {
+        store.saveVersionSnapshot(new Snapshot("s" + timestamp, path, content.getBytes(StandardCharsets.UTF_8), timestamp));
+        assertTrue(store.getWriter().flush(5, TimeUnit.SECONDS));
+    }
+
+    private static void flush(SegmentedVersionControl store) {
+        assertTrue(store.getWriter().flush(5, TimeUnit.SECONDS));
+    }
+
+    // 快照 id -> 路径和内容
+    private static Map<Long, String> contents(VersionControl store) {
+        Map<Long, String> contents = new TreeMap<>();
+        for (SnapshotMeta meta : store.getAllSnapshotMetas()) {
+            contents.put(meta.getId(), meta.getFilePath() + ":" + new String(store.loadContent(meta.getId()), StandardCharsets.UTF_8));
+        }
+        return contents;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir.resolve(SegmentedVersionControl.SEGMENT_DIR))) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SnapshotSegment.SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void reopenReplaysSnapshots() {
+        SegmentedVersionControl store = open(options());
+        for (int i = 0; i < 50; i++) {
+            save(store, "/p/F" + (i % 3) + ".java", "class F {\n" + "  int x;\n".repeat(20) + "} // v" + i, 1000 + i);
+        }
+        Map<Long, String> expected = contents(store);
+        assertEquals(50, expected.size());
+        close(store);
+
+        SegmentedVersionControl reopened = open(options());
+        assertEquals(expected, contents(reopened));
+        assertEquals(Arrays.asList("/p/F0.java", "/p/F1.java", "/p/F2.java"), reopened.getTrackedFilePaths());
+    }
+
+    @Test
+    void reopenTruncatesTornTail() throws IOException {
+        SegmentedVersionControl store = open(options());
+        save(store, "/p/A.java", "one", 1);
+        save(store, "/p/A.java", "two", 2);
+        Map<Long, String> expected = contents(store);
+        close(store);
+
+        // 模拟写到一半时崩溃：最后一个段的末尾是一条声明了 100 字节、只写了 10 字节的记录
+        Path last = segmentFiles().get(segmentFiles().size() - 1);
+        long validSize = Files.size(last);
+        ByteBuffer torn = ByteBuffer.allocate(SnapshotSegment.RECORD_HEADER_SIZE + 10);
+        torn.putInt(100).putInt(0x12345678).put(new byte[10]).flip();
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(torn);
+        }
+
+        SegmentedVersionControl reopened = open(options());
+        assertEquals(expected, contents(reopened));
+        assertEquals(validSize, Files.size(last));
+
+        // 截断后继续写入，再次打开时新旧快照都在
+        save(reopened, "/p/A.java", "three", 3);
+        Map<Long, String> grown = contents(reopened);
+        assertEquals(3, grown.size());
+        close(reopened);
+        assertEquals(grown, contents(open(options())));
+    }
+
+    @Test
+    void reopenAfterInterruptedCompactionSkipsDuplicateIds() throws IOException {
+        SegmentedVersionControl store = open(options());
+        for (int i = 0; i < 200; i++) {
+            save(store, "/p/G" + (i % 2) + ".java", "g\n".repeat(30) + i, 1000 + i);
+        }
+        List<Long> drop = store.getAllSnapshotMetas().stream()
+                .filter(meta -> meta.getRealTimestamp() % 5 != 0)
+                .map(SnapshotMeta::getId)
+                .collect(Collectors.toList());
+        store.deleteSnapshots(drop);
+        flush(store);
+
+        Path backup = Files.createDirectory(dir.resolve("backup"));
+        for (Path file : segmentFiles()) {
+            Files.copy(file, backup.resolve(file.getFileName()));
+        }
+        assertTrue(store.compactSegments());
+        Map<Long, String> expected = contents(store);
+        assertEquals(40, expected.size());
+        close(store);
+
+        // 模拟换上新段之后、删除旧段之前崩溃：旧段回到目录中，与新段中的记录 id 重复
+        Path segmentDir = dir.resolve(SegmentedVersionControl.SEGMENT_DIR);
+        int restored = 0;
+        try (Stream<Path> files = Files.list(backup)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Path target = segmentDir.resolve(file.getFileName());
+                if (!Files.exists(target)) {
+                    Files.copy(file, target);
+                    restored++;
+                }
+            }
+        }
+        assertTrue(restored > 0);
+        Files.deleteIfExists(segmentDir.resolve(SegmentedVersionControl.OBSOLETE_FILE));
+
+        SegmentedVersionControl reopened = open(options());
+        assertEquals(expected, contents(reopened));
+        assertEquals(expected.size(), reopened.countSnapshots(null));
+    }
+
+    @Test
+    void tombstoneHidesHistoryUntilRestored() {
+        SegmentedVersionControl store = open(options());
+        for (int i = 0; i < 5; i++) {
+            save(store, "/p/a/X.java", "x" + i, 10 + i);
+            save(store, "/p/a/b/Y.java", "y" + i, 20 + i);
+            save(store, "/p/ab/Z.java", "z" + i, 30 + i);
+        }
+        Map<Long, String> expected = contents(store);
+
+        // 删除目录只隐藏其下的历史，名字以 /p/a 开头的兄弟目录不受影响
+        store.deleteSnapshotsForDirectory("/p/a");
+        flush(store);
+        assertEquals(Collections.singletonList("/p/ab/Z.java"), store.getTrackedFilePaths());
+        assertEquals(Arrays.asList("/p/a/X.java", "/p/a/b/Y.java"), store.getDeletedFilePaths());
+        close(store);
+
+        SegmentedVersionControl reopened = open(options());
+        assertEquals(5, reopened.countSnapshots(null));
+        assertEquals(Arrays.asList("/p/a/X.java", "/p/a/b/Y.java"), reopened.getDeletedFilePaths());
+
+        reopened.restoreDeletedSnapshots("/p/a", true);
+        flush(reopened);
+        assertEquals(expected, contents(reopened));
+        assertTrue(reopened.getDeletedFilePaths().isEmpty());
+        close(reopened);
+
+        assertEquals(expected, contents(open(options())));
+    }
+
+    @Test
+    void tombstoneSurvivesCompactionAndExpiresAfterGrace() throws IOException {
+        SegmentedVersionControl store = open(options());
+        for (int i = 0; i < 100; i++) {
+            save(store, "/p/junk.txt", "junk junk junk junk " + i, i);
+        }
+        save(store, "/p/Kept.java", "kept", 100);
+        save(store, "/p/Gone.java", "gone", 101);
+        store.deleteSnapshotsForFile("/p/Gone.java");
+        store.deleteSnapshots(store.getSnapshotMetasForFile("/p/junk.txt").stream()
+                .map(SnapshotMeta::getId)
+                .collect(Collectors.toList()));
+        flush(store);
+        assertTrue(store.compactSegments());
+        assertEquals(Collections.singletonList("/p/Gone.java"), store.getDeletedFilePaths());
+
+        store.restoreDeletedSnapshots("/p/Gone.java", false);
+        flush(store);
+        SnapshotMeta restored = store.getSnapshotMetas("/p/Gone.java", 0, 1).get(0);
+        assertEquals("gone", new String(store.loadContent(restored.getId()), StandardCharsets.UTF_8));
+        store.deleteSnapshotsForFile("/p/Gone.java");
+        flush(store);
+        close(store);
+
+        // 宽限期为 0 时打开即清除墓碑，历史不能再恢复
+        SegmentedVersionControl swept = open(options().setDeleteGraceMinutes(0));
+        flush(swept);
+        assertTrue(swept.getDeletedFilePaths().isEmpty());
+        swept.restoreDeletedSnapshots("/p/Gone.java", false);
+        flush(swept);
+        assertEquals(0, swept.countSnapshots("/p/Gone.java"));
+        assertEquals(1, swept.countSnapshots("/p/Kept.java"));
+    }
+
+    // 删除后 timeline 延迟清除：恢复、改名合并和压缩之后，全局列表与各文件的历史一致且没有重复
+    @Test
+    void timelineMatchesHistoriesAfterDeletes() throws IOException {
+        SegmentedVersionControl store = open(options());
+        for (int i = 0; i < 20; i++) {
+            save(store, "/p/F" + (i % 5) + ".java", "content " + i, i);
+        }
+        for (int i = 20; i < 120; i++) {
+            save(store, "/p/junk.txt", "junk junk junk junk " + i, i);
+        }
+        store.deleteSnapshots(store.getSnapshotMetasForFile("/p/junk.txt").stream()
+                .map(SnapshotMeta::getId)
+                .collect(Collectors.toList()));
+        store.deleteSnapshotsForFile("/p/F0.java");
+        store.deleteSnapshotsForFile("/p/F1.java");
+        store.deleteSnapshots(Collections.singletonList(store.getSnapshotMetas("/p/F2.java", 0, 1).get(0).getId()));
+        flush(store);
+        assertEquals(11, store.countSnapshots(null));
+
+        // 移动到刚删除的文件的位置：墓碑中的历史先恢复，再并入移过来的历史
+        store.changeSnapshotsPathForFile("/p/F3.java", "/p/F0.java");
+        store.deleteSnapshotsForFile("/p/F4.java");
+        flush(store);
+        assertTrue(store.compactSegments());
+        assertEquals(11, store.countSnapshots(null));
+        assertEquals(8, store.countSnapshots("/p/F0.java"));
+
+        List<SnapshotMeta> all = store.getSnapshotMetas(null, 0, 100);
+        assertEquals(11, all.stream().map(SnapshotMeta::getId).distinct().count());
+        assertEquals(8, all.stream().filter(meta -> meta.getFilePath().equals("/p/F0.java")).count());
+        assertEquals(3, all.stream().filter(meta -> meta.getFilePath().equals("/p/F2.java")).count());
+        Map<Long, String> expected = contents(store);
+        close(store);
+
+        assertEquals(expected, contents(open(options())));
+    }
+
+    // 内容相同的快照共用一个 blob：不同文件之间和同一文件改回旧内容时都只追加元数据
+    @Test
+    void identicalContentSharesBlob() {
+        SegmentedVersionControl store = open(options());
+        save(store, "/p/A.java", "class A {}", 1);
+        save(store, "/p/Copy.java", "class A {}", 2);
+        save(store, "/p/A.java", "class A { int x; }", 3);
+        save(store, "/p/A.java", "class A {}", 4);
+        assertEquals(2, store.getDedupHits());
+        assertTrue(store.getDedupRatio() > 1.0);
+
+        List<SnapshotMeta> history = store.getSnapshotMetas("/p/A.java", 0, 10);
+        SnapshotMeta reverted = history.get(0);
+        SnapshotMeta first = history.get(2);
+        SnapshotMeta copy = store.getSnapshotMetas("/p/Copy.java", 0, 1).get(0);
+        assertEquals(Collections.emptyList(), store.getStoredChanges(first.getId(), reverted.getId()));
+        assertEquals(Collections.emptyList(), store.getStoredChanges(first.getId(), copy.getId()));
+        Map<Long, String> expected = contents(store);
+        close(store);
+
+        // 重新打开后共用的 blob 仍能读出，新的相同内容继续命中
+        SegmentedVersionControl reopened = open(options());
+        assertEquals(expected, contents(reopened));
+        save(reopened, "/p/B.java", "class A { int x; }", 5);
+        assertEquals(1, reopened.getDedupHits());
+    }
+
+    // 改名和移动只追加一条记录：历史随文件换到新路径，重新打开后仍在新路径下
+    @Test
+    void renameRemapsHistory() {
+        SegmentedVersionControl store = open(options());
+        save(store, "/p/a/Old.java", "v1", 1);
+        save(store, "/p/a/Old.java", "v2", 2);
+        save(store, "/p/a/b/Deep.java", "deep", 3);
+        save(store, "/p/Other.java", "other", 4);
+        store.changeSnapshotsPathForFile("/p/a/Old.java", "/p/a/New.java");
+        store.changeSnapshotsPathForDirectory("/p/a", "/p/moved");
+        flush(store);
+        assertEquals(0, store.countSnapshots("/p/a/Old.java"));
+        assertEquals(0, store.countSnapshots("/p/a/New.java"));
+        assertEquals(2, store.countSnapshots("/p/moved/New.java"));
+        assertEquals(1, store.countSnapshots("/p/moved/b/Deep.java"));
+
+        // 移动到已有历史的路径时两份历史按时间合并
+        store.changeSnapshotsPathForFile("/p/Other.java", "/p/moved/New.java");
+        save(store, "/p/moved/New.java", "v3", 5);
+        List<String> merged = store.getSnapshotMetas("/p/moved/New.java", 0, 10).stream()
+                .map(meta -> new String(store.loadContent(meta.getId()), StandardCharsets.UTF_8))
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("v3", "other", "v2", "v1"), merged);
+        assertEquals(5, store.countSnapshots(null));
+        Map<Long, String> expected = contents(store);
+        close(store);
+
+        SegmentedVersionControl reopened = open(options());
+        assertEquals(expected, contents(reopened));
+        assertEquals(4, reopened.countSnapshots("/p/moved/New.java"));
+        assertEquals(0, reopened.countSnapshots("/p/Other.java"));
+    }
+
+    // 宽限期内清理不动墓碑；同一路径又保存快照时文件回来了，墓碑中的历史随之恢复
+    @Test
+    void saveWithinGraceRestoresHistory() {
+        SegmentedVersionControl store = open(options());
+        save(store, "/p/A.java", "old", 1);
+        save(store, "/p/B.java", "b", 2);
+        store.deleteSnapshotsForFile("/p/A.java");
+        flush(store);
+        assertEquals(0, store.sweepDeletedSnapshots());
+        assertEquals(Collections.singletonList("/p/A.java"), store.getDeletedFilePaths());
+        assertEquals(1, store.countSnapshots(null));
+
+        save(store, "/p/A.java", "new", 3);
+        assertTrue(store.getDeletedFilePaths().isEmpty());
+        assertEquals(2, store.countSnapshots("/p/A.java"));
+        assertEquals(3, store.countSnapshots(null));
+        List<SnapshotMeta> all = store.getSnapshotMetas(null, 0, 10);
+        assertEquals(Arrays.asList(3L, 2L, 1L), all.stream().map(SnapshotMeta::getRealTimestamp).collect(Collectors.toList()));
+        SnapshotMeta newest = store.getSnapshotMetas("/p/A.java", 0, 1).get(0);
+        assertEquals("new", new String(store.loadContent(newest.getId()), StandardCharsets.UTF_8));
+        Map<Long, String> expected = contents(store);
+        close(store);
+
+        assertEquals(expected, contents(open(options())));
+    }
+
+    // 没有宽限期时删除立即清除，之后无法恢复
+    @Test
+    void deleteWithoutGraceIsImmediate() {
+        SegmentedVersionControl store = open(options().setDeleteGraceMinutes(0));
+        save(store, "/p/a/X.java", "x", 1);
+        save(store, "/p/a/Y.java", "y", 2);
+        store.deleteSnapshotsForDirectory("/p/a");
+        flush(store);
+        assertTrue(store.getDeletedFilePaths().isEmpty());
+        store.restoreDeletedSnapshots("/p/a", true);
+        flush(store);
+        assertEquals(0, store.countSnapshots(null));
+        close(store);
+
+        assertEquals(0, open(options()).countSnapshots(null));
+    }
+}
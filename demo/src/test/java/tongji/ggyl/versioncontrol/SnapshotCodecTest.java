@@ -0,0 +1,110 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tongji.ggyl.eventlistening.Snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 压缩编码的测试：编码后再解码与原文逐字节相同，损坏或长度不符时抛出 IOException；换了编码重新打开存储后旧 blob 仍能读出。
+ */
+class SnapshotCodecTest {
+    @TempDir
+    Path dir;
+
+    private final List<SegmentedVersionControl> opened = new ArrayList<>();
+
+    @AfterEach
+    void shutdownStores() {
+        for (SegmentedVersionControl store : opened) {
+            store.shutdown();
+        }
+    }
+
+    private static byte[] source() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("    private int 字段").append(i).append(" = ").append(i % 17).append(";\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void assertRoundTrip(SnapshotCodec codec, byte[] raw) throws IOException {
+        byte[] encoded = codec.encode(raw);
+        // 解码只读 ByteBuffer 剩余的部分，前面可能还有记录头
+        ByteBuffer buffer = ByteBuffer.allocate(3 + encoded.length);
+        buffer.put(new byte[3]).put(encoded).flip().position(3);
+        assertArrayEquals(raw, codec.decode(buffer, raw.length));
+    }
+
+    @Test
+    void encodeThenDecodeRestoresContent() throws IOException {
+        for (SnapshotCodec codec : List.of(SnapshotCodec.identity(), SnapshotCodec.deflate(1), SnapshotCodec.deflate(9))) {
+            assertRoundTrip(codec, new byte[0]);
+            assertRoundTrip(codec, source());
+            // 不可压缩的内容比原文略大，输出缓冲区要能扩大
+            assertRoundTrip(codec, random(100_000));
+        }
+        assertTrue(SnapshotCodec.deflate(6).encode(source()).length < source().length / 4);
+    }
+
+    @Test
+    void corruptOrShortInputFails() {
+        SnapshotCodec deflate = SnapshotCodec.deflate(6);
+        byte[] raw = source();
+        byte[] encoded = deflate.encode(raw);
+        assertThrows(IOException.class, () -> deflate.decode(ByteBuffer.wrap(encoded, 0, encoded.length / 2), raw.length));
+        assertThrows(IOException.class, () -> deflate.decode(ByteBuffer.wrap(encoded), raw.length + 1));
+        assertThrows(IOException.class, () -> deflate.decode(ByteBuffer.wrap(random(64)), raw.length));
+        assertThrows(IOException.class, () -> SnapshotCodec.identity().decode(ByteBuffer.wrap(raw), raw.length - 1));
+    }
+
+    @Test
+    void parseSpec() {
+        assertEquals(SnapshotCodec.IDENTITY_ID, SnapshotCodec.parse(" Identity ").getId());
+        assertEquals("deflate", SnapshotCodec.parse("deflate").getName());
+        assertEquals("deflate:9", SnapshotCodec.parse("DEFLATE:9").getName());
+        assertThrows(IllegalArgumentException.class, () -> SnapshotCodec.parse("zstd"));
+        assertThrows(IllegalArgumentException.class, () -> SnapshotCodec.parse("deflate:10"));
+        assertThrows(IllegalArgumentException.class, () -> SnapshotCodec.parse("deflate:x"));
+    }
+
+    // 每条 blob 记录自带编码 id，换成另一种编码打开后旧内容照常解码
+    @Test
+    void storeReadsBlobsWrittenWithOtherCodec() {
+        SnapshotStoreOptions options = new SnapshotStoreOptions().setCompactionIntervalMinutes(0);
+        SegmentedVersionControl store = new SegmentedVersionControl(dir, options.setCodec(SnapshotCodec.deflate(9)));
+        opened.add(store);
+        store.saveVersionSnapshot(new Snapshot("s1", "/p/A.java", source(), 1));
+        assertTrue(store.getWriter().flush(5, TimeUnit.SECONDS));
+        assertTrue(store.getSegmentBytes() < source().length);
+        opened.remove(store);
+        store.shutdown();
+
+        SegmentedVersionControl reopened = new SegmentedVersionControl(dir, options.setCodec(SnapshotCodec.identity()));
+        opened.add(reopened);
+        reopened.saveVersionSnapshot(new Snapshot("s2", "/p/B.java", random(1000), 2));
+        assertTrue(reopened.getWriter().flush(5, TimeUnit.SECONDS));
+        List<SnapshotMeta> metas = reopened.getSnapshotMetas(null, 0, 10);
+        assertEquals(2, metas.size());
+        assertArrayEquals(random(1000), reopened.loadContent(metas.get(0).getId()));
+        assertArrayEquals(source(), reopened.loadContent(metas.get(1).getId()));
+    }
+}
@@ -0,0 +1,105 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tongji.ggyl.eventlistening.Snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 行级补丁的测试：补丁应用后与新版本逐字节相同，不是合法 UTF-8 时不生成补丁，以及存储中每隔 keyframeInterval 个版本保存一次完整内容。
+ */
+class SnapshotDeltaTest {
+    @TempDir
+    Path dir;
+
+    private SegmentedVersionControl store;
+
+    @AfterEach
+    void shutdownStore() {
+        if (store != null) {
+            store.shutdown();
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 足够长的内容，只改一行时补丁明显比完整内容小
+    private static String source(int version) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("    int field").append(i).append(" = ").append(i == 25 ? version : i).append(";\n");
+        }
+        return text.toString();
+    }
+
+    private static void assertRoundTrip(String base, String target) throws IOException {
+        byte[] patch = SnapshotDelta.encode(utf8(base), utf8(target));
+        assertNotNull(patch);
+        assertArrayEquals(utf8(target), SnapshotDelta.apply(utf8(base), ByteBuffer.wrap(patch)));
+    }
+
+    @Test
+    void applyRestoresTarget() throws IOException {
+        assertRoundTrip(source(1), source(2));
+        // 增删行、末尾换行的变化和多字节字符都要逐字节还原
+        assertRoundTrip(source(1), "// 头部注释\n" + source(1).replace("field10", "字段10") + "}\n\n");
+        assertRoundTrip(source(1), source(1).substring(0, source(1).length() - 1));
+    }
+
+    @Test
+    void changesListsChangedLines() throws IOException {
+        byte[] patch = SnapshotDelta.encode(utf8(source(1)), utf8(source(2)));
+        List<LineChange> changes = SnapshotDelta.changes(ByteBuffer.wrap(patch));
+        assertEquals(1, changes.size());
+        assertEquals(25, changes.get(0).getPosition());
+        assertEquals(1, changes.get(0).getOldCount());
+        assertEquals(1, changes.get(0).getNewCount());
+    }
+
+    @Test
+    void invalidUtf8HasNoPatch() {
+        byte[] binary = {(byte) 0xC3, (byte) 0x28, 'a', '\n'};
+        assertNull(SnapshotDelta.encode(binary, utf8(source(1))));
+        assertNull(SnapshotDelta.encode(utf8(source(1)), binary));
+        assertThrows(IOException.class, () -> SnapshotDelta.apply(binary, ByteBuffer.wrap(new byte[4])));
+    }
+
+    @Test
+    void patchLargerThanTargetIsDropped() {
+        assertNull(SnapshotDelta.encode(utf8(source(1)), utf8("x")));
+    }
+
+    @Test
+    void storeWritesKeyframeEveryInterval() {
+        store = new SegmentedVersionControl(dir, new SnapshotStoreOptions()
+                .setKeyframeInterval(3)
+                .setCompactionIntervalMinutes(0));
+        for (int version = 0; version < 7; version++) {
+            store.saveVersionSnapshot(new Snapshot("s" + version, "/p/A.java", utf8(source(version)), version));
+            // 逐个等待写入，避免写队列把同一文件的连续保存合并
+            assertTrue(store.getWriter().flush(5, TimeUnit.SECONDS));
+        }
+
+        List<SnapshotMeta> metas = store.getSnapshotMetas("/p/A.java", 0, 10);
+        assertEquals(7, metas.size());
+        for (int i = 1; i < 7; i++) {
+            // 从旧到新第 i 个版本；第 0、3、6 个是关键帧，其余是相对上一版本的补丁
+            SnapshotMeta previous = metas.get(7 - i);
+            SnapshotMeta meta = metas.get(6 - i);
+            List<LineChange> changes = store.getStoredChanges(previous.getId(), meta.getId());
+            assertEquals(i % 3 != 0, changes != null);
+            assertArrayEquals(utf8(source(i)), store.loadContent(meta.getId()));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 段文件格式的往返测试：记录的长度和 CRC 框架、段尾不完整或损坏时的扫描，以及活动段变长后的读取。
+ */
+class SnapshotSegmentTest {
+    @TempDir
+    Path dir;
+
+    private static ByteBuffer body(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 扫描并收集所有记录体，返回最后一条完整记录之后的偏移
+    private static long scan(SnapshotSegment segment, List<String> bodies) throws IOException {
+        return segment.scan((offset, body) -> bodies.add(text(body)));
+    }
+
+    @Test
+    void framedRecordsRoundTrip() throws IOException {
+        SnapshotSegment segment = SnapshotSegment.create(dir, 1);
+        long first = segment.append(SnapshotSegment.frame(body("alpha")));
+        segment.append(SnapshotSegment.frame(body("beta")));
+        segment.commit(true);
+        segment.close();
+        assertEquals(SnapshotSegment.HEADER_SIZE, first);
+
+        SnapshotSegment reopened = SnapshotSegment.open(dir.resolve(SnapshotSegment.fileName(1)), 1, false);
+        List<String> bodies = new ArrayList<>();
+        assertEquals(reopened.size(), scan(reopened, bodies));
+        assertEquals(Arrays.asList("alpha", "beta"), bodies);
+        reopened.close();
+    }
+
+    @Test
+    void frameStoresLengthAndChecksum() {
+        ByteBuffer record = SnapshotSegment.frame(body("payload"));
+        assertEquals(SnapshotSegment.RECORD_HEADER_SIZE + 7, record.remaining());
+        assertEquals(7, record.getInt(0));
+        CRC32 crc = new CRC32();
+        crc.update("payload".getBytes(StandardCharsets.UTF_8));
+        assertEquals((int) crc.getValue(), record.getInt(4));
+    }
+
+    @Test
+    void scanStopsAtTruncatedTail() throws IOException {
+        SnapshotSegment segment = SnapshotSegment.create(dir, 1);
+        segment.append(SnapshotSegment.frame(body("complete")));
+        segment.commit(true);
+        long valid = segment.size();
+        segment.append(SnapshotSegment.frame(body("torn record")));
+        segment.commit(true);
+        segment.close();
+        // 模拟写到一半时崩溃：第二条记录只剩一部分
+        Path file = dir.resolve(SnapshotSegment.fileName(1));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(valid + SnapshotSegment.RECORD_HEADER_SIZE + 3);
+        }
+
+        SnapshotSegment reopened = SnapshotSegment.open(file, 1, true);
+        List<String> bodies = new ArrayList<>();
+        assertEquals(valid, scan(reopened, bodies));
+        assertEquals(Arrays.asList("complete"), bodies);
+
+        // 截断后继续追加，重新打开能读到所有完整记录
+        reopened.truncate(valid);
+        reopened.append(SnapshotSegment.frame(body("after")));
+        reopened.commit(true);
+        reopened.close();
+        SnapshotSegment again = SnapshotSegment.open(file, 1, false);
+        bodies.clear();
+        assertEquals(again.size(), scan(again, bodies));
+        assertEquals(Arrays.asList("complete", "after"), bodies);
+        again.close();
+    }
+
+    @Test
+    void scanStopsAtChecksumMismatch() throws IOException {
+        SnapshotSegment segment = SnapshotSegment.create(dir, 1);
+        segment.append(SnapshotSegment.frame(body("good")));
+        long second = segment.append(SnapshotSegment.frame(body("flipped")));
+        segment.append(SnapshotSegment.frame(body("unreachable")));
+        segment.commit(true);
+        segment.close();
+        // 改掉第二条记录体的一个字节，长度不变但 CRC 对不上
+        Path file = dir.resolve(SnapshotSegment.fileName(1));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'F'}), second + SnapshotSegment.RECORD_HEADER_SIZE);
+        }
+
+        SnapshotSegment reopened = SnapshotSegment.open(file, 1, false);
+        List<String> bodies = new ArrayList<>();
+        assertEquals(second, scan(reopened, bodies));
+        assertEquals(Arrays.asList("good"), bodies);
+        reopened.close();
+    }
+
+    @Test
+    void readsRecordsCommittedAfterMapping() throws IOException {
+        SnapshotSegment segment = SnapshotSegment.create(dir, 1);
+        long first = segment.append(SnapshotSegment.frame(body("first")));
+        segment.commit(false);
+        assertEquals("first", text(segment.view(first + SnapshotSegment.RECORD_HEADER_SIZE, 5)));
+
+        // 映射之后提交的记录：落后不多时从文件读取，超过 REMAP_LAG 后重新映射
+        long second = segment.append(SnapshotSegment.frame(body("second")));
+        segment.commit(false);
+        assertEquals("second", text(segment.view(second + SnapshotSegment.RECORD_HEADER_SIZE, 6)));
+
+        byte[] large = new byte[(int) SnapshotSegment.REMAP_LAG + 1];
+        Arrays.fill(large, (byte) 'x');
+        large[large.length - 1] = 'y';
+        long third = segment.append(SnapshotSegment.frame(ByteBuffer.wrap(large)));
+        segment.commit(false);
+        ByteBuffer view = segment.view(third + SnapshotSegment.RECORD_HEADER_SIZE, large.length);
+        assertEquals(large.length, view.remaining());
+        assertEquals('y', view.get(large.length - 1));
+
+        // 还没提交的记录返回暂存区的副本
+        long staged = segment.append(SnapshotSegment.frame(body("staged")));
+        assertEquals("staged", text(segment.view(staged + SnapshotSegment.RECORD_HEADER_SIZE, 6)));
+        assertEquals("first", text(segment.view(first + SnapshotSegment.RECORD_HEADER_SIZE, 5)));
+        segment.close();
+    }
+}
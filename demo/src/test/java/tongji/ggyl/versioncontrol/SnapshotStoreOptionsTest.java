@@ -0,0 +1,61 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * store.properties 的读取测试：每一项单独解析，格式错误的项保持默认值，不影响之后的项。
+ */
+class SnapshotStoreOptionsTest {
+    @TempDir
+    Path dir;
+
+    private SnapshotStoreOptions load(String... lines) throws IOException {
+        Files.write(dir.resolve(SnapshotStoreOptions.FILE_NAME), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return SnapshotStoreOptions.load(dir);
+    }
+
+    @Test
+    void missingFileUsesDefaults() {
+        SnapshotStoreOptions options = SnapshotStoreOptions.load(dir);
+        assertEquals(new SnapshotStoreOptions().getMaxSegmentBytes(), options.getMaxSegmentBytes());
+        assertEquals(SnapshotCodec.DEFLATE_ID, options.getCodec().getId());
+    }
+
+    @Test
+    void malformedValueKeepsLaterKeys() throws IOException {
+        SnapshotStoreOptions options = load(
+                "segment.maxBytes=1x",
+                "delta.keyframeInterval=7",
+                "writer.overflowPolicy=sideways",
+                "compaction.intervalMinutes=0",
+                "codec=identity",
+                "retention.maxBytesPerFile=4096",
+                "admission.excludeGlobs=**/build/**, **/*.log",
+                "admission.bulkThreshold=5");
+        assertEquals(new SnapshotStoreOptions().getMaxSegmentBytes(), options.getMaxSegmentBytes());
+        assertEquals(7, options.getKeyframeInterval());
+        assertEquals(SnapshotWriter.OverflowPolicy.BLOCK, options.getOverflowPolicy());
+        assertEquals(0, options.getCompactionIntervalMinutes());
+        assertEquals(SnapshotCodec.IDENTITY_ID, options.getCodec().getId());
+        assertEquals(4096, options.getRetentionPolicy().getMaxBytesPerFile());
+        assertEquals(List.of("**/build/**", "**/*.log"), options.getAdmissionPolicy().getExcludeGlobs());
+        assertEquals(5, options.getAdmissionPolicy().getBulkThreshold());
+    }
+
+    @Test
+    void outOfRangeValueIsRejected() throws IOException {
+        SnapshotStoreOptions options = load("admission.maxFileBytes=-1", "admission.skipBinary=false");
+        assertEquals(AdmissionPolicy.defaults().getMaxFileBytes(), options.getAdmissionPolicy().getMaxFileBytes());
+        assertFalse(options.getAdmissionPolicy().isSkipBinary());
+    }
+}
@@ -0,0 +1,154 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SnapshotWriter 的测试：执行线程由测试手动驱动，先把任务排进队列，再观察合并、队列满时的各种处理方式和执行顺序。
+ */
+class SnapshotWriterTest {
+    private final Queue<Runnable> executor = new ConcurrentLinkedQueue<>();
+    private final List<String> written = new CopyOnWriteArrayList<>();
+
+    private SnapshotWriter writer(int capacity, SnapshotWriter.OverflowPolicy policy) {
+        SnapshotStoreOptions options = new SnapshotStoreOptions()
+                .setWriteQueueCapacity(capacity)
+                .setOverflowPolicy(policy)
+                .setCommitWindowMillis(0);
+        return new SnapshotWriter("test", executor::add, options, () -> { });
+    }
+
+    // 每次 commit 在 written 中记一个 "|"，用来看出批次的边界
+    private SnapshotWriter batchingWriter(int maxBatch) {
+        SnapshotStoreOptions options = new SnapshotStoreOptions()
+                .setCommitWindowMillis(0)
+                .setCommitMaxBatch(maxBatch);
+        return new SnapshotWriter("test", executor::add, options, () -> written.add("|"));
+    }
+
+    private void save(SnapshotWriter writer, String path, String version) {
+        writer.save(path, () -> written.add(path + version));
+    }
+
+    // 在当前线程执行所有已提交给执行线程的 drain
+    private void drain() {
+        Runnable task;
+        while ((task = executor.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    void queuedSaveIsReplacedByNewerSave() {
+        SnapshotWriter writer = writer(16, SnapshotWriter.OverflowPolicy.BLOCK);
+        save(writer, "A", "1");
+        save(writer, "B", "1");
+        save(writer, "A", "2");
+        assertEquals(2, writer.getQueueDepth());
+        assertEquals(1, writer.getCoalescedCount());
+
+        // 删除、改名等操作截断合并：之后的保存不能越过它替换之前的保存
+        writer.execute(() -> written.add("op"));
+        save(writer, "A", "3");
+        drain();
+        assertEquals(List.of("A2", "B1", "op", "A3"), written);
+        assertEquals(4, writer.getCompletedCount());
+        assertTrue(writer.flush(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dropNewestRejectsSaveWhenFull() {
+        SnapshotWriter writer = writer(2, SnapshotWriter.OverflowPolicy.DROP_NEWEST);
+        save(writer, "A", "1");
+        save(writer, "B", "1");
+        save(writer, "C", "1");
+        // 队列满时同一文件的保存仍然可以合并
+        save(writer, "A", "2");
+        drain();
+        assertEquals(List.of("A2", "B1"), written);
+        assertEquals(1, writer.getDroppedCount());
+    }
+
+    @Test
+    void dropOldestEvictsEarliestSave() {
+        SnapshotWriter writer = writer(2, SnapshotWriter.OverflowPolicy.DROP_OLDEST);
+        writer.execute(() -> written.add("op"));
+        save(writer, "A", "1");
+        save(writer, "B", "1");
+        save(writer, "C", "1");
+        drain();
+        // 不可丢弃的操作保留，丢掉的是最早的保存
+        assertEquals(List.of("op", "B1", "C1"), written);
+        assertEquals(1, writer.getDroppedCount());
+    }
+
+    @Test
+    void callerRunsHeadOfQueue() {
+        SnapshotWriter writer = writer(2, SnapshotWriter.OverflowPolicy.CALLER_RUNS);
+        save(writer, "A", "1");
+        save(writer, "B", "1");
+        save(writer, "C", "1");
+        // 提交方执行了队首的 A，顺序不变
+        assertEquals(List.of("A1"), written);
+        drain();
+        assertEquals(List.of("A1", "B1", "C1"), written);
+        assertEquals(0, writer.getDroppedCount());
+    }
+
+    @Test
+    void blockWaitsForFreeSlot() throws InterruptedException {
+        SnapshotWriter writer = writer(2, SnapshotWriter.OverflowPolicy.BLOCK);
+        save(writer, "A", "1");
+        save(writer, "B", "1");
+        Thread submitter = new Thread(() -> save(writer, "C", "1"));
+        submitter.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (submitter.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, submitter.getState());
+        assertTrue(written.isEmpty());
+
+        drain();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        drain();
+        assertEquals(List.of("A1", "B1", "C1"), written);
+        assertEquals(0, writer.getDroppedCount());
+    }
+
+    @Test
+    void commitsOncePerBatch() {
+        SnapshotWriter writer = batchingWriter(3);
+        for (String path : List.of("A", "B", "C", "D", "E", "F", "G")) {
+            save(writer, path, "1");
+        }
+        writer.execute(() -> written.add("op"));
+        drain();
+        assertEquals(List.of("A1", "B1", "C1", "|", "D1", "E1", "F1", "|", "G1", "op", "|"), written);
+        assertEquals(3, writer.getBatchCount());
+        assertEquals(8, writer.getCompletedCount());
+    }
+
+    @Test
+    void flushCommitsPartialBatch() throws InterruptedException {
+        // 提交窗口很长，只有 flush 能让执行线程提前提交未满的一批
+        SnapshotStoreOptions options = new SnapshotStoreOptions()
+                .setCommitWindowMillis(60_000)
+                .setCommitMaxBatch(100);
+        SnapshotWriter writer = new SnapshotWriter("test", task -> new Thread(task).start(), options, () -> written.add("|"));
+        save(writer, "A", "1");
+        save(writer, "B", "1");
+        assertTrue(writer.flush(5, TimeUnit.SECONDS));
+        assertEquals("|", written.get(written.size() - 1));
+        assertEquals(2, writer.getCompletedCount());
+        assertTrue(writer.getBatchCount() <= 2);
+    }
+}
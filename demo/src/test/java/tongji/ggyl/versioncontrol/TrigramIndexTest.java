@@ -0,0 +1,122 @@
+package tongji.ggyl.versioncontrol;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tongji.ggyl.eventlistening.Snapshot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 三元组索引和全文搜索的测试：沿基准链推出的候选与内容一致，ASCII 字母不区分大小写，保存后重新打开结果不变；
+ * 存储的搜索在不区分大小写时命中折叠后的文本，区分大小写时只命中原样的文本。
+ */
+class TrigramIndexTest {
+    @TempDir
+    Path dir;
+
+    private SegmentedVersionControl store;
+
+    @AfterEach
+    void shutdownStore() {
+        if (store != null) {
+            store.shutdown();
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 1 -> 2 -> 3 是同一文件的三个版本，4 是另一个文件
+    private static TrigramIndex build(Path baseDir) {
+        TrigramIndex index = TrigramIndex.open(baseDir);
+        index.add(1, -1, utf8("hello world"), null);
+        index.add(2, 1, utf8("hello there"), null);
+        index.add(3, 2, utf8("goodbye there"), null);
+        index.add(4, -1, utf8("HELLO"), null);
+        return index;
+    }
+
+    private static void assertCandidates(TrigramIndex index, String text, long... expected) {
+        LongPredicate candidates = index.candidates(text);
+        List<Long> matched = Arrays.stream(new long[]{1, 2, 3, 4}).filter(candidates::test).boxed().collect(Collectors.toList());
+        assertEquals(Arrays.stream(expected).boxed().collect(Collectors.toList()), matched);
+    }
+
+    @Test
+    void trigramsFoldAsciiCase() {
+        assertEquals(0, TrigramIndex.trigrams(utf8("ab")).length);
+        assertArrayEquals(utf8("abc"), toBytes(TrigramIndex.trigrams(utf8("ABC"))));
+        // 重复的三元组只出现一次
+        assertEquals(1, TrigramIndex.trigrams(utf8("aaaaaa")).length);
+        assertEquals(TrigramIndex.trigrams(utf8("Hello")).length, TrigramIndex.trigrams(utf8("hELLo")).length);
+    }
+
+    private static byte[] toBytes(int[] trigrams) {
+        assertEquals(1, trigrams.length);
+        int t = trigrams[0];
+        return new byte[]{(byte) (t >> 16), (byte) (t >> 8), (byte) t};
+    }
+
+    @Test
+    void candidatesFollowBaseChain() {
+        TrigramIndex index = build(dir);
+        assertEquals(4, index.size());
+        assertCandidates(index, "world", 1);
+        assertCandidates(index, "there", 2, 3);
+        assertCandidates(index, "Hello", 1, 2, 4);
+        assertCandidates(index, "goodbye", 3);
+        assertCandidates(index, "xyz");
+        // 太短无法筛选，全部算作可能包含
+        assertCandidates(index, "he", 1, 2, 3, 4);
+        // 未建立索引的 blob 一律算作可能包含
+        assertTrue(index.candidates("xyz").test(99));
+    }
+
+    @Test
+    void saveAndReopenKeepsCandidates() throws IOException {
+        build(dir).save(blobId -> true);
+        TrigramIndex reopened = TrigramIndex.open(dir);
+        assertEquals(4, reopened.size());
+        assertCandidates(reopened, "world", 1);
+        assertCandidates(reopened, "there", 2, 3);
+
+        // 损坏的索引文件按空索引打开，之后在后台重建
+        Path file = dir.resolve(TrigramIndex.DIR_NAME).resolve(TrigramIndex.FILE_NAME);
+        Files.write(file, utf8("garbage"));
+        assertEquals(0, TrigramIndex.open(dir).size());
+    }
+
+    @Test
+    void storeSearchFoldsCaseUnlessMatchCase() {
+        store = new SegmentedVersionControl(dir, new SnapshotStoreOptions().setCompactionIntervalMinutes(0));
+        store.saveVersionSnapshot(new Snapshot("s1", "/p/A.java", utf8("class A {\n    int Counter;\n}\n"), 1));
+        store.saveVersionSnapshot(new Snapshot("s2", "/p/B.java", utf8("class B {\n    int counter;\n}\n"), 2));
+        store.saveVersionSnapshot(new Snapshot("s3", "/p/C.java", utf8("class C {}\n"), 3));
+        assertTrue(store.getWriter().flush(5, TimeUnit.SECONDS));
+
+        List<SnapshotSearchHit> folded = store.search(SnapshotQuery.all().setNewestFirst(true), "COUNTER", false, 10);
+        assertEquals(Arrays.asList("/p/B.java", "/p/A.java"), folded.stream()
+                .map(hit -> hit.getMeta().getFilePath())
+                .collect(Collectors.toList()));
+        // 行号从 0 开始
+        assertEquals(1, folded.get(0).getLines().get(0).getNumber());
+        assertEquals("    int counter;", folded.get(0).getLines().get(0).getText());
+
+        List<SnapshotSearchHit> exact = store.search(SnapshotQuery.all(), "Counter", true, 10);
+        assertEquals(1, exact.size());
+        assertEquals("/p/A.java", exact.get(0).getMeta().getFilePath());
+        assertTrue(store.search(SnapshotQuery.all(), "COUNTER", true, 10).isEmpty());
+    }
+}